@@ -23,7 +23,7 @@ public class BootReceiver extends WakefulBroadcastReceiver {
             if( productToPurchases != null ) {
                 Log.d( Vapp.TAG, "Processing reboot - product: " + productToPurchases.getProductId()  );
 
-                Intent smsIntent = new Intent(context, VappSmsService.class);
+                Intent smsIntent = new Intent(context, VappProcess.getSmsServiceClass(context));
                 smsIntent.putExtra(VappActions.EXTRA_PRODUCT_ID, productToPurchases.getProductId());
                 startWakefulService(context, smsIntent);
             }
@@ -0,0 +1,51 @@
+package com.vasilitate.vapp.sdk;
+
+import com.vasilitate.vapp.sdk.exceptions.VappException;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Waits on work handed to the SDK's background threads.
+ */
+final class Futures {
+
+    private Futures() {
+    }
+
+    /**
+     * Waits for a result, restoring the thread's interrupted status if it was interrupted while
+     * waiting.
+     *
+     * @param future the pending result
+     * @return the result.
+     * @throws VappException if the work failed, or the exception it threw if a runtime exception.
+     */
+    static <T> T getUninterruptibly(Future<T> future) throws VappException {
+        boolean interrupted = false;
+
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new VappException("VAPP background task failed", cause);
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.vasilitate.vapp.sdk;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds product state in memory only, so all purchases are forgotten when the process exits.
+ */
+final class InMemoryProductStateStore implements ProductStateStore {
+
+    private final Map<String, ProductState> states = new HashMap<>();
+    private final Set<String> registry = new LinkedHashSet<>();
+    private long catalogFingerprint;
+
+    @Override public synchronized ProductState get(String productId) {
+        ProductState state = states.get(productId);
+        return state != null ? state : ProductState.EMPTY;
+    }
+
+    @Override public synchronized boolean compareAndSet(String productId, ProductState expected,
+                                                        ProductState update) {
+        if (!get(productId).equals(expected)) {
+            return false;
+        }
+        states.put(productId, update);
+        return true;
+    }
+
+    @Override public synchronized boolean compareAndSetAll(Map<String, ProductState> expected,
+                                                           Map<String, ProductState> updates) {
+        for (Map.Entry<String, ProductState> entry : expected.entrySet()) {
+            if (!get(entry.getKey()).equals(entry.getValue())) {
+                return false;
+            }
+        }
+        states.putAll(updates);
+        return true;
+    }
+
+    @Override public synchronized Set<String> getStoredProductIds() {
+        return new LinkedHashSet<>(states.keySet());
+    }
+
+    @Override public synchronized Set<String> getProductRegistry() {
+        return new LinkedHashSet<>(registry);
+    }
+
+    @Override public synchronized void setProductRegistry(Set<String> productIds) {
+        registry.clear();
+        registry.addAll(productIds);
+    }
+
+    @Override public synchronized long getCatalogFingerprint() {
+        return catalogFingerprint;
+    }
+
+    @Override public synchronized void setCatalogFingerprint(long fingerprint) {
+        catalogFingerprint = fingerprint;
+    }
+
+    @Override public void flush() {
+    }
+
+    @Override public synchronized void clear() {
+        states.clear();
+        registry.clear();
+        catalogFingerprint = 0;
+    }
+}
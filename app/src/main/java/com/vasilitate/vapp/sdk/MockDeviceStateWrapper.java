@@ -7,6 +7,8 @@ import android.content.Context;
  */
 class MockDeviceStateWrapper implements DeviceStateContract {
 
+    private static Boolean testMode; // seeded from the configured test mode on first use
+
     private Context context;
 
     MockDeviceStateWrapper(Context context) {
@@ -40,12 +42,16 @@ class MockDeviceStateWrapper implements DeviceStateContract {
     }
 
     /*
-     * Flips the test mode between two states (persisted in sharedprefs)
+     * Flips the test mode between two states. Held in memory rather than written back to the
+     * configured test mode, so that no getter writes state.
      */
     private boolean getTestMode() {
-        boolean mode = VappConfiguration.isTestMode(context);
-        mode = !mode;
-        VappConfiguration.setTestMode(context, mode);
-        return mode;
+        synchronized (MockDeviceStateWrapper.class) {
+            if (testMode == null) {
+                testMode = VappConfiguration.isTestMode(context);
+            }
+            testMode = !testMode;
+            return testMode;
+        }
     }
 }
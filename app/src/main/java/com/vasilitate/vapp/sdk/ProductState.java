@@ -0,0 +1,221 @@
+package com.vasilitate.vapp.sdk;
+
+import android.util.Base64;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+/**
+ * An immutable record of everything the SDK persists for a single product. The record is read and
+ * written as one unit, so a state transition costs one write and can never be observed half-applied.
+ * <p/>
+ * Records are stored in a fixed 20 byte layout (Base64 encoded):
+ * <pre>
+ * [0]      layout version
+ * [1]      flags - exists, cancelled, subscription cancelled
+ * [2-5]    redeemed count
+ * [6-7]    sent SMS count
+ * [8-9]    required SMS count
+ * [10-11]  current download SMS count
+ * [12-19]  subscription end date (ms since epoch, 0 if none)
+ * </pre>
+ */
+final class ProductState {
+
+    static final ProductState EMPTY = new ProductState(0, 0, 0, 0, false, false, 0, false);
+
+    private static final byte LAYOUT_VERSION = 1;
+    private static final int LAYOUT_SIZE = 20;
+
+    private static final int FLAG_EXISTS = 1;
+    private static final int FLAG_CANCELLED = 1 << 1;
+    private static final int FLAG_SUBSCRIPTION_CANCELLED = 1 << 2;
+
+    private final int redeemedCount;
+    private final int sentSmsCount;
+    private final int requiredSmsCount;
+    private final int currentDownloadSmsCount;
+    private final boolean exists;
+    private final boolean cancelled;
+    private final long subscriptionEndTime;
+    private final boolean subscriptionCancelled;
+
+    ProductState(int redeemedCount, int sentSmsCount, int requiredSmsCount,
+                 int currentDownloadSmsCount, boolean exists, boolean cancelled,
+                 long subscriptionEndTime, boolean subscriptionCancelled) {
+        this.redeemedCount = redeemedCount;
+        this.sentSmsCount = sentSmsCount;
+        this.requiredSmsCount = requiredSmsCount;
+        this.currentDownloadSmsCount = currentDownloadSmsCount;
+        this.exists = exists;
+        this.cancelled = cancelled;
+        this.subscriptionEndTime = subscriptionEndTime;
+        this.subscriptionCancelled = subscriptionCancelled;
+    }
+
+    /**
+     * Computes a new state from the current one, for use with
+     * {@link VappConfiguration#updateProductState(android.content.Context, String, Update)}.
+     */
+    interface Update {
+        ProductState apply(ProductState current);
+    }
+
+    int getRedeemedCount() {
+        return redeemedCount;
+    }
+
+    int getSentSmsCount() {
+        return sentSmsCount;
+    }
+
+    int getRequiredSmsCount() {
+        return requiredSmsCount;
+    }
+
+    int getCurrentDownloadSmsCount() {
+        return currentDownloadSmsCount;
+    }
+
+    boolean exists() {
+        return exists;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    Date getSubscriptionEndDate() {
+        return subscriptionEndTime == 0 ? null : new Date(subscriptionEndTime);
+    }
+
+    long getSubscriptionEndTime() {
+        return subscriptionEndTime;
+    }
+
+    boolean isSubscriptionCancelled() {
+        return subscriptionCancelled;
+    }
+
+    ProductState withRedeemedCount(int count) {
+        return new ProductState(count, sentSmsCount, requiredSmsCount, currentDownloadSmsCount,
+                exists, cancelled, subscriptionEndTime, subscriptionCancelled);
+    }
+
+    ProductState withSentSmsCount(int count) {
+        return new ProductState(redeemedCount, count, requiredSmsCount, currentDownloadSmsCount,
+                exists, cancelled, subscriptionEndTime, subscriptionCancelled);
+    }
+
+    ProductState withRequiredSmsCount(int count) {
+        return new ProductState(redeemedCount, sentSmsCount, count, currentDownloadSmsCount,
+                exists, cancelled, subscriptionEndTime, subscriptionCancelled);
+    }
+
+    ProductState withCurrentDownloadSmsCount(int count) {
+        return new ProductState(redeemedCount, sentSmsCount, requiredSmsCount, count,
+                exists, cancelled, subscriptionEndTime, subscriptionCancelled);
+    }
+
+    ProductState withExists(boolean exists) {
+        return new ProductState(redeemedCount, sentSmsCount, requiredSmsCount, currentDownloadSmsCount,
+                exists, cancelled, subscriptionEndTime, subscriptionCancelled);
+    }
+
+    ProductState withCancelled(boolean cancelled) {
+        return new ProductState(redeemedCount, sentSmsCount, requiredSmsCount, currentDownloadSmsCount,
+                exists, cancelled, subscriptionEndTime, subscriptionCancelled);
+    }
+
+    ProductState withSubscriptionEndDate(Date endDate) {
+        return new ProductState(redeemedCount, sentSmsCount, requiredSmsCount, currentDownloadSmsCount,
+                exists, cancelled, endDate != null ? endDate.getTime() : 0, subscriptionCancelled);
+    }
+
+    ProductState withSubscriptionCancelled(boolean cancelled) {
+        return new ProductState(redeemedCount, sentSmsCount, requiredSmsCount, currentDownloadSmsCount,
+                exists, this.cancelled, subscriptionEndTime, cancelled);
+    }
+
+    /**
+     * @return the record in its persisted form
+     */
+    String encode() {
+        int flags = (exists ? FLAG_EXISTS : 0)
+                | (cancelled ? FLAG_CANCELLED : 0)
+                | (subscriptionCancelled ? FLAG_SUBSCRIPTION_CANCELLED : 0);
+
+        ByteBuffer buffer = ByteBuffer.allocate(LAYOUT_SIZE);
+        buffer.put(LAYOUT_VERSION);
+        buffer.put((byte) flags);
+        buffer.putInt(redeemedCount);
+        buffer.putShort((short) sentSmsCount);
+        buffer.putShort((short) requiredSmsCount);
+        buffer.putShort((short) currentDownloadSmsCount);
+        buffer.putLong(subscriptionEndTime);
+        return Base64.encodeToString(buffer.array(), Base64.NO_WRAP);
+    }
+
+    /**
+     * @param encoded a record previously created by {@link #encode()}
+     * @return the decoded record, or null if it is not a recognised layout
+     */
+    static ProductState decode(String encoded) {
+        byte[] bytes;
+
+        try {
+            bytes = Base64.decode(encoded, Base64.NO_WRAP);
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        if (bytes.length != LAYOUT_SIZE || bytes[0] != LAYOUT_VERSION) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, LAYOUT_SIZE - 1);
+        int flags = buffer.get();
+        int redeemedCount = buffer.getInt();
+        int sentSmsCount = buffer.getShort();
+        int requiredSmsCount = buffer.getShort();
+        int currentDownloadSmsCount = buffer.getShort();
+        long subscriptionEndTime = buffer.getLong();
+
+        return new ProductState(redeemedCount, sentSmsCount, requiredSmsCount, currentDownloadSmsCount,
+                (flags & FLAG_EXISTS) != 0,
+                (flags & FLAG_CANCELLED) != 0,
+                subscriptionEndTime,
+                (flags & FLAG_SUBSCRIPTION_CANCELLED) != 0);
+    }
+
+    @Override public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ProductState)) {
+            return false;
+        }
+        ProductState that = (ProductState) o;
+        return redeemedCount == that.redeemedCount
+                && sentSmsCount == that.sentSmsCount
+                && requiredSmsCount == that.requiredSmsCount
+                && currentDownloadSmsCount == that.currentDownloadSmsCount
+                && exists == that.exists
+                && cancelled == that.cancelled
+                && subscriptionEndTime == that.subscriptionEndTime
+                && subscriptionCancelled == that.subscriptionCancelled;
+    }
+
+    @Override public int hashCode() {
+        int result = redeemedCount;
+        result = 31 * result + sentSmsCount;
+        result = 31 * result + requiredSmsCount;
+        result = 31 * result + currentDownloadSmsCount;
+        result = 31 * result + (exists ? 1 : 0);
+        result = 31 * result + (cancelled ? 1 : 0);
+        result = 31 * result + (int) (subscriptionEndTime ^ (subscriptionEndTime >>> 32));
+        result = 31 * result + (subscriptionCancelled ? 1 : 0);
+        return result;
+    }
+}
@@ -0,0 +1,75 @@
+package com.vasilitate.vapp.sdk;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persists the {@link ProductState} record of each product, along with the registry of products
+ * supplied at the last initialisation. {@link VappConfiguration} reads and writes product state
+ * through whichever store was selected by {@link VappStateStorage}.
+ * <p/>
+ * Implementations must be safe for use from multiple threads.
+ */
+interface ProductStateStore {
+
+    /**
+     * @param productId the product id
+     * @return the product's state, or {@link ProductState#EMPTY} if nothing has been stored.
+     */
+    ProductState get(String productId);
+
+    /**
+     * Atomically replaces a product's state, provided it has not changed since it was read.
+     *
+     * @param productId the product id
+     * @param expected  the record the update was computed from
+     * @param update    the new record
+     * @return true if the record was replaced, false if it no longer matched the expected record.
+     */
+    boolean compareAndSet(String productId, ProductState expected, ProductState update);
+
+    /**
+     * Atomically replaces several products' states, provided none has changed since it was read.
+     * Either every record is replaced or none are.
+     *
+     * @param expected the records the updates were computed from, by product id
+     * @param updates  the new records, by product id
+     * @return true if the records were replaced, false if any no longer matched.
+     */
+    boolean compareAndSetAll(Map<String, ProductState> expected, Map<String, ProductState> updates);
+
+    /**
+     * @return the ids of every product with a stored record, including pruned products.
+     */
+    Set<String> getStoredProductIds();
+
+    /**
+     * @return the ids of all products which were registered by the last initialisation.
+     */
+    Set<String> getProductRegistry();
+
+    /**
+     * @param productIds the ids of the products registered by the current initialisation
+     */
+    void setProductRegistry(Set<String> productIds);
+
+    /**
+     * @return the fingerprint of the catalog last applied to the stored records, or 0 if none.
+     */
+    long getCatalogFingerprint();
+
+    /**
+     * @param fingerprint the fingerprint of the catalog which has just been applied
+     */
+    void setCatalogFingerprint(long fingerprint);
+
+    /**
+     * Synchronously persists any writes which have not yet reached storage.
+     */
+    void flush();
+
+    /**
+     * Removes all stored records and the product registry.
+     */
+    void clear();
+}
@@ -0,0 +1,525 @@
+package com.vasilitate.vapp.sdk;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An append-only journal of the events in the current purchase, from which {@link VappSmsService}
+ * resumes an interrupted purchase at the exact point it stopped, rather than repeating the HNI
+ * check, verification or an SMS which was already sent.
+ * <p/>
+ * Everything happens on the journal's own thread, in the order it was requested: both files are
+ * read once, sequentially, when the journal is first used, then each event is applied to an
+ * in-memory {@link Position} and appended to the journal file. Every {@link #SNAPSHOT_INTERVAL}
+ * events, and whenever a purchase finishes, the position is written as a snapshot (the minimal
+ * events which reproduce it) and the journal is truncated. The position is delivered to the main
+ * thread by {@link #getPosition(String, PositionCallback)}, so the main thread never waits on disk.
+ * <p/>
+ * Each file starts with a generation, incremented by each snapshot. Journal records are only
+ * replayed on top of the snapshot of the same generation, so a journal left behind by an
+ * interrupted snapshot is ignored. Replay stops at the first torn or corrupt record, so the journal
+ * is truncated there when it is loaded, before any event is appended after it.
+ * <pre>
+ * header: [int generation]
+ * record: [int length][byte event][UTF product id][int sms index][sms fields, if generated][byte commit marker]
+ * </pre>
+ */
+final class PurchaseJournal {
+
+    static final byte STARTED = 0;
+    static final byte HNI_CHECKED = 1;
+    static final byte SMS_GENERATED = 2;
+    static final byte SMS_SENT = 3;
+    static final byte SMS_DELIVERED = 4;
+    static final byte SMS_LOGGED = 5;
+    static final byte SMS_VERIFIED = 6;
+    static final byte COMPLETED = 7;
+    static final byte CANCELLED = 8;
+
+    /**
+     * The number of events appended between snapshots.
+     */
+    static final int SNAPSHOT_INTERVAL = 32;
+
+    private static final String JOURNAL_FILE_NAME = "vapp_purchase.journal";
+    private static final String SNAPSHOT_FILE_NAME = "vapp_purchase.snapshot";
+    private static final int MAX_RECORD_LENGTH = 4096;
+    private static final byte COMMIT_MARKER = 0x5A;
+
+    /**
+     * The point a purchase has reached.
+     */
+    static final class Position {
+        String productId;
+        boolean hniChecked;
+        boolean verified;
+        boolean finished;
+
+        /**
+         * The most recently generated SMS, or null if none has been generated.
+         */
+        VappSms sms;
+        int smsIndex = -1;
+
+        /**
+         * The last event for {@link #sms}, one of SMS_GENERATED, SMS_SENT, SMS_DELIVERED or
+         * SMS_LOGGED.
+         */
+        byte smsEvent;
+
+        Position copy() {
+            Position copy = new Position();
+            copy.productId = productId;
+            copy.hniChecked = hniChecked;
+            copy.verified = verified;
+            copy.finished = finished;
+            copy.sms = sms;
+            copy.smsIndex = smsIndex;
+            copy.smsEvent = smsEvent;
+            return copy;
+        }
+    }
+
+    /**
+     * Receives the position of an unfinished purchase, on the main thread.
+     */
+    interface PositionCallback {
+
+        /**
+         * @param position the point the purchase reached, or null if there is none to resume
+         */
+        void onPosition(Position position);
+    }
+
+    private static PurchaseJournal instance;
+
+    private final ExecutorService writer;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // accessed on the writer thread only
+    private final Position position = new Position();
+    private File journalFile;
+    private File snapshotFile;
+    private int eventsSinceSnapshot;
+    private int generation;
+    private FileOutputStream journalOut;
+    private long replayedLength; // the length of the valid records in the file last replayed
+
+    private PurchaseJournal(final Context context) {
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "vapp-purchase-journal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        writer.execute(new Runnable() { // first, so every later task sees the replayed position
+            @Override public void run() {
+                load(context);
+            }
+        });
+    }
+
+    private void load(Context context) {
+        journalFile = new File(context.getFilesDir(), JOURNAL_FILE_NAME);
+        snapshotFile = new File(context.getFilesDir(), SNAPSHOT_FILE_NAME);
+
+        generation = Math.max(readGeneration(snapshotFile), 0);
+        replay(snapshotFile);
+
+        if (readGeneration(journalFile) == generation) { // otherwise left behind by an interrupted snapshot
+            eventsSinceSnapshot = replay(journalFile);
+            truncateJournal(replayedLength);
+        }
+    }
+
+    /**
+     * Discards anything after the last valid record, such as a record torn by the process being
+     * killed, so that the events appended after it are replayed.
+     */
+    private void truncateJournal(long length) {
+        if (journalFile.length() <= length) {
+            return;
+        }
+        Log.w(Vapp.TAG, "Discarding a torn purchase journal record");
+
+        try {
+            RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+
+            try {
+                file.setLength(length);
+            }
+            finally {
+                file.close();
+            }
+        }
+        catch (IOException e) {
+            Log.w(Vapp.TAG, "Failed to truncate purchase journal", e);
+            journalFile.delete(); // a journal which doesn't match the snapshot's generation is started afresh
+        }
+    }
+
+    /**
+     * @param context the current context
+     * @return the process-wide journal, which starts reading itself from disk on its own thread.
+     */
+    static synchronized PurchaseJournal get(Context context) {
+        if (instance == null) {
+            instance = new PurchaseJournal(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Delivers the point an unfinished purchase of a product reached, once the journal has been
+     * read and every event already recorded has been applied.
+     *
+     * @param productId the product being purchased
+     * @param callback  called on the main thread with the position, or with null if the journal
+     *                  holds no unfinished purchase of the product
+     */
+    void getPosition(final String productId, final PositionCallback callback) {
+        writer.execute(new Runnable() {
+            @Override public void run() {
+                final Position resumed = position.finished || !productId.equals(position.productId)
+                        ? null : position.copy();
+
+                mainHandler.post(new Runnable() {
+                    @Override public void run() {
+                        callback.onPosition(resumed);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Records the start of a new purchase, discarding the position of any previous one.
+     */
+    void start(String productId) {
+        append(STARTED, productId, -1, null);
+    }
+
+    /**
+     * Records an event in the current purchase.
+     *
+     * @param event    the event
+     * @param smsIndex the index of the SMS the event relates to, or -1
+     */
+    void record(byte event, String productId, int smsIndex) {
+        append(event, productId, smsIndex, null);
+    }
+
+    /**
+     * Records the generation of an SMS, so that the same SMS is used if the purchase resumes.
+     */
+    void recordGenerated(String productId, int smsIndex, VappSms sms) {
+        append(SMS_GENERATED, productId, smsIndex, sms);
+    }
+
+    private void append(final byte event, final String productId, final int smsIndex, final VappSms sms) {
+        writer.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    apply(event, productId, smsIndex, sms);
+
+                    if (++eventsSinceSnapshot >= SNAPSHOT_INTERVAL || event == COMPLETED || event == CANCELLED) {
+                        eventsSinceSnapshot = 0;
+                        writeSnapshot(encodeSnapshot());
+                    }
+                    else {
+                        if (journalOut == null) {
+                            openJournal();
+                        }
+                        // a single write, so the record is never interleaved
+                        journalOut.write(encode(event, productId, smsIndex, sms));
+                    }
+                }
+                catch (IOException e) {
+                    Log.w(Vapp.TAG, "Failed to write purchase journal", e);
+                }
+            }
+        });
+    }
+
+    private void apply(byte event, String productId, int smsIndex, VappSms sms) {
+        if (event == STARTED) {
+            resetPosition(productId);
+        }
+        else if (!productId.equals(position.productId)) {
+            return; // an event from a purchase which has since been replaced
+        }
+
+        switch (event) {
+            case HNI_CHECKED:
+                position.hniChecked = true;
+                break;
+            case SMS_VERIFIED:
+                position.verified = true;
+                break;
+            case SMS_GENERATED:
+                position.sms = sms;
+                position.smsIndex = smsIndex;
+                position.smsEvent = SMS_GENERATED;
+                break;
+            case SMS_SENT:
+            case SMS_DELIVERED:
+            case SMS_LOGGED:
+                if (smsIndex == position.smsIndex && event > position.smsEvent) {
+                    position.smsEvent = event;
+                }
+                break;
+            case COMPLETED:
+            case CANCELLED:
+                position.finished = true;
+                break;
+        }
+    }
+
+    private void resetPosition(String productId) {
+        position.productId = productId;
+        position.hniChecked = false;
+        position.verified = false;
+        position.finished = false;
+        position.sms = null;
+        position.smsIndex = -1;
+        position.smsEvent = 0;
+    }
+
+    /**
+     * Discards the position of any purchase, as part of clearing all stored state.
+     */
+    void clear() {
+        writer.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    resetPosition(null);
+                    eventsSinceSnapshot = 0;
+                    writeSnapshot(encodeSnapshot());
+                }
+                catch (IOException e) {
+                    Log.w(Vapp.TAG, "Failed to clear purchase journal", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Opens the journal for appending, starting it afresh if it belongs to an older snapshot.
+     */
+    private void openJournal() throws IOException {
+        boolean current = readGeneration(journalFile) == generation;
+        journalOut = new FileOutputStream(journalFile, current);
+
+        if (!current) {
+            journalOut.write(encodeGeneration(generation));
+        }
+    }
+
+    /**
+     * Writes the snapshot under the next generation to a temporary file, replaces the previous
+     * snapshot with it, then starts a new journal. If interrupted, either the old snapshot and its
+     * journal or the new snapshot remain.
+     */
+    private void writeSnapshot(byte[] snapshot) throws IOException {
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+
+        try {
+            out.write(encodeGeneration(generation + 1));
+            out.write(snapshot);
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+
+        if (!tempFile.renameTo(snapshotFile)) {
+            throw new IOException("Failed to replace purchase snapshot");
+        }
+        generation++;
+
+        if (journalOut != null) {
+            journalOut.close();
+        }
+        journalOut = new FileOutputStream(journalFile, false);
+        journalOut.write(encodeGeneration(generation));
+    }
+
+    private static byte[] encodeGeneration(int generation) {
+        return new byte[]{(byte) (generation >>> 24), (byte) (generation >>> 16),
+                (byte) (generation >>> 8), (byte) generation};
+    }
+
+    /**
+     * @return the generation a file was written under, or -1 if it has none.
+     */
+    private static int readGeneration(File file) {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+
+            try {
+                return in.readInt();
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private byte[] encodeSnapshot() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        List<byte[]> records = new ArrayList<>();
+
+        if (position.productId != null) {
+            records.add(encode(STARTED, position.productId, -1, null));
+
+            if (position.hniChecked) {
+                records.add(encode(HNI_CHECKED, position.productId, -1, null));
+            }
+            if (position.verified) {
+                records.add(encode(SMS_VERIFIED, position.productId, -1, null));
+            }
+            if (position.sms != null) {
+                records.add(encode(SMS_GENERATED, position.productId, position.smsIndex, position.sms));
+
+                if (position.smsEvent != SMS_GENERATED) {
+                    records.add(encode(position.smsEvent, position.productId, position.smsIndex, null));
+                }
+            }
+            if (position.finished) {
+                records.add(encode(COMPLETED, position.productId, -1, null));
+            }
+        }
+
+        for (byte[] record : records) {
+            bytes.write(record, 0, record.length);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encode(byte event, String productId, int smsIndex, VappSms sms) {
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeByte(event);
+            out.writeUTF(productId);
+            out.writeInt(smsIndex);
+
+            if (event == SMS_GENERATED) {
+                out.writeUTF(sms.toString());
+                out.writeUTF(nonNull(sms.getDeliveryNumber()));
+                out.writeUTF(nonNull(sms.getRandomSegment2()));
+                out.writeUTF(nonNull(sms.getRandomSegment3()));
+                out.writeUTF(nonNull(sms.getImei()));
+            }
+
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream recordOut = new DataOutputStream(record);
+            recordOut.writeInt(payload.size());
+            payload.writeTo(recordOut);
+            recordOut.writeByte(COMMIT_MARKER); // last, so a torn record is never applied
+            return record.toByteArray();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e); // not thrown by in-memory streams
+        }
+    }
+
+    /**
+     * Applies every complete record in a file, stopping at the first torn or corrupt record.
+     *
+     * @return the number of records applied
+     */
+    private int replay(File file) {
+        int count = 0;
+        InputStream stream;
+        replayedLength = 0;
+
+        try {
+            stream = new BufferedInputStream(new FileInputStream(file));
+        }
+        catch (FileNotFoundException e) {
+            return 0; // nothing recorded yet
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(stream);
+            in.readInt(); // the generation
+            replayedLength = 4;
+
+            while (true) {
+                int length = in.readInt();
+
+                if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                    break;
+                }
+
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                if (in.readByte() != COMMIT_MARKER) {
+                    break;
+                }
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte event = record.readByte();
+                String productId = record.readUTF();
+                int smsIndex = record.readInt();
+                VappSms sms = null;
+
+                if (event == SMS_GENERATED) {
+                    sms = new VappSms(record.readUTF(), record.readUTF(), record.readUTF(),
+                            record.readUTF(), record.readUTF());
+                }
+                apply(event, productId, smsIndex, sms);
+                count++;
+                replayedLength += 4 + length + 1;
+            }
+        }
+        catch (EOFException e) {
+            // the end of the file, or a torn final record
+        }
+        catch (IOException e) {
+            Log.w(Vapp.TAG, "Failed to read purchase journal", e);
+        }
+        finally {
+            try {
+                stream.close();
+            }
+            catch (IOException e) {
+                Log.w(Vapp.TAG, "Error closing purchase journal", e);
+            }
+        }
+        return count;
+    }
+
+    private static String nonNull(String value) {
+        return value != null ? value : "";
+    }
+}
@@ -0,0 +1,211 @@
+package com.vasilitate.vapp.sdk;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.vasilitate.vapp.sdk.exceptions.VappException;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Product state as seen by a client process, when the SMS service runs in the dedicated SDK
+ * process (see {@link VappProcess}). Every update is a compare-and-set applied by the
+ * {@link VappStateProvider}, so updates from both processes are serialised by the owning store.
+ * <p/>
+ * Reads are cached. The provider notifies every change to a product's state, which evicts it from
+ * the cache and is passed on to this process's renewal schedule and status listeners.
+ */
+final class RemoteProductStateStore implements ProductStateStore {
+
+    private final Context context;
+    private final ContentResolver resolver;
+    private final Map<String, ProductState> states = new ConcurrentHashMap<>();
+
+    private volatile Set<String> registry;
+    private volatile Long catalogFingerprint;
+
+    RemoteProductStateStore(Context context) {
+        this.context = context;
+        this.resolver = context.getContentResolver();
+
+        resolver.registerContentObserver(VappStateProvider.getUri(context, VappStateProvider.PATH_PRODUCTS), true,
+                new ContentObserver(null) {
+                    @Override public void onChange(boolean selfChange) { // before API 16, the uri isn't known
+                        invalidate();
+                    }
+
+                    @Override public void onChange(boolean selfChange, Uri uri) {
+                        List<String> segments = uri != null ? uri.getPathSegments() : null;
+
+                        if (segments != null && segments.size() == 2) {
+                            onProductChanged(segments.get(1));
+                        }
+                        else {
+                            invalidate();
+                        }
+                    }
+                });
+    }
+
+    @Override public ProductState get(String productId) {
+        ProductState state = states.get(productId);
+
+        if (state == null) {
+            Cursor cursor = query(productUri(productId));
+
+            try {
+                state = cursor.moveToFirst()
+                        ? decode(cursor.getString(cursor.getColumnIndexOrThrow(VappStateProvider.COLUMN_VALUE)))
+                        : ProductState.EMPTY;
+            }
+            finally {
+                cursor.close();
+            }
+            states.put(productId, state);
+        }
+        return state;
+    }
+
+    @Override public boolean compareAndSet(String productId, ProductState expected, ProductState update) {
+        ContentValues values = new ContentValues();
+        values.put(VappStateProvider.EXPECTED_PREFIX, expected.encode());
+        values.put(VappStateProvider.UPDATE_PREFIX, update.encode());
+
+        if (resolver.update(productUri(productId), values, null, null) == 0) {
+            states.remove(productId); // changed by the other process, so re-read it
+            return false;
+        }
+        states.put(productId, update);
+        return true;
+    }
+
+    @Override public boolean compareAndSetAll(Map<String, ProductState> expected, Map<String, ProductState> updates) {
+        ContentValues values = new ContentValues();
+
+        for (Map.Entry<String, ProductState> entry : expected.entrySet()) {
+            values.put(VappStateProvider.EXPECTED_PREFIX + entry.getKey(), entry.getValue().encode());
+        }
+        for (Map.Entry<String, ProductState> entry : updates.entrySet()) {
+            values.put(VappStateProvider.UPDATE_PREFIX + entry.getKey(), entry.getValue().encode());
+        }
+
+        if (resolver.update(VappStateProvider.getUri(context, VappStateProvider.PATH_PRODUCTS), values, null, null) == 0) {
+            states.keySet().removeAll(expected.keySet());
+            return false;
+        }
+        states.putAll(updates);
+        return true;
+    }
+
+    @Override public Set<String> getStoredProductIds() {
+        return VappStateProvider.readIds(query(VappStateProvider.getUri(context, VappStateProvider.PATH_PRODUCTS)));
+    }
+
+    @Override public Set<String> getProductRegistry() {
+        Set<String> current = registry;
+
+        if (current == null) {
+            current = Collections.unmodifiableSet(VappStateProvider.readIds(
+                    query(VappStateProvider.getUri(context, VappStateProvider.PATH_REGISTRY))));
+            registry = current;
+        }
+        return current;
+    }
+
+    @Override public void setProductRegistry(Set<String> productIds) {
+        ContentValues values = new ContentValues();
+
+        for (String productId : productIds) {
+            values.putNull(productId);
+        }
+        resolver.update(VappStateProvider.getUri(context, VappStateProvider.PATH_REGISTRY), values, null, null);
+        registry = Collections.unmodifiableSet(productIds);
+    }
+
+    @Override public long getCatalogFingerprint() {
+        Long current = catalogFingerprint;
+
+        if (current == null) {
+            Cursor cursor = query(VappStateProvider.getUri(context, VappStateProvider.PATH_FINGERPRINT));
+
+            try {
+                current = cursor.moveToFirst()
+                        ? cursor.getLong(cursor.getColumnIndexOrThrow(VappStateProvider.COLUMN_VALUE)) : 0L;
+            }
+            finally {
+                cursor.close();
+            }
+            catalogFingerprint = current;
+        }
+        return current;
+    }
+
+    @Override public void setCatalogFingerprint(long fingerprint) {
+        ContentValues values = new ContentValues();
+        values.put(VappStateProvider.PATH_FINGERPRINT, fingerprint);
+        resolver.update(VappStateProvider.getUri(context, VappStateProvider.PATH_FINGERPRINT), values, null, null);
+        catalogFingerprint = fingerprint;
+    }
+
+    /**
+     * Persists any state which the SDK process has not yet written.
+     */
+    @Override public void flush() {
+        resolver.update(VappStateProvider.getUri(context, VappStateProvider.PATH_FLUSH), new ContentValues(), null, null);
+    }
+
+    /**
+     * Removes all of the SDK's persisted state, in the SDK process.
+     */
+    @Override public void clear() {
+        resolver.delete(VappStateProvider.getUri(context, null), null, null);
+        invalidate();
+    }
+
+    /**
+     * Moves the SDK process's product state to the given storage.
+     */
+    void setStateStorage(VappStateStorage storage) {
+        ContentValues values = new ContentValues();
+        values.put(VappStateProvider.PATH_STORAGE, storage.name());
+        resolver.update(VappStateProvider.getUri(context, VappStateProvider.PATH_STORAGE), values, null, null);
+        invalidate();
+    }
+
+    private void onProductChanged(String productId) {
+        states.remove(productId);
+        VappConfiguration.onRemoteProductStateChanged(context, productId);
+    }
+
+    private void invalidate() {
+        states.clear();
+        registry = null;
+        catalogFingerprint = null;
+    }
+
+    private Uri productUri(String productId) {
+        return VappStateProvider.getUri(context, VappStateProvider.PATH_PRODUCTS + "/" + Uri.encode(productId));
+    }
+
+    private Cursor query(Uri uri) {
+        Cursor cursor = resolver.query(uri, null, null, null, null);
+
+        if (cursor == null) {
+            throw new VappException("VAPP state provider unavailable - is VappStateProvider declared?");
+        }
+        return cursor;
+    }
+
+    private static ProductState decode(String encoded) {
+        ProductState state = encoded != null ? ProductState.decode(encoded) : null;
+        return state != null ? state : ProductState.EMPTY;
+    }
+}
@@ -0,0 +1,102 @@
+package com.vasilitate.vapp.sdk;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.vasilitate.vapp.sdk.exceptions.VappException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The SDK's state as seen by a client process, loaded from and committed to the
+ * {@link VappStateProvider} in the SDK process. Each call is a single round trip; the
+ * {@link VappStateCache} serves reads from memory in between.
+ */
+final class RemoteStateBackend implements VappStateBackend {
+
+    private final ContentResolver resolver;
+    private final Uri valuesUri;
+
+    RemoteStateBackend(Context context) {
+        this.resolver = context.getContentResolver();
+        this.valuesUri = VappStateProvider.getUri(context, VappStateProvider.PATH_VALUES);
+    }
+
+    /**
+     * @return every value held by the SDK process.
+     * @throws VappException if the provider is not available.
+     */
+    @Override public Map<String, ?> loadAll() {
+        Cursor cursor = resolver.query(valuesUri, null, null, null, null);
+
+        if (cursor == null) {
+            throw new VappException("VAPP state provider unavailable - is VappStateProvider declared?");
+        }
+
+        Map<String, Object> values = new HashMap<>();
+
+        try {
+            int keyColumn = cursor.getColumnIndexOrThrow(VappStateProvider.COLUMN_KEY);
+            int valueColumn = cursor.getColumnIndexOrThrow(VappStateProvider.COLUMN_VALUE);
+            int typeColumn = cursor.getColumnIndexOrThrow(VappStateProvider.COLUMN_TYPE);
+
+            while (cursor.moveToNext()) {
+                values.put(cursor.getString(keyColumn),
+                        readValue(cursor.getString(valueColumn), cursor.getString(typeColumn)));
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        return values;
+    }
+
+    private static Object readValue(String value, String type) {
+        if (VappStateProvider.TYPE_INT.equals(type)) {
+            return Integer.valueOf(value);
+        }
+        else if (VappStateProvider.TYPE_LONG.equals(type)) {
+            return Long.valueOf(value);
+        }
+        else if (VappStateProvider.TYPE_BOOLEAN.equals(type)) {
+            return Boolean.valueOf(value);
+        }
+        return value;
+    }
+
+    @Override public boolean commit(Map<String, Object> batch) {
+        ContentValues values = new ContentValues();
+
+        for (Map.Entry<String, Object> entry : batch.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+
+            if (value == null) {
+                values.putNull(key);
+            }
+            else if (value instanceof Integer) {
+                values.put(key, (Integer) value);
+            }
+            else if (value instanceof Long) {
+                values.put(key, (Long) value);
+            }
+            else if (value instanceof Boolean) {
+                values.put(key, (Boolean) value);
+            }
+            else {
+                values.put(key, (String) value);
+            }
+        }
+
+        try {
+            return resolver.update(valuesUri, values, null, null) == values.size();
+        }
+        catch (RuntimeException e) { // the SDK process died during the call; the cache will retry
+            return false;
+        }
+    }
+}
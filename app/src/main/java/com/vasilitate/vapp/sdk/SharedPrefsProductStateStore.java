@@ -0,0 +1,226 @@
+package com.vasilitate.vapp.sdk;
+
+import android.text.TextUtils;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores each product's state as a single record in the SDK's preferences, through the
+ * process-wide {@link VappStateCache}. This is the default store.
+ * <p/>
+ * Sent SMS counts recorded in the {@link SmsProgressJournal} are applied to this store only, since
+ * the journal position is committed in the same preferences file as the records it describes.
+ */
+final class SharedPrefsProductStateStore implements ProductStateStore {
+
+    private static final String STATE_SUFFIX = "_STATE";
+    private static final String PRODUCT_REGISTRY = VappConfiguration.APP_PREFIX + "PRODUCT_REGISTRY";
+    private static final String CATALOG_FINGERPRINT = VappConfiguration.APP_PREFIX + "CATALOG_FINGERPRINT";
+    private static final String JOURNAL_POSITION = VappConfiguration.APP_PREFIX + "JOURNAL_POSITION";
+    private static final String REGISTRY_SEPARATOR = ",";
+
+    // Legacy per-field product keys, folded into a single ProductState record on first read.
+    private static final String REDEEMED_SUFFIX = "REDEEMED_SUFFIX";
+    private static final String SENT_SMS_COUNT_SUFFIX = "_SENT_SMS_COUNT";
+    private static final String REQUIRED_SMS_COUNT_SUFFIX = "REQUIRED_SMS_COUNT";
+    private static final String CURRENT_DOWNLOAD_SMS_COUNT_SUFFIX = "CURRENT_DOWNLOAD_SMS_COUNT_SUFFIX";
+    private static final String PRODUCT_EXISTS_SUFFIX = "_PRODUCT_EXISTS";
+    private static final String PRODUCT_CANCELLED = VappConfiguration.APP_PREFIX + "PRODUCT_CANCELLED";
+    private static final String SUBSCRIPTION_END_DATE = VappConfiguration.APP_PREFIX + "SUBSCRIPTION_END_DATE";
+    private static final String SUBSCRIPTION_CANCELLED = VappConfiguration.APP_PREFIX + "SUBSCRIPTION_CANCELLED";
+
+    private final VappStateCache cache;
+    private final Map<String, String> stateKeys = new ConcurrentHashMap<>();
+
+    SharedPrefsProductStateStore(VappStateCache cache) {
+        this.cache = cache;
+    }
+
+    @Override public ProductState get(String productId) {
+        String key = getStateKey(productId);
+
+        if (!cache.contains(key)) {
+            migrateLegacyProductKeys(productId, key);
+        }
+        return cache.getProductState(key);
+    }
+
+    @Override public boolean compareAndSet(String productId, ProductState expected, ProductState update) {
+        get(productId); // ensure any legacy keys have been migrated
+        return cache.compareAndSetProductState(getStateKey(productId), expected, update);
+    }
+
+    @Override public boolean compareAndSetAll(Map<String, ProductState> expected,
+                                              Map<String, ProductState> updates) {
+        Map<String, ProductState> expectedByKey = new HashMap<>();
+        Map<String, ProductState> updatesByKey = new HashMap<>();
+
+        for (Map.Entry<String, ProductState> entry : expected.entrySet()) {
+            get(entry.getKey()); // ensure any legacy keys have been migrated
+            expectedByKey.put(getStateKey(entry.getKey()), entry.getValue());
+        }
+        for (Map.Entry<String, ProductState> entry : updates.entrySet()) {
+            updatesByKey.put(getStateKey(entry.getKey()), entry.getValue());
+        }
+        return cache.compareAndSetProductStates(expectedByKey, updatesByKey);
+    }
+
+    @Override public Set<String> getStoredProductIds() {
+        Set<String> productIds = new LinkedHashSet<>(getProductRegistry());
+
+        for (String key : cache.getAll().keySet()) {
+            if (key.startsWith(VappConfiguration.APP_PREFIX) && key.endsWith(STATE_SUFFIX)) {
+                productIds.add(getProductId(key, STATE_SUFFIX));
+            }
+        }
+        return productIds;
+    }
+
+    @Override public Set<String> getProductRegistry() {
+        Set<String> productIds = new LinkedHashSet<>();
+        String registry = cache.getString(PRODUCT_REGISTRY, null);
+
+        if (registry == null) { // created before the registry existed, recover it from stored keys
+            for (String key : cache.getAll().keySet()) {
+                if (!key.startsWith(VappConfiguration.APP_PREFIX)) {
+                    continue;
+                }
+                if (key.endsWith(PRODUCT_EXISTS_SUFFIX)) {
+                    productIds.add(getProductId(key, PRODUCT_EXISTS_SUFFIX));
+                }
+                else if (key.endsWith(STATE_SUFFIX) && cache.getProductState(key).exists()) {
+                    productIds.add(getProductId(key, STATE_SUFFIX));
+                }
+            }
+        }
+        else if (!registry.isEmpty()) {
+            for (String productId : registry.split(REGISTRY_SEPARATOR)) {
+                productIds.add(productId);
+            }
+        }
+        return productIds;
+    }
+
+    @Override public void setProductRegistry(Set<String> productIds) {
+        cache.putString(PRODUCT_REGISTRY, TextUtils.join(REGISTRY_SEPARATOR, productIds));
+    }
+
+    @Override public long getCatalogFingerprint() {
+        return cache.getLong(CATALOG_FINGERPRINT, 0);
+    }
+
+    @Override public void setCatalogFingerprint(long fingerprint) {
+        cache.putLong(CATALOG_FINGERPRINT, fingerprint);
+    }
+
+    @Override public void flush() {
+        cache.flush();
+    }
+
+    @Override public void clear() {
+        for (String productId : getStoredProductIds()) {
+            cache.remove(getStateKey(productId));
+        }
+        cache.remove(PRODUCT_REGISTRY);
+        cache.remove(CATALOG_FINGERPRINT);
+        cache.flush();
+    }
+
+    /**
+     * Applies a sent count which has been recorded in the {@link SmsProgressJournal}. The record and
+     * the journal position are updated together, so that whenever they are committed the position
+     * marks exactly which journal records the committed state already includes.
+     */
+    void applyJournalledSentSmsCount(String productId, int count, long journalPosition) {
+        String key = getStateKey(productId);
+        get(productId); // ensure any legacy keys have been migrated
+
+        synchronized (cache) {
+            ProductState current = cache.getProductState(key);
+            cache.compareAndSetProductStateDeferred(key, current, current.withSentSmsCount(count));
+            cache.putLongDeferred(JOURNAL_POSITION, journalPosition);
+        }
+    }
+
+    /**
+     * Commits all state together with a new journal position, waiting until it is on disk. Must
+     * not be called on the main thread.
+     */
+    void commitJournalPosition(long journalPosition) {
+        cache.putLong(JOURNAL_POSITION, journalPosition);
+        cache.flush();
+    }
+
+    /**
+     * @return the journal position committed alongside the current records.
+     */
+    long getJournalPosition() {
+        return cache.getLong(JOURNAL_POSITION, 0);
+    }
+
+    private String getStateKey(String productId) {
+        String key = stateKeys.get(productId);
+
+        if (key == null) {
+            key = getKeyForProduct(productId, STATE_SUFFIX);
+            stateKeys.put(productId, key);
+        }
+        return key;
+    }
+
+    /**
+     * Folds the separate keys used by earlier SDK versions into a single state record.
+     */
+    private synchronized void migrateLegacyProductKeys(String productId, String stateKey) {
+        if (cache.contains(stateKey)) {
+            return;
+        }
+
+        String[] legacyKeys = {
+                getKeyForProduct(productId, REDEEMED_SUFFIX),
+                getKeyForProduct(productId, SENT_SMS_COUNT_SUFFIX),
+                getKeyForProduct(productId, REQUIRED_SMS_COUNT_SUFFIX),
+                getKeyForProduct(productId, CURRENT_DOWNLOAD_SMS_COUNT_SUFFIX),
+                getKeyForProduct(productId, PRODUCT_EXISTS_SUFFIX),
+                getKeyForProduct(productId, PRODUCT_CANCELLED),
+                getKeyForProduct(productId, SUBSCRIPTION_END_DATE),
+                getKeyForProduct(productId, SUBSCRIPTION_CANCELLED)
+        };
+
+        boolean hasLegacyState = false;
+
+        for (String key : legacyKeys) {
+            hasLegacyState |= cache.contains(key);
+        }
+
+        if (hasLegacyState) {
+            ProductState state = new ProductState(
+                    cache.getInt(legacyKeys[0], 0),
+                    cache.getInt(legacyKeys[1], 0),
+                    cache.getInt(legacyKeys[2], 0),
+                    cache.getInt(legacyKeys[3], 0),
+                    cache.getBoolean(legacyKeys[4], false),
+                    cache.getBoolean(legacyKeys[5], false),
+                    cache.getLong(legacyKeys[6], 0),
+                    cache.getBoolean(legacyKeys[7], false));
+
+            cache.compareAndSetProductState(stateKey, ProductState.EMPTY, state);
+
+            for (String key : legacyKeys) {
+                cache.remove(key);
+            }
+        }
+    }
+
+    private static String getProductId(String key, String suffix) {
+        return key.substring(VappConfiguration.APP_PREFIX.length(), key.length() - suffix.length());
+    }
+
+    private static String getKeyForProduct(String productId, String suffix) {
+        return VappConfiguration.APP_PREFIX + productId + suffix;
+    }
+}
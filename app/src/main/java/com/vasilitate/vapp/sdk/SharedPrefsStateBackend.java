@@ -0,0 +1,47 @@
+package com.vasilitate.vapp.sdk;
+
+import android.content.SharedPreferences;
+
+import java.util.Map;
+
+/**
+ * Stores the SDK's state in its SharedPreferences, in the process which owns them.
+ */
+final class SharedPrefsStateBackend implements VappStateBackend {
+
+    private final SharedPreferences sharedPrefs;
+
+    SharedPrefsStateBackend(SharedPreferences sharedPrefs) {
+        this.sharedPrefs = sharedPrefs;
+    }
+
+    @Override public Map<String, ?> loadAll() {
+        return sharedPrefs.getAll();
+    }
+
+    @Override public boolean commit(Map<String, Object> batch) {
+        SharedPreferences.Editor editor = sharedPrefs.edit();
+
+        for (Map.Entry<String, Object> entry : batch.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+
+            if (value == null) {
+                editor.remove(key);
+            }
+            else if (value instanceof Integer) {
+                editor.putInt(key, (Integer) value);
+            }
+            else if (value instanceof Long) {
+                editor.putLong(key, (Long) value);
+            }
+            else if (value instanceof Boolean) {
+                editor.putBoolean(key, (Boolean) value);
+            }
+            else {
+                editor.putString(key, (String) value);
+            }
+        }
+        return editor.commit();
+    }
+}
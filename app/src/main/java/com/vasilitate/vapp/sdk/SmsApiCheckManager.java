@@ -2,49 +2,57 @@ package com.vasilitate.vapp.sdk;
 
 import android.content.Context;
 import android.os.AsyncTask;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.Pair;
 
 import com.vasilitate.vapp.sdk.network.RemoteNetworkTaskListener;
 import com.vasilitate.vapp.sdk.network.VappRestClient;
 import com.vasilitate.vapp.sdk.network.request.GetHniStatusRequestTask;
 import com.vasilitate.vapp.sdk.network.request.GetReceivedStatusRequestTask;
-import com.vasilitate.vapp.sdk.network.request.PostLogsBody;
-import com.vasilitate.vapp.sdk.network.request.PostLogsRequestTask;
 import com.vasilitate.vapp.sdk.network.response.GetHniStatusResponse;
 import com.vasilitate.vapp.sdk.network.response.GetReceivedStatusResponse;
-import com.vasilitate.vapp.sdk.network.response.PostLogsResponse;
+
+import static com.vasilitate.vapp.sdk.network.response.BaseResponse.HNI_STATUS_BLACKLISTED;
+import static com.vasilitate.vapp.sdk.network.response.BaseResponse.HNI_STATUS_UNKNOWN;
+import static com.vasilitate.vapp.sdk.network.response.BaseResponse.HNI_STATUS_WHITELISTED;
 
 /**
  * Performs API calls to the VAPP server on a background thread, and calls delegate methods when an
  * error/response is received.
+ * <p/>
+ * HNI status results are stored per network and reused for as long as {@link VappHniStatusTtl}
+ * allows, so that repeat purchases on the same network can start sending without waiting for the
+ * server.
  */
 class SmsApiCheckManager {
 
     private GetHniStatusRequestTask statusRequestTask;
-    private PostLogsRequestTask postLogsTask;
+    private GetHniStatusRequestTask statusRefreshTask;
     private GetReceivedStatusRequestTask receivedStatusTask;
 
     private final RemoteNetworkTaskListener<GetHniStatusResponse> hniStatusResponseListener;
     private final RemoteNetworkTaskListener<GetReceivedStatusResponse> receivedStatusResponseListener;
-    private final RemoteNetworkTaskListener<PostLogsResponse> postLogsResponseListener;
 
     private final Context context;
     private final VappRestClient restClient;
 
     SmsApiCheckManager(VappRestClient restClient, Context context,
                               RemoteNetworkTaskListener<GetHniStatusResponse> hniStatusResponseListener,
-                              RemoteNetworkTaskListener<GetReceivedStatusResponse> receivedStatusResponseListener,
-                              RemoteNetworkTaskListener<PostLogsResponse> postLogsResponseListener) {
+                              RemoteNetworkTaskListener<GetReceivedStatusResponse> receivedStatusResponseListener) {
 
         this.restClient = restClient;
         this.context = context.getApplicationContext();
         this.hniStatusResponseListener = hniStatusResponseListener;
         this.receivedStatusResponseListener = receivedStatusResponseListener;
-        this.postLogsResponseListener = postLogsResponseListener;
     }
 
     /**
      * Checks that the HNI status is whitelisted prior to sending the first SMS, and only proceeds
-     * to send messages if this is true.
+     * to send messages if this is true. A network which the billing routes rule out is treated as
+     * blacklisted without contacting the server. A stored result which is still fresh enough is delivered
+     * straight away; if it is whitelisted and has expired but is within the stale period, it is also
+     * refreshed in the background. Any other expired result waits for the server.
      */
     void performHniStatusCheck() {
         String mcc = Vapp.getMobileCountryCode(context);
@@ -54,23 +62,89 @@ class SmsApiCheckManager {
             statusRequestTask.cancel(true);
         }
 
+        if (!VappRouteTable.get(context).isSupported(Vapp.getOriginatingNetwork(context))) {
+            Log.d(Vapp.TAG, "Network is not in any billing route, skipping HNI status check");
+            hniStatusResponseListener.onRequestSuccess(new GetHniStatusResponse(HNI_STATUS_BLACKLISTED, null));
+            return;
+        }
+
+        Pair<String, Long> stored = isCacheable(mcc, mnc) ? VappConfiguration.getHniStatus(context, mcc, mnc) : null;
+
+        if (stored != null) {
+            VappHniStatusTtl ttl = VappConfiguration.getHniStatusTtl(context);
+            long age = System.currentTimeMillis() - stored.second;
+            long maxAge = getTtlMs(ttl, stored.first);
+            // only a whitelisted result is used once expired, so a network is never refused on stale data
+            long staleMs = HNI_STATUS_WHITELISTED.equals(stored.first) ? ttl.getStaleMs() : 0;
+
+            if (age >= 0 && age < maxAge + staleMs) { // negative if the clock has gone back
+                if (age >= maxAge) {
+                    refreshHniStatus(mcc, mnc);
+                }
+                Log.d(Vapp.TAG, String.format("Using HNI status checked %ds ago", age / 1000));
+                hniStatusResponseListener.onRequestSuccess(new GetHniStatusResponse(stored.first, null));
+                return;
+            }
+        }
+
         statusRequestTask = new GetHniStatusRequestTask(restClient, mcc, mnc);
-        statusRequestTask.setRequestListener(hniStatusResponseListener);
+        statusRequestTask.setRequestListener(storingHniStatus(mcc, mnc, hniStatusResponseListener));
         statusRequestTask.execute();
     }
 
     /**
-     * Posts locally logged SMSs to the VAPP backend
-     * @param body the locally logged messages
+     * Fetches a network's HNI status for later purchases, unless it is already being fetched.
      */
-    void performPostLogsCall(PostLogsBody body) {
-        if (postLogsTask != null && postLogsTask.getStatus() == AsyncTask.Status.RUNNING) {
-            postLogsTask.cancel(true);
+    private void refreshHniStatus(String mcc, String mnc) {
+        if (statusRefreshTask == null || statusRefreshTask.getStatus() == AsyncTask.Status.FINISHED) {
+            statusRefreshTask = new GetHniStatusRequestTask(restClient, mcc, mnc);
+            statusRefreshTask.setRequestListener(storingHniStatus(mcc, mnc, null));
+            statusRefreshTask.execute();
         }
+    }
 
-        postLogsTask = new PostLogsRequestTask(restClient, body);
-        postLogsTask.setRequestListener(postLogsResponseListener);
-        postLogsTask.execute();
+    /**
+     * @return a listener which stores each status returned for the network, then passes it on to
+     * the delegate, if there is one.
+     */
+    private RemoteNetworkTaskListener<GetHniStatusResponse> storingHniStatus(
+            final String mcc, final String mnc, final RemoteNetworkTaskListener<GetHniStatusResponse> delegate) {
+
+        return new RemoteNetworkTaskListener<GetHniStatusResponse>() {
+            @Override public void onRequestSuccess(GetHniStatusResponse result) {
+                String status = result.getStatus();
+
+                if (isCacheable(mcc, mnc) && (HNI_STATUS_WHITELISTED.equals(status)
+                        || HNI_STATUS_BLACKLISTED.equals(status) || HNI_STATUS_UNKNOWN.equals(status))) {
+                    VappConfiguration.setHniStatus(context, mcc, mnc, status, System.currentTimeMillis());
+                }
+                if (delegate != null) {
+                    delegate.onRequestSuccess(result);
+                }
+            }
+
+            @Override public void onRequestFailure() {
+                if (delegate != null) {
+                    delegate.onRequestFailure();
+                }
+            }
+        };
+    }
+
+    private static boolean isCacheable(String mcc, String mnc) {
+        return !TextUtils.isEmpty(mcc) && !TextUtils.isEmpty(mnc);
+    }
+
+    private static long getTtlMs(VappHniStatusTtl ttl, String status) {
+        if (HNI_STATUS_WHITELISTED.equals(status)) {
+            return ttl.getWhitelistedTtlMs();
+        }
+        else if (HNI_STATUS_BLACKLISTED.equals(status)) {
+            return ttl.getBlacklistedTtlMs();
+        }
+        else {
+            return ttl.getUnknownTtlMs();
+        }
     }
 
     /**
@@ -0,0 +1,288 @@
+package com.vasilitate.vapp.sdk;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Persists delivered SMSs on a single background thread, so that the main looper never waits on
+ * disk. Each delivery is recorded as one unit: the SMS log entry, then the product's payment
+ * progress. The progress may not be stored in SQLite, so the two cannot share a transaction;
+ * instead, if the process dies between them, the resumed purchase records the delivery again, and
+ * its log entry is only inserted if it is not already present. Deliveries which arrive while a
+ * previous batch is being written are grouped, their log entries inserted in a single
+ * transaction, and their upload scheduled with the {@link VappLogShipper}.
+ * <p/>
+ * The log is compacted to the {@link VappLogRetention} limits once a tenth of the row or byte limit
+ * has been logged since the last compaction, or {@link #COMPACT_INTERVAL_MS} has passed, so it may
+ * briefly exceed a limit by up to a tenth. Pending logs are counted only when an upload might be
+ * due, once {@link VappLogShipper#BATCH_SIZE} have been logged since the last count.
+ */
+final class SmsPersistenceQueue {
+
+    /**
+     * Notified on the main thread once a delivery has been persisted.
+     */
+    interface Callback {
+        void onPersisted();
+    }
+
+    /**
+     * The longest time between compactions while logs are being written, so that logs past the
+     * maximum age are removed.
+     */
+    static final long COMPACT_INTERVAL_MS = 60 * 60 * 1000;
+
+    private static final int COMPACT_FRACTION = 10; // compact once 1/10th of a limit has been logged
+
+    private static SmsPersistenceQueue instance;
+
+    private final Context context;
+    private final VappDbHelper dbHelper;
+    private final ExecutorService writer;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Delivery> pending = new ArrayList<>();
+
+    private boolean drainScheduled;
+
+    // accessed on the writer thread only
+    private int rowsSinceCompaction;
+    private long bytesSinceCompaction;
+    private long lastCompactionTime; // elapsed realtime, or 0 if not yet compacted by this process
+    private long pendingEstimate; // the logs which may be pending, and not yet due to be uploaded
+
+    private final Runnable drainTask = new Runnable() {
+        @Override public void run() {
+            drain();
+        }
+    };
+
+    private final Runnable compactTask = new Runnable() {
+        @Override public void run() {
+            compactLogs();
+        }
+    };
+
+    private SmsPersistenceQueue(Context context) {
+        this.context = context;
+        this.dbHelper = VappDbHelper.get(context);
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "vapp-sms-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param context the current context
+     * @return the process-wide queue.
+     */
+    static synchronized SmsPersistenceQueue get(Context context) {
+        if (instance == null) {
+            instance = new SmsPersistenceQueue(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Queues a delivered SMS to be logged, along with the product's new payment progress.
+     *
+     * @param sms       the delivered sms
+     * @param product   the product the sms paid for
+     * @param sentCount the number of SMSs now sent for the product
+     * @param resumed   true if the delivery may already have been logged, before the purchase was
+     *                  interrupted
+     * @param callback  notified on the main thread once both have been persisted, or null
+     */
+    void recordDelivered(VappSms sms, VappProduct product, int sentCount, boolean resumed, Callback callback) {
+        synchronized (pending) {
+            pending.add(new Delivery(sms, product, sentCount, resumed, callback));
+
+            if (!drainScheduled) {
+                drainScheduled = true;
+                writer.execute(drainTask);
+            }
+        }
+    }
+
+    /**
+     * Compacts the log to the retention limits in the background.
+     */
+    void compact() {
+        writer.execute(compactTask);
+    }
+
+    /**
+     * Compacts the log in the background, then uploads any logs still pending. Must be called on
+     * the main thread, of the process which owns the SMS logs.
+     */
+    void compactAndUpload() {
+        writer.execute(new Runnable() {
+            @Override public void run() {
+                compactLogs();
+
+                try {
+                    if (!dbHelper.hasPendingSmsLogs()) {
+                        return;
+                    }
+                }
+                catch (SQLiteException e) {
+                    Log.e(Vapp.TAG, "Failed to check for pending SMS logs", e);
+                    return;
+                }
+
+                mainHandler.post(new Runnable() {
+                    @Override public void run() {
+                        Log.d(Vapp.TAG, "Attempting upload of locally stored sent messages!");
+                        VappLogShipper.flush(context, null);
+                    }
+                });
+            }
+        });
+    }
+
+    private void drain() {
+        List<Delivery> batch;
+
+        synchronized (pending) {
+            batch = new ArrayList<>(pending);
+            pending.clear();
+            drainScheduled = false;
+        }
+
+        insertLogs(batch);
+
+        // Progress is recorded once the logs have committed, and outside their transaction, so the
+        // DB connection is never held while waiting on the product state locks.
+        Map<VappProduct, Integer> progress = new LinkedHashMap<>();
+
+        for (Delivery delivery : batch) {
+            progress.put(delivery.product, delivery.sentCount); // the latest count for a product wins
+        }
+        for (Map.Entry<VappProduct, Integer> entry : progress.entrySet()) {
+            VappConfiguration.recordSentSmsCountForProduct(context, entry.getKey(), entry.getValue());
+        }
+
+        for (final Delivery delivery : batch) {
+            if (delivery.callback != null) {
+                mainHandler.post(new Runnable() {
+                    @Override public void run() {
+                        delivery.callback.onPersisted();
+                    }
+                });
+            }
+        }
+        if (isCompactionDue()) {
+            compactLogs(); // once the pipeline has been released
+        }
+        scheduleUpload(batch.size());
+    }
+
+    private void insertLogs(List<Delivery> batch) {
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            db.beginTransaction();
+
+            try {
+                for (Delivery delivery : batch) {
+                    String productId = delivery.product.getProductId();
+
+                    if (delivery.resumed && dbHelper.isLastSmsLog(delivery.sms, productId)) {
+                        continue; // logged before the process died, but its progress was not recorded
+                    }
+                    dbHelper.insertSmsLogDbRecord(delivery.sms, productId);
+                    rowsSinceCompaction++;
+                    bytesSinceCompaction += VappDbHelper.estimateSmsLogBytes(delivery.sms, productId);
+                }
+                db.setTransactionSuccessful();
+            }
+            finally {
+                db.endTransaction();
+            }
+        }
+        catch (SQLiteException e) {
+            Log.e(Vapp.TAG, "Failed to log " + batch.size() + " delivered SMSs", e);
+        }
+    }
+
+    private boolean isCompactionDue() {
+        VappLogRetention retention = VappConfiguration.getSmsLogRetention(context);
+
+        return lastCompactionTime == 0
+                || rowsSinceCompaction >= Math.max(retention.getMaxRows() / COMPACT_FRACTION, 1)
+                || bytesSinceCompaction >= retention.getMaxBytes() / COMPACT_FRACTION
+                || SystemClock.elapsedRealtime() - lastCompactionTime >= COMPACT_INTERVAL_MS;
+    }
+
+    private void compactLogs() {
+        rowsSinceCompaction = 0;
+        bytesSinceCompaction = 0;
+        lastCompactionTime = SystemClock.elapsedRealtime();
+
+        try {
+            int dropped = dbHelper.compactSmsLogs(VappConfiguration.getSmsLogRetention(context),
+                    System.currentTimeMillis());
+
+            if (dropped > 0) {
+                Log.w(Vapp.TAG, "Log retention limit reached, dropped " + dropped + " SMS logs awaiting upload");
+            }
+        }
+        catch (SQLiteException e) {
+            Log.e(Vapp.TAG, "Failed to compact SMS logs", e);
+        }
+    }
+
+    /**
+     * Schedules the upload of newly logged SMSs, counting the pending logs only if the estimate
+     * says a full batch may be waiting.
+     */
+    private void scheduleUpload(int logged) {
+        pendingEstimate += logged;
+
+        if (pendingEstimate >= VappLogShipper.BATCH_SIZE) {
+            try {
+                pendingEstimate = dbHelper.countPendingSmsLogs();
+            }
+            catch (SQLiteException e) {
+                Log.e(Vapp.TAG, "Failed to count pending SMS logs", e);
+            }
+
+            if (pendingEstimate >= VappLogShipper.BATCH_SIZE) { // the upload is due now
+                VappLogShipper.onLogsWritten(context, pendingEstimate);
+                pendingEstimate = 0; // so that the next batch is counted afresh
+                return;
+            }
+        }
+        VappLogShipper.onLogsWritten(context, logged);
+    }
+
+    private static final class Delivery {
+        final VappSms sms;
+        final VappProduct product;
+        final int sentCount;
+        final boolean resumed;
+        final Callback callback;
+
+        Delivery(VappSms sms, VappProduct product, int sentCount, boolean resumed, Callback callback) {
+            this.sms = sms;
+            this.product = product;
+            this.sentCount = sentCount;
+            this.resumed = resumed;
+            this.callback = callback;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.vasilitate.vapp.sdk;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A memory-mapped, append-only journal of SMS progress. Each delivered SMS is recorded as an 8 byte
+ * record rather than a SharedPreferences commit; writes to the mapping survive the process being
+ * killed, so progress is as durable as before at a fraction of the cost.
+ * <p/>
+ * The journal's read position is stored alongside the product state records and is committed with
+ * them, so only records appended after the last commit are replayed when the process restarts.
+ * Once the journal is half full it is compacted on the state's writer thread: the current state is
+ * committed, and only once it is on disk is the journal started again under a new generation. While
+ * the compaction is committing, or if the journal fills up before it completes, progress is not
+ * journalled and must be written to the state records directly.
+ * <p/>
+ * Records identify products by the hash of their id, so the progress of a product whose id's hash
+ * is shared by another registered product (such as "Aa" and "BB") is never journalled, as it could
+ * not be attributed on replay. Neither is that of a product missing from the registry.
+ * <pre>
+ * header:  [int magic][int generation]
+ * record:  [int product id hash][short sent count][byte check][byte commit marker]
+ * </pre>
+ */
+final class SmsProgressJournal {
+
+    private static final String FILE_NAME = "vapp_progress.journal";
+    private static final int JOURNAL_SIZE = 4096;
+    private static final int MAGIC = 0x56415050; // "VAPP"
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 8;
+    private static final byte COMMIT_MARKER = 0x5A;
+    private static final int COMPACT_OFFSET = JOURNAL_SIZE / 2;
+
+    private static SmsProgressJournal instance;
+
+    private final Context context;
+    private final MappedByteBuffer buffer;
+    private int generation;
+    private int writeOffset;
+    private boolean compactionScheduled;
+    private boolean compacting;
+
+    private Set<String> registeredIds = new HashSet<>();
+    private final Map<Integer, String> idsByHash = new HashMap<>();
+    private final Set<Integer> ambiguousHashes = new HashSet<>();
+
+    private SmsProgressJournal(Context context, MappedByteBuffer buffer) {
+        this.context = context;
+        this.buffer = buffer;
+
+        if (buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, 0);
+        }
+        generation = buffer.getInt(4);
+        writeOffset = HEADER_SIZE;
+
+        while (writeOffset + RECORD_SIZE <= JOURNAL_SIZE && readRecord(writeOffset) != null) {
+            writeOffset += RECORD_SIZE;
+        }
+    }
+
+    /**
+     * @param context the current context
+     * @return the process-wide journal, or null if it could not be mapped, in which case progress
+     * should be written to the state records directly.
+     */
+    static synchronized SmsProgressJournal get(Context context) {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext();
+            File file = new File(appContext.getFilesDir(), FILE_NAME);
+            RandomAccessFile raf = null;
+
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                raf.setLength(JOURNAL_SIZE);
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, JOURNAL_SIZE);
+                instance = new SmsProgressJournal(appContext, buffer);
+            }
+            catch (IOException e) {
+                Log.w(Vapp.TAG, "Unable to map SMS progress journal", e);
+            }
+            finally {
+                if (raf != null) {
+                    try {
+                        raf.close(); // the mapping remains valid once the file is closed
+                    }
+                    catch (IOException e) {
+                        Log.w(Vapp.TAG, "Error closing SMS progress journal", e);
+                    }
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Records the sent SMS count for a product, and applies it to the in-memory state record. The
+     * state record itself is committed with the next flush or compaction.
+     *
+     * @param productId    the product id
+     * @param sentSmsCount the new sent count
+     * @param productIds   the ids of all registered products
+     * @return false if the count was not recorded, as the journal is being compacted or is full, or
+     * the product cannot be identified by its hash, in which case it must be written to the state
+     * record directly.
+     */
+    boolean append(String productId, int sentSmsCount, Set<String> productIds) {
+        VappStateCache cache = VappStateCache.get(context); // loaded before taking the journal lock
+
+        synchronized (this) {
+            if (compacting || writeOffset + RECORD_SIZE > JOURNAL_SIZE) {
+                return false;
+            }
+            if (!productIds.equals(registeredIds)) {
+                registerProductIds(productIds);
+            }
+
+            int hash = productId.hashCode();
+
+            if (ambiguousHashes.contains(hash) || !productId.equals(idsByHash.get(hash))) {
+                return false;
+            }
+            buffer.putInt(writeOffset, hash);
+            buffer.putShort(writeOffset + 4, (short) sentSmsCount);
+            buffer.put(writeOffset + 6, checkByte(hash, sentSmsCount));
+            buffer.put(writeOffset + 7, COMMIT_MARKER); // written last, so a torn record is never read
+            writeOffset += RECORD_SIZE;
+
+            VappConfiguration.applyJournalledSentSmsCount(context, productId, sentSmsCount,
+                    packPosition(generation, writeOffset));
+
+            if (writeOffset >= COMPACT_OFFSET && !compactionScheduled) {
+                compactionScheduled = true;
+
+                cache.executeOnWriter(new Runnable() {
+                    @Override public void run() {
+                        compact();
+                    }
+                });
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Re-applies any records which were appended after the last state commit. Should be called once,
+     * when state is first loaded into the process.
+     *
+     * @param committedPosition the journal position committed alongside the state records
+     * @param productIds        the ids of all registered products
+     */
+    synchronized void replay(long committedPosition, Set<String> productIds) {
+        registerProductIds(productIds);
+
+        if ((int) (committedPosition >>> 32) != generation) {
+            return; // the journal was compacted after this position was committed, nothing to replay
+        }
+
+        Map<String, Integer> latestCounts = new HashMap<>();
+
+        int startOffset = Math.max(HEADER_SIZE, (int) committedPosition);
+
+        for (int offset = startOffset; offset < writeOffset; offset += RECORD_SIZE) {
+            int[] record = readRecord(offset);
+            // never appended while ambiguous, and any record from before the registry changed was
+            // committed with it, so an ambiguous hash is only skipped for safety
+            String productId = ambiguousHashes.contains(record[0]) ? null : idsByHash.get(record[0]);
+
+            if (productId != null) {
+                latestCounts.put(productId, record[1]);
+            }
+        }
+
+        for (Map.Entry<String, Integer> entry : latestCounts.entrySet()) {
+            Log.d(Vapp.TAG, "Restoring journalled SMS progress: " + entry.getKey() + " - " + entry.getValue());
+            VappConfiguration.applyJournalledSentSmsCount(context, entry.getKey(), entry.getValue(),
+                    packPosition(generation, writeOffset));
+        }
+    }
+
+    /**
+     * Commits the current state and empties the journal. Must not be called on the main thread, as
+     * it waits for the commit.
+     */
+    void compact() {
+        int nextGeneration;
+
+        synchronized (this) { // from here on, progress is written to the state records directly
+            compacting = true;
+            nextGeneration = generation + 1;
+        }
+
+        try {
+            VappConfiguration.commitJournalPosition(context, packPosition(nextGeneration, HEADER_SIZE));
+        }
+        finally {
+            synchronized (this) {
+                // Only now that the state is on disk can the records be discarded. A crash from
+                // here on leaves the old generation in the header, which no longer matches the
+                // committed position, so the stale records are ignored.
+                for (int offset = HEADER_SIZE; offset < JOURNAL_SIZE; offset += RECORD_SIZE) {
+                    buffer.putLong(offset, 0);
+                }
+                buffer.putInt(4, nextGeneration);
+                generation = nextGeneration;
+                writeOffset = HEADER_SIZE;
+                compacting = false;
+                compactionScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Indexes the registered products by the hash of their id, noting any hash which more than one
+     * id shares.
+     */
+    private void registerProductIds(Set<String> productIds) {
+        registeredIds = new HashSet<>(productIds);
+        idsByHash.clear();
+        ambiguousHashes.clear();
+
+        for (String productId : registeredIds) {
+            String other = idsByHash.put(productId.hashCode(), productId);
+
+            if (other != null) {
+                ambiguousHashes.add(productId.hashCode());
+                Log.w(Vapp.TAG, "Product ids " + other + " and " + productId
+                        + " share a hash, so their SMS progress will not be journalled");
+            }
+        }
+    }
+
+    private int[] readRecord(int offset) {
+        if (buffer.get(offset + 7) != COMMIT_MARKER) {
+            return null;
+        }
+        int hash = buffer.getInt(offset);
+        int count = buffer.getShort(offset + 4);
+        return buffer.get(offset + 6) == checkByte(hash, count) ? new int[]{hash, count} : null;
+    }
+
+    private static byte checkByte(int hash, int count) {
+        int value = hash ^ (hash >>> 8) ^ (hash >>> 16) ^ (hash >>> 24) ^ count ^ (count >>> 8);
+        return (byte) (value == COMMIT_MARKER ? ~value : value);
+    }
+
+    private static long packPosition(int generation, int offset) {
+        return ((long) generation << 32) | offset;
+    }
+}
@@ -8,6 +8,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.CountDownTimer;
+import android.os.Handler;
 import android.support.annotation.Nullable;
 import android.telephony.SmsManager;
 import android.util.Log;
@@ -63,8 +64,16 @@ class SmsSendManager {
         void onSmsPurchaseCompleted();
     }
 
+    /**
+     * How long to wait for the delivery report of an SMS which was sent before the purchase was
+     * interrupted, before treating its delivery as failed.
+     */
+    static final long RESUMED_DELIVERY_TIMEOUT_MS = 2 * 60 * 1000;
+
     private VappProduct currentProduct;
     private VappSms currentSmsMessage;
+    private VappSms resumedSmsMessage;
+    private byte resumedSmsEvent;
 
     private Stack<Integer> sendIntervals;
     private int secondsRemaining;
@@ -79,19 +88,36 @@ class SmsSendManager {
     private final WeakReference<Service> serviceRef;
 
     private final SmsSendListener sendListener;
+    private final PurchaseJournal journal;
     private final PendingIntent sentPI;
     private final PendingIntent deliveredPI;
-    private final VappDbHelper vappDbHelper;
     private SmsSentReceiver smsSentReceiver;
     private SmsDeliveredReceiver smsDeliveredReceiver;
 
     private boolean isFirstInSequence = true;
 
     private boolean completed = false;
+    private boolean destroyed = false;
 
+    private final Handler deliveryTimeoutHandler = new Handler();
+    private final Runnable resumedDeliveryTimeout = new Runnable() {
+        @Override public void run() {
+            Log.d(Vapp.TAG, "No delivery report for the SMS sent before the purchase was interrupted");
+
+            if (sendListener != null && !destroyed) {
+                sendListener.onSmsDeliveryFailure();
+            }
+        }
+    };
+
+    /**
+     * @param resumePosition the point reached by an interrupted purchase of the product, or null
+     *                       if this is a new purchase
+     */
     SmsSendManager(VappProduct currentProduct, boolean testMode,
                    PendingIntent sentPI, PendingIntent deliveredPI,
-                   Service context, SmsSendListener sendListener) {
+                   Service context, SmsSendListener sendListener,
+                   @Nullable PurchaseJournal.Position resumePosition) {
 
         this.currentProduct = currentProduct;
         this.testMode = testMode;
@@ -101,9 +127,14 @@ class SmsSendManager {
         this.serviceRef = new WeakReference<>(context);
         this.sendListener = sendListener;
 
-        vappDbHelper = new VappDbHelper(this.context);
         totalSMSCount = VappConfiguration.getCurrentDownloadSmsCountForProduct(context, currentProduct);
         currentSmsIndex = Vapp.getSMSPaymentProgress(context, currentProduct);
+        journal = PurchaseJournal.get(this.context);
+
+        if (resumePosition != null && resumePosition.sms != null && resumePosition.smsIndex == currentSmsIndex) {
+            resumedSmsMessage = resumePosition.sms; // generated, but not recorded as delivered
+            resumedSmsEvent = resumePosition.smsEvent;
+        }
         initialiseRandomSendIntervals();
     }
 
@@ -200,7 +231,14 @@ class SmsSendManager {
      */
     private void sendSMS() {
         try {
-            currentSmsMessage = Vapp.generateSmsForProduct(context, totalSMSCount, currentSmsIndex);
+            if (resumedSmsMessage != null) { // resend the same SMS, so the server can recognise a duplicate
+                currentSmsMessage = resumedSmsMessage;
+                resumedSmsMessage = null;
+            }
+            else {
+                currentSmsMessage = Vapp.generateSmsForProduct(context, totalSMSCount, currentSmsIndex);
+                journal.recordGenerated(currentProduct.getProductId(), currentSmsIndex, currentSmsMessage);
+            }
             String message = currentSmsMessage.toString();
             Log.d(Vapp.TAG, "Send SMS to " + currentSmsMessage.getDeliveryNumber() + ": " + message);
 
@@ -226,19 +264,37 @@ class SmsSendManager {
 
     /**
      * Notify the manager that an SMS has been successfully delivered, and that it should update
-     * the DB records and check whether the purchase has been completed.
+     * the DB records and check whether the purchase has been completed. The records are written in
+     * the background.
+     *
+     * @param callback notified on the main thread once the records have been persisted
      */
-    void notifySmsDelivered() {
-        vappDbHelper.insertSmsLogDbRecord(currentSmsMessage);
+    void notifySmsDelivered(SmsPersistenceQueue.Callback callback) {
+        recordDelivered(false, callback);
+    }
+
+    private void recordDelivered(boolean resumed, final SmsPersistenceQueue.Callback callback) {
+        final String productId = currentProduct.getProductId();
+        final int deliveredIndex = currentSmsIndex;
+        journal.record(PurchaseJournal.SMS_DELIVERED, productId, deliveredIndex);
 
         // The SMS has been delivered so move onto the next one (if
         // we have not reached the end).
         currentSmsIndex++; // Move onto the next message...
-        VappConfiguration.setSentSmsCountForProduct(context, currentProduct, currentSmsIndex);
 
-        if (hasFinishedPurchase()) {
-            completeSmsPurchase();
-        }
+        SmsPersistenceQueue.get(context).recordDelivered(currentSmsMessage, currentProduct, currentSmsIndex, resumed,
+                new SmsPersistenceQueue.Callback() {
+                    @Override public void onPersisted() {
+                        journal.record(PurchaseJournal.SMS_LOGGED, productId, deliveredIndex);
+
+                        if (hasFinishedPurchase()) {
+                            completeSmsPurchase();
+                        }
+                        if (!destroyed) { // the service may have stopped while the records were written
+                            callback.onPersisted();
+                        }
+                    }
+                });
     }
 
     /**
@@ -249,12 +305,15 @@ class SmsSendManager {
         if (countDownTimer != null) {
             countDownTimer.cancel();
         }
+        deliveryTimeoutHandler.removeCallbacks(resumedDeliveryTimeout);
     }
 
     /**
-     * Closes the DB connection
+     * Unregisters the broadcast receivers, and stops any further callbacks to the listener
      */
     void destroy() {
+        destroyed = true;
+        deliveryTimeoutHandler.removeCallbacks(resumedDeliveryTimeout);
         Service service = serviceRef.get();
 
         if (service != null && smsSentReceiver != null) {
@@ -275,6 +334,48 @@ class SmsSendManager {
         return isFirstInSequence;
     }
 
+    /**
+     * @return true if the SMS at the current index was delivered before the purchase was
+     * interrupted, so should be recorded as delivered rather than sent again.
+     */
+    boolean hasUnrecordedDelivery() {
+        return resumedSmsMessage != null && resumedSmsEvent >= PurchaseJournal.SMS_DELIVERED;
+    }
+
+    /**
+     * @return true if the SMS at the current index was sent, but not known to be delivered, before
+     * the purchase was interrupted, so its delivery report should be waited for rather than the
+     * SMS sent again.
+     */
+    boolean hasUndeliveredSms() {
+        return resumedSmsMessage != null && resumedSmsEvent == PurchaseJournal.SMS_SENT;
+    }
+
+    /**
+     * Waits for the delivery report of the SMS identified by {@link #hasUndeliveredSms()}, which is
+     * credited as usual if it is delivered. If no report arrives within
+     * {@link #RESUMED_DELIVERY_TIMEOUT_MS}, as it may have arrived while the process was not
+     * running, the delivery is treated as failed.
+     */
+    void awaitResumedDelivery() {
+        currentSmsMessage = resumedSmsMessage;
+        resumedSmsMessage = null;
+        isFirstInSequence = false;
+        deliveryTimeoutHandler.postDelayed(resumedDeliveryTimeout, RESUMED_DELIVERY_TIMEOUT_MS);
+    }
+
+    /**
+     * Records the SMS identified by {@link #hasUnrecordedDelivery()} as delivered.
+     *
+     * @param callback notified on the main thread once the records have been persisted
+     */
+    void recordResumedDelivery(SmsPersistenceQueue.Callback callback) {
+        currentSmsMessage = resumedSmsMessage;
+        resumedSmsMessage = null;
+        isFirstInSequence = false;
+        recordDelivered(true, callback); // the delivery may have been logged before the interruption
+    }
+
     boolean hasFinishedPurchase() {
         return !(currentSmsIndex < currentProduct.getRequiredSmsCount());
     }
@@ -302,8 +403,9 @@ class SmsSendManager {
         completed = true;
         // All SMSs have been sent for the current product, update the redeemed count...
         Vapp.addRedeemedProduct(context, currentProduct);
+        journal.record(PurchaseJournal.COMPLETED, currentProduct.getProductId(), -1);
 
-        if (sendListener != null) {
+        if (sendListener != null && !destroyed) {
             sendListener.onSmsPurchaseCompleted();
         }
     }
@@ -316,8 +418,9 @@ class SmsSendManager {
 
             switch (resultCode) {
                 case Activity.RESULT_OK:
-                    // Nothing to do - only marking off the SMS when we know it's been
-                    // Delivered
+                    // Only marking off the SMS when we know it's been Delivered, but note that
+                    // it has left the device so that it isn't sent again if the purchase resumes
+                    journal.record(PurchaseJournal.SMS_SENT, currentProduct.getProductId(), currentSmsIndex);
                     break;
                 case RESULT_ERROR_GENERIC_FAILURE:
                     errorResId = R.string.vapp_sms_sent_failure_generic;
@@ -345,6 +448,7 @@ class SmsSendManager {
     private class SmsDeliveredReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
+            deliveryTimeoutHandler.removeCallbacks(resumedDeliveryTimeout);
             int resultCode = getResultCode();
             Integer errorResId = null;
 
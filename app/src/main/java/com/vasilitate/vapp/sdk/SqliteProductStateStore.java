@@ -0,0 +1,276 @@
+package com.vasilitate.vapp.sdk;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Looper;
+import android.util.Log;
+
+import com.vasilitate.vapp.sdk.VappDbHelper.ProductStateEntry;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Stores each product's state as a row in the SDK's database.
+ * <p/>
+ * Every row is loaded once, on a background thread, after which reads are served from memory.
+ * Each write updates memory, then is committed on the same background thread, touching only the
+ * rows of the products it changed, so no method touches disk on the caller's thread.
+ */
+final class SqliteProductStateStore implements ProductStateStore {
+
+    private static final String WHERE_PRODUCT_ID = ProductStateEntry.COLUMN_NAME_PRODUCT_ID + " = ?";
+    private static final String[] ROW_COLUMNS = {ProductStateEntry.COLUMN_NAME_PRODUCT_ID,
+            ProductStateEntry.COLUMN_NAME_STATE, ProductStateEntry.COLUMN_NAME_REGISTERED};
+
+    // Held in a reserved row, which can never clash with a product as ids are alphanumeric.
+    private static final String CATALOG_FINGERPRINT_ID = "#catalog";
+
+    private final VappDbHelper dbHelper;
+    private final ExecutorService writer;
+    private final Future<?> loaded;
+
+    // guarded by this once loaded
+    private final Map<String, ProductState> states = new HashMap<>();
+    private final Set<String> registry = new LinkedHashSet<>();
+    private long catalogFingerprint;
+
+    SqliteProductStateStore(Context context) {
+        this.dbHelper = VappDbHelper.get(context);
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "vapp-state-db-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.loaded = writer.submit(new Callable<Void>() {
+            @Override public Void call() {
+                load();
+                return null;
+            }
+        });
+    }
+
+    @Override public synchronized ProductState get(String productId) {
+        awaitLoad();
+        ProductState state = states.get(productId);
+        return state != null ? state : ProductState.EMPTY;
+    }
+
+    @Override public boolean compareAndSet(String productId, ProductState expected, ProductState update) {
+        return compareAndSetAll(Collections.singletonMap(productId, expected),
+                Collections.singletonMap(productId, update));
+    }
+
+    @Override public synchronized boolean compareAndSetAll(Map<String, ProductState> expected,
+                                                           Map<String, ProductState> updates) {
+        awaitLoad();
+
+        for (Map.Entry<String, ProductState> entry : expected.entrySet()) {
+            if (!get(entry.getKey()).equals(entry.getValue())) {
+                return false;
+            }
+        }
+        states.putAll(updates);
+
+        final Map<String, ProductState> rows = new HashMap<>(updates);
+
+        commitInBackground("product state", new DbWrite() {
+            @Override public void apply(SQLiteDatabase db) {
+                for (Map.Entry<String, ProductState> entry : rows.entrySet()) {
+                    writeState(db, entry.getKey(), entry.getValue());
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override public synchronized Set<String> getStoredProductIds() {
+        awaitLoad();
+        return new LinkedHashSet<>(states.keySet());
+    }
+
+    @Override public synchronized Set<String> getProductRegistry() {
+        awaitLoad();
+        return new LinkedHashSet<>(registry);
+    }
+
+    @Override public synchronized void setProductRegistry(Set<String> productIds) {
+        awaitLoad();
+        registry.clear();
+        registry.addAll(productIds);
+
+        for (String productId : productIds) {
+            if (!states.containsKey(productId)) {
+                states.put(productId, ProductState.EMPTY);
+            }
+        }
+
+        final Set<String> registeredIds = new LinkedHashSet<>(productIds);
+
+        commitInBackground("product registry", new DbWrite() {
+            @Override public void apply(SQLiteDatabase db) {
+                ContentValues unregistered = new ContentValues();
+                unregistered.put(ProductStateEntry.COLUMN_NAME_REGISTERED, 0);
+                db.update(ProductStateEntry.TABLE_NAME, unregistered, null, null);
+
+                ContentValues registered = new ContentValues();
+                registered.put(ProductStateEntry.COLUMN_NAME_REGISTERED, 1);
+
+                for (String productId : registeredIds) {
+                    if (db.update(ProductStateEntry.TABLE_NAME, registered, WHERE_PRODUCT_ID, new String[]{productId}) == 0) {
+                        ContentValues values = new ContentValues();
+                        values.put(ProductStateEntry.COLUMN_NAME_PRODUCT_ID, productId);
+                        values.put(ProductStateEntry.COLUMN_NAME_STATE, ProductState.EMPTY.encode());
+                        values.put(ProductStateEntry.COLUMN_NAME_REGISTERED, 1);
+                        db.insert(ProductStateEntry.TABLE_NAME, null, values);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override public synchronized long getCatalogFingerprint() {
+        awaitLoad();
+        return catalogFingerprint;
+    }
+
+    @Override public synchronized void setCatalogFingerprint(final long fingerprint) {
+        awaitLoad();
+        catalogFingerprint = fingerprint;
+
+        commitInBackground("catalog fingerprint", new DbWrite() {
+            @Override public void apply(SQLiteDatabase db) {
+                ContentValues values = new ContentValues();
+                values.put(ProductStateEntry.COLUMN_NAME_PRODUCT_ID, CATALOG_FINGERPRINT_ID);
+                values.put(ProductStateEntry.COLUMN_NAME_STATE, Long.toString(fingerprint));
+                db.replace(ProductStateEntry.TABLE_NAME, null, values);
+            }
+        });
+    }
+
+    /**
+     * Waits for every write to be committed, unless called on the main thread, where the writes
+     * are already being committed in the background.
+     */
+    @Override public void flush() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            Futures.getUninterruptibly(writer.submit(new Callable<Void>() {
+                @Override public Void call() {
+                    return null;
+                }
+            }));
+        }
+    }
+
+    @Override public synchronized void clear() {
+        awaitLoad();
+        states.clear();
+        registry.clear();
+        catalogFingerprint = 0;
+
+        commitInBackground("cleared product state", new DbWrite() {
+            @Override public void apply(SQLiteDatabase db) {
+                db.delete(ProductStateEntry.TABLE_NAME, null, null);
+            }
+        });
+    }
+
+    /**
+     * Waits for the rows to load, if they have not yet. The store is created, and loaded, while
+     * the SDK initialises, so callers only wait if they call the SDK before then.
+     */
+    private void awaitLoad() {
+        Futures.getUninterruptibly(loaded);
+    }
+
+    /**
+     * Runs before any other task on the writer. Its writes are published to callers by
+     * {@link #awaitLoad()}, so it takes no lock, which callers may hold while waiting for it.
+     */
+    private void load() {
+        Cursor cursor = dbHelper.getReadableDatabase().query(ProductStateEntry.TABLE_NAME, ROW_COLUMNS,
+                null, null, null, null, null);
+
+        try {
+            while (cursor.moveToNext()) {
+                String productId = cursor.getString(0);
+
+                if (CATALOG_FINGERPRINT_ID.equals(productId)) {
+                    catalogFingerprint = parseFingerprint(cursor.getString(1));
+                    continue;
+                }
+
+                ProductState state = ProductState.decode(cursor.getString(1));
+                states.put(productId, state != null ? state : ProductState.EMPTY);
+
+                if (cursor.getInt(2) == 1) {
+                    registry.add(productId);
+                }
+            }
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    private static long parseFingerprint(String fingerprint) {
+        try {
+            return Long.parseLong(fingerprint);
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * A write to the database, committed in a transaction of its own.
+     */
+    private interface DbWrite {
+        void apply(SQLiteDatabase db);
+    }
+
+    private void commitInBackground(final String description, final DbWrite write) {
+        writer.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    SQLiteDatabase db = dbHelper.getWritableDatabase();
+                    db.beginTransaction();
+
+                    try {
+                        write.apply(db);
+                        db.setTransactionSuccessful();
+                    }
+                    finally {
+                        db.endTransaction();
+                    }
+                }
+                catch (SQLiteException e) {
+                    Log.e(Vapp.TAG, "Failed to persist " + description, e);
+                }
+            }
+        });
+    }
+
+    private static void writeState(SQLiteDatabase db, String productId, ProductState state) {
+        ContentValues values = new ContentValues();
+        values.put(ProductStateEntry.COLUMN_NAME_STATE, state.encode());
+
+        if (db.update(ProductStateEntry.TABLE_NAME, values, WHERE_PRODUCT_ID, new String[]{productId}) == 0) {
+            values.put(ProductStateEntry.COLUMN_NAME_PRODUCT_ID, productId);
+            db.insert(ProductStateEntry.TABLE_NAME, null, values);
+        }
+    }
+}
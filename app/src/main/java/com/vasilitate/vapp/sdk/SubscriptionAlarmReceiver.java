@@ -4,8 +4,11 @@ import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
 import android.support.v4.content.WakefulBroadcastReceiver;
 
+import com.vasilitate.vapp.sdk.exceptions.VappException;
+
 import java.util.Date;
 
 
@@ -17,12 +20,37 @@ public class SubscriptionAlarmReceiver extends WakefulBroadcastReceiver {
     @Override
     public void onReceive(final Context context, final Intent intent) {
 
+        VappInitialisation pending = Vapp.getRunningInitialisation();
+
+        if (pending == null) {
+            resumePurchase(context);
+            return;
+        }
+
+        // The main thread never waits for an asynchronous initialisation, so resume once it completes
+        final PendingResult result = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB ? goAsync() : null;
+        final Context appContext = context.getApplicationContext();
+
+        pending.addListener(new VappInitialisation.Listener() {
+            @Override public void onInitialisationComplete(VappException error) {
+                if (error == null) {
+                    resumePurchase(appContext);
+                }
+                if (result != null) {
+                    result.finish();
+                }
+            }
+        });
+    }
+
+    private static void resumePurchase(Context context) {
+
         VappProduct product = Vapp.getProductBeingPurchased( context );
 
         // If no products currently being purchased, check if any subscriptions have passed their
         // end dates.  Trigger a subscription update sequence if they have...
         if( product != null ) {
-            Intent smsIntent = new Intent(context, VappSmsService.class);
+            Intent smsIntent = new Intent(context, VappProcess.getSmsServiceClass(context));
             smsIntent.putExtra(VappActions.EXTRA_PRODUCT_ID, product.getProductId());
             startWakefulService(context, smsIntent);
         }
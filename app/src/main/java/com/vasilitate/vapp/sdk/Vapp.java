@@ -5,6 +5,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.res.AssetManager;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.support.v7.app.AlertDialog;
 import android.telephony.TelephonyManager;
@@ -18,6 +19,7 @@ import com.vasilitate.vapp.sdk.exceptions.InvalidSmsCountException;
 import com.vasilitate.vapp.sdk.exceptions.InvalidVappNetworkException;
 import com.vasilitate.vapp.sdk.exceptions.InvalidVappNumberException;
 import com.vasilitate.vapp.sdk.exceptions.InvalidVappProductException;
+import com.vasilitate.vapp.sdk.exceptions.VappInitialisingException;
 import com.vasilitate.vapp.sdk.exceptions.VappException;
 
 import java.io.BufferedReader;
@@ -33,6 +35,14 @@ import java.util.regex.Pattern;
 
 /**
  * The Vapp SDK
+ * <p/>
+ * No method reads or writes disk on the calling thread. The SDK's stored state is loaded from disk
+ * once, on a background thread, during initialisation, and until it has loaded any method which
+ * needs it waits for it. To keep the main thread from waiting, initialise with
+ * {@link #initialiseAsync(Context, List, List, boolean, boolean, String)} and use the SDK once the
+ * returned {@link VappInitialisation} has completed. While it is running, Vapp methods called on
+ * the main thread throw a {@link VappInitialisingException} rather than wait for it, while those
+ * called on other threads wait for it to complete.
  */
 public abstract class Vapp {
     public static final int RESULT_COMPLETE = 1;
@@ -44,12 +54,14 @@ public abstract class Vapp {
     static final int MAX_SMS_LIMIT = 200;
     private static final Pattern ALPHANUMERIC_PATTERN = Pattern.compile("[a-zA-Z0-9]{1,15}");
     private static final String RESOURCE_FILE_NUMBERS_CSV = "vapp_numbers.csv";
+    private static final String DEFAULT_ERR_CODE = "-1";
 
-    private static boolean initialised = false;
+    private static volatile boolean initialised = false;
+    private static volatile VappInitialisation pendingInitialisation;
     private static String sdkKey;
     private static String userToken = null;
 
-    private static List<VappProduct> productList;
+    private static volatile VappCatalog catalog;
     private static List<String> deliveryNumbers;
 
     // All Vapp members are static so no need for a constructor.
@@ -62,6 +74,9 @@ public abstract class Vapp {
      * Vasilitate for this App.
      * <p/>
      * If this method is not called, the behaviour of other methods is undetermined.
+     * <p/>
+     * This waits for the SDK's stored state to be loaded on a background thread, so on the main
+     * thread {@link #initialiseAsync(Context, List, List, boolean, boolean, String)} is preferable.
      *
      * @param context             the current context
      * @param products            a list of VappProduct objects, representing the available products
@@ -85,6 +100,34 @@ public abstract class Vapp {
             InvalidProductIdException, InvalidVappNetworkException, InvalidVappProductException,
             InvalidVappNumberException {
 
+        initialise(context, products, subscriptions, testMode, cancellableProducts, sdkKey,
+                VappStateStorage.SHARED_PREFERENCES);
+    }
+
+    /**
+     * Initialises the Vapp SDK as {@link #initialise(Context, List, List, boolean, boolean, String)},
+     * storing product purchase state in the given storage. If a different storage was used
+     * previously, all stored state is moved across.
+     *
+     * @param context             the current context
+     * @param products            a list of VappProduct objects, representing the available products
+     * @param subscriptions       a list of VappProduct objects, representing the available subscriptions
+     * @param testMode            false for default functionality, true to disable SMS sending for test purposes
+     * @param cancellableProducts true if users should be able to cancel product purchases (default), false if not
+     * @param sdkKey              the sdk key provided for your application.
+     * @param stateStorage        where product state should be stored
+     */
+    public static synchronized void initialise(Context context,
+                                               List<VappProduct> products,
+                                               List<VappProduct> subscriptions,
+                                               boolean testMode,
+                                               boolean cancellableProducts,
+                                               String sdkKey,
+                                               VappStateStorage stateStorage)
+            throws InvalidSmsCountException, InvalidApplicationVappIdException,
+            InvalidProductIdException, InvalidVappNetworkException, InvalidVappProductException,
+            InvalidVappNumberException {
+
         if (TextUtils.isEmpty(sdkKey)) {
             throw new VappException("Invalid value for SDK key - cannot be null!");
         } else {
@@ -92,29 +135,27 @@ public abstract class Vapp {
             VappConfiguration.setSdkKey(context, sdkKey);
         }
 
+        if (stateStorage == null) {
+            throw new VappException("Invalid value for state storage - cannot be null!");
+        }
+        VappConfiguration.setStateStorage(context, stateStorage);
+
         readCsvNumbers(context);
 
         VappConfiguration.setTestMode(context, testMode);
         VappConfiguration.setCancellableProducts(context, cancellableProducts);
 
         // Combine the lists of products and subscriptions...
-        if (products == null) {
-            Vapp.productList = new ArrayList<>();
-        } else {
-            Vapp.productList = products;
-        }
-        if (subscriptions != null) {
-            Vapp.productList.addAll(subscriptions);
-        }
+        VappCatalog newCatalog = new VappCatalog(products, subscriptions);
 
-        if (productList.isEmpty()) {
+        if (newCatalog.isEmpty()) {
             throw new InvalidVappProductException("No VAPP! products or subscriptions setup");
         }
 
 
         Map<String, Boolean> uniqueNames = new HashMap<>();
 
-        for (VappProduct product : productList) { // validate before changing state
+        for (VappProduct product : newCatalog.getAll()) { // validate before changing state
             validateProductId(product.getProductId());
             validateSMSCount(product);
             String name = product.getProductId();
@@ -124,7 +165,8 @@ public abstract class Vapp {
             }
             uniqueNames.put(name, true);
         }
-        VappProductManager.addProducts(context, productList); // persist state
+        VappProductManager.addProducts(context, newCatalog.getAll()); // persist state
+        catalog = newCatalog;
         initialised = true;
 
         VappProduct productBeingPurchased = getProductBeingPurchased(context);
@@ -134,6 +176,74 @@ public abstract class Vapp {
         }
     }
 
+    /**
+     * Initialises the Vapp SDK as {@link #initialise(Context, List, List, boolean, boolean, String)},
+     * but on a background thread so that it can be called from Application.onCreate() without
+     * delaying the first frame.
+     * <p/>
+     * Vapp methods called on a background thread before initialisation completes wait for it to
+     * finish. On the main thread they throw a {@link VappInitialisingException} instead, other than
+     * {@link #showVappPaymentScreen(Activity, VappProduct, boolean, int)}, which is queued until then,
+     * so use the SDK from the main thread once {@link VappInitialisation#addListener} reports success.
+     *
+     * @return a handle on the initialisation, which reports any error it encountered.
+     */
+    public static VappInitialisation initialiseAsync(Context context,
+                                                     List<VappProduct> products,
+                                                     List<VappProduct> subscriptions,
+                                                     boolean testMode,
+                                                     boolean cancellableProducts,
+                                                     String sdkKey) {
+
+        return initialiseAsync(context, products, subscriptions, testMode, cancellableProducts, sdkKey,
+                VappStateStorage.SHARED_PREFERENCES);
+    }
+
+    /**
+     * Initialises the Vapp SDK on a background thread, as
+     * {@link #initialiseAsync(Context, List, List, boolean, boolean, String)}, storing product
+     * purchase state in the given storage.
+     *
+     * @return a handle on the initialisation, which reports any error it encountered.
+     */
+    public static VappInitialisation initialiseAsync(Context context,
+                                                     final List<VappProduct> products,
+                                                     final List<VappProduct> subscriptions,
+                                                     final boolean testMode,
+                                                     final boolean cancellableProducts,
+                                                     final String sdkKey,
+                                                     final VappStateStorage stateStorage) {
+
+        final Context appContext = context.getApplicationContext();
+        final VappInitialisation initialisation = new VappInitialisation();
+        pendingInitialisation = initialisation;
+
+        new Thread(new Runnable() {
+            @Override public void run() {
+                VappException error = new VappException("VAPP! initialisation did not complete");
+
+                try {
+                    initialise(appContext, products, subscriptions, testMode, cancellableProducts,
+                            sdkKey, stateStorage);
+                    error = null;
+                }
+                catch (VappException e) {
+                    Log.e(TAG, "Failed to initialise VAPP!", e);
+                    error = e;
+                }
+                catch (RuntimeException e) { // must not escape, or the thread's death crashes the app
+                    Log.e(TAG, "Failed to initialise VAPP!", e);
+                    error = new VappException("Failed to initialise VAPP!", e);
+                }
+                finally { // otherwise callers waiting for initialisation would wait forever
+                    initialisation.complete(error);
+                }
+            }
+        }, "vapp-initialise").start();
+
+        return initialisation;
+    }
+
     public static void setUserToken(String userToken) {
         Vapp.userToken = userToken;
     }
@@ -214,6 +324,34 @@ public abstract class Vapp {
     }
 
 
+    /**
+     * Gets the billing route which serves the device's network, looked up offline.
+     *
+     * @param context the current context
+     * @return the network's billing route, or {@link VappBillingRoute#UNKNOWN} if it is not listed
+     * in any route.
+     * @throws VappException Vapp exception - see its message for details.
+     */
+    public static VappBillingRoute getBillingRoute(Context context) throws VappException {
+        checkIfInitialised();
+        return VappRouteTable.get(context).getRoute(getDeviceStateContract(context).getOriginatingNetwork());
+    }
+
+    /**
+     * Checks, offline, whether the device's network can be used for purchases. A network is only
+     * ruled out if the billing routes list networks, but not this one, so this returns true for
+     * every network if no routes are listed. The VAPP! server has the final say on whether a
+     * network is supported.
+     *
+     * @param context the current context
+     * @return false if the device's network is known to be unsupported, otherwise true.
+     * @throws VappException Vapp exception - see its message for details.
+     */
+    public static boolean isOriginatingNetworkSupported(Context context) throws VappException {
+        checkIfInitialised();
+        return VappRouteTable.get(context).isSupported(getDeviceStateContract(context).getOriginatingNetwork());
+    }
+
     /**
      * Gets the originating network ISO Country Code.
      *
@@ -243,6 +381,8 @@ public abstract class Vapp {
     /**
      * Sets the number of SMS messages that have been sent for an incomplete payment. This should be
      * used to restore backed up data in any scenario where the user clears application data.
+     * To restore several products, use {@link #restorePurchaseState(Context, Map)}, which applies
+     * them all in a single transaction.
      *
      * @param context  the current context
      * @param product  the given product
@@ -268,6 +408,57 @@ public abstract class Vapp {
         return VappProductManager.isSMSPaymentInProgress(context, product);
     }
 
+    /**
+     * Exports the purchase state of every product and subscription in a compact string format,
+     * which can be backed up and later passed to {@link #restorePurchaseState(Context, String)}.
+     *
+     * @param context the current context
+     * @return the exported purchase state.
+     * @throws VappException Vapp exception - see its message for details.
+     */
+    public static String exportPurchaseState(Context context) throws VappException {
+        checkIfInitialised();
+        return VappPurchaseState.format(VappProductManager.exportPurchaseStates(context, catalog.getAll()));
+    }
+
+    /**
+     * Restores purchase state previously returned by {@link #exportPurchaseState(Context)}, e.g.
+     * after the user clears application data. See {@link #restorePurchaseState(Context, Map)}.
+     *
+     * @param context       the current context
+     * @param exportedState the exported purchase state
+     * @throws VappException Vapp exception - see its message for details.
+     */
+    public static void restorePurchaseState(Context context, String exportedState) throws VappException {
+        restorePurchaseState(context, VappPurchaseState.parse(exportedState));
+    }
+
+    /**
+     * Restores the purchase state of several products at once. Every state is validated before
+     * any is applied, and they are then applied in a single transaction, so either all products
+     * are restored or none are. Products not included are left unchanged.
+     *
+     * @param context the current context
+     * @param states  the purchase state of each product, by product id
+     * @throws VappException Vapp exception - see its message for details.
+     */
+    public static void restorePurchaseState(Context context,
+                                            Map<String, VappPurchaseState> states) throws VappException {
+        checkIfInitialised();
+        VappCatalog current = catalog;
+        Map<VappProduct, VappPurchaseState> productStates = new HashMap<>();
+
+        for (Map.Entry<String, VappPurchaseState> entry : states.entrySet()) {
+            VappProduct product = current.getProduct(entry.getKey());
+
+            if (product == null) {
+                throw new InvalidVappProductException(String.format("Product '%s' does not exist", entry.getKey()));
+            }
+            productStates.put(product, entry.getValue());
+        }
+        VappProductManager.restorePurchaseStates(context, productStates);
+    }
+
     /**
      * Gets the number of product instances fully purchased for the given product.
      *
@@ -284,6 +475,8 @@ public abstract class Vapp {
     /**
      * Sets the number of products fully purchased for the given product type. Should be used to
      * restore backed up data in any scenario where the user clears application data.
+     * To restore several products, use {@link #restorePurchaseState(Context, Map)}, which applies
+     * them all in a single transaction.
      *
      * @param context       the current context
      * @param product       the product
@@ -338,6 +531,47 @@ public abstract class Vapp {
 //    }
 
 
+    /**
+     * Gets the status of every product and subscription in a single pass. This is much cheaper than
+     * querying each product individually, e.g. when displaying a list of products.
+     *
+     * @param context the current context
+     * @return an immutable snapshot of every product's status.
+     * @throws VappException Vapp exception - see its message for details.
+     */
+    public static VappStatusSnapshot getStatusSnapshot(Context context) throws VappException {
+        checkIfInitialised();
+        List<VappProduct> products = catalog.getAll();
+        VappProductStatus[] statuses = new VappProductStatus[products.size()];
+
+        for (int i = 0; i < statuses.length; i++) {
+            VappProduct product = products.get(i);
+            statuses[i] = new VappProductStatus(product,
+                    VappConfiguration.getProductState(context, product.getProductId()));
+        }
+        return new VappStatusSnapshot(statuses);
+    }
+
+    /**
+     * Registers a listener to be notified on the main thread whenever the status of any product
+     * changes. Changes made while an asynchronous initialisation is running are delivered once it
+     * has completed.
+     *
+     * @param context  the current context
+     * @param listener the listener
+     */
+    public static void addStatusListener(Context context, VappStatusListener listener) {
+        VappStatusNotifier.addListener(context, listener);
+    }
+
+    /**
+     * @param listener a listener previously registered with
+     *                 {@link #addStatusListener(Context, VappStatusListener)}
+     */
+    public static void removeStatusListener(VappStatusListener listener) {
+        VappStatusNotifier.removeListener(listener);
+    }
+
     /**
      * Checks if the product is in the process of being paid for
      *
@@ -352,8 +586,8 @@ public abstract class Vapp {
     }
 
     /**
-     * Returns any product which is currently being purchases or the first subscription encountered
-     * which is past it's renewal date.   This function must be called at start-up to allow for
+     * Returns any product which is currently being purchases or the subscription which passed its
+     * renewal date longest ago.   This function must be called at start-up to allow for
      * the resumption of any interrupted purchase.
      *
      * @param context the current context
@@ -362,45 +596,52 @@ public abstract class Vapp {
      */
     public static VappProduct getProductBeingPurchased(Context context) throws VappException {
 
-        VappProduct firstOutOfDateSubscription = null;
-
-        for (VappProduct product : productList) {
-
-            if (Vapp.isSMSPaymentInProgress(context, product)
-                    && !VappConfiguration.isProductCancelled(context, product.getProductId())) {
-                return product;
-            }
-
-            if (product.isSubscriptionProduct()) {
-
-                boolean isCancelled = VappConfiguration.isSubscriptionCancelled(context, product);
-
-                if (!isCancelled) {
-                    Date subscriptionEndDate = VappConfiguration.getSubscriptionEndDate(context, product);
+        checkIfInitialised();
+        VappCatalog current = catalog;
 
-                    if (subscriptionEndDate != null && new Date().after(subscriptionEndDate)) {
+        String activePurchase = VappConfiguration.getActivePurchase(context);
 
-                        firstOutOfDateSubscription = product;
-                    }
-                }
-            }
+        if (activePurchase != null && current.getProduct(activePurchase) != null) {
+            return current.getProduct(activePurchase);
         }
 
-        return firstOutOfDateSubscription;
+        String dueRenewal = VappRenewalSchedule.getFirstDueRenewal(context, current, System.currentTimeMillis());
+        return dueRenewal != null ? current.getProduct(dueRenewal) : null;
     }
 
     /**
-     * Displays the Vapp Payment screen
+     * Displays the Vapp Payment screen. If an asynchronous initialisation is still running, the
+     * screen is displayed once it completes.
      *
      * @param context the current context
      * @param product the product to initial a new purchase with.
      * @param modal   if true the payment but complete before the user can exit the screen.
-     * @return true if the screen was displayed.
+     * @return true if the screen was displayed, or queued to be displayed after initialisation.
      * @throws VappException Vapp exception - see its message for details.
      */
-    public static boolean showVappPaymentScreen(Activity context,
-                                                VappProduct product,
-                                                boolean modal, int requestCode) throws VappException {
+    public static boolean showVappPaymentScreen(final Activity context,
+                                                final VappProduct product,
+                                                final boolean modal,
+                                                final int requestCode) throws VappException {
+
+        VappInitialisation pending = pendingInitialisation;
+
+        if (!initialised && pending != null && !pending.isDone()) {
+            pending.addListener(new VappInitialisation.Listener() {
+                @Override public void onInitialisationComplete(VappException error) {
+                    if (context.isFinishing()) {
+                        return;
+                    }
+                    if (error == null) {
+                        showVappPaymentScreen(context, product, modal, requestCode);
+                    }
+                    else {
+                        showErrorMessage(context, error.getMessage());
+                    }
+                }
+            });
+            return true;
+        }
 
         // Check that this device is suitable for sending SMSs
         if (!Vapp.isSIMPresent(context)) {
@@ -413,16 +654,20 @@ public abstract class Vapp {
             return false;
         }
 
-//        if (!Vapp.isOriginatingNetworkSupported(context)) { // TODO check if needed?
-//            String originatingNetwork = Vapp.getOriginatingNetwork(context);
-//
-//            if (originatingNetwork == null) {
-//                originatingNetwork = DEFAULT_ERR_CODE; // default err code
-//            }
-//
-//            showErrorMessage(context, context.getString(R.string.vapp_network_not_supported, originatingNetwork));
-//            return false;
-//        }
+        if (!Vapp.isOriginatingNetworkSupported(context)) { // ruled out offline, by the billing routes
+            String originatingNetwork = Vapp.getOriginatingNetwork(context);
+
+            if (originatingNetwork == null) {
+                originatingNetwork = DEFAULT_ERR_CODE; // default err code
+            }
+
+            showErrorMessage(context, context.getString(R.string.vapp_network_not_supported, originatingNetwork));
+            return false;
+        }
+
+        if (!VappProcess.isStateClient(context)) { // otherwise the calls are made from the SDK process
+            VappNetwork.prewarm(context);
+        }
 
         Intent intent = new Intent(context, VappProgressActivity.class);
         intent.putExtra(VappActions.EXTRA_PRODUCT_ID, product.getProductId());
@@ -483,13 +728,8 @@ public abstract class Vapp {
     }
 
     static VappProduct getProduct(String productId) throws VappException {
-        for (VappProduct product : productList) {
-
-            if (product.getProductId().equals(productId)) {
-                return product;
-            }
-        }
-        return null;
+        VappCatalog current = catalog;
+        return current != null ? current.getProduct(productId) : null;
     }
 
     static void showErrorMessage(final Context context, String message) {
@@ -553,23 +793,37 @@ public abstract class Vapp {
 
     static void addRedeemedProduct(Context context, VappProduct product) throws VappException {
 
-        int redeemedCount = VappConfiguration.getRedeemedCountForProduct(context, product);
-        VappConfiguration.setRedeemedCountForProduct(context, product, redeemedCount + 1);
-        VappConfiguration.setSentSmsCountForProduct(context, product, 0);
+        VappConfiguration.updateProductState(context, product.getProductId(), new ProductState.Update() {
+            @Override public ProductState apply(ProductState current) {
+                return current.withRedeemedCount(current.getRedeemedCount() + 1).withSentSmsCount(0);
+            }
+        });
+        VappConfiguration.flush(context); // started now, and waited for before the SMS service stops
     }
 
     static void startSMSService(Context context, String productId) {
 
-        Intent intent = new Intent(context, VappSmsService.class);
+        final Context appContext = context.getApplicationContext();
+        final Intent intent = new Intent(appContext, VappProcess.getSmsServiceClass(appContext));
         intent.putExtra(VappActions.EXTRA_PRODUCT_ID, productId);
-        context.startService(intent);
+
+        if (VappProcess.isStateClient(appContext)) { // the service reads state in its own process
+            VappConfiguration.flush(appContext, new Runnable() {
+                @Override public void run() {
+                    appContext.startService(intent);
+                }
+            });
+        }
+        else {
+            appContext.startService(intent);
+        }
     }
 
     static List<String> getAllDeliveryNumbers() {
         return deliveryNumbers;
     }
 
-    private static DeviceStateContract getDeviceStateContract(Context context) throws VappException {
+    static DeviceStateContract getDeviceStateContract(Context context) throws VappException {
 
         boolean debug = context.getResources().getBoolean(R.bool.vapp_mocking);
         return (debug) ? new MockDeviceStateWrapper(context) : new DeviceStateWrapper(context);
@@ -606,11 +860,28 @@ public abstract class Vapp {
     }
 
     private static void checkIfInitialised() throws VappException {
+        VappInitialisation pending = pendingInitialisation;
+
+        if (!initialised && pending != null) {
+            if (!pending.isDone() && Looper.myLooper() == Looper.getMainLooper()) { // which must never wait on disk
+                throw new VappInitialisingException("VAPP! is still initialising - use the SDK on the main " +
+                        "thread once the VappInitialisation returned by initialiseAsync() has completed");
+            }
+            pending.await(); // throws if the initialisation failed
+        }
         if (!initialised) {
             throw new VappException("Attempted to use Vapp methods before initialising SDK!");
         }
     }
 
+    /**
+     * @return the asynchronous initialisation which is still running, or null if there is none.
+     */
+    static VappInitialisation getRunningInitialisation() {
+        VappInitialisation pending = pendingInitialisation;
+        return !initialised && pending != null && !pending.isDone() ? pending : null;
+    }
+
     /**
      * Returns any product which is currently being purchases.   This function must be called
      * at started to allow for the resumption of any interrupted purchase.
@@ -630,26 +901,9 @@ public abstract class Vapp {
 //            startSMSService(context, productToPurchase.getProductId());
         }
 
-        Date nextSubscriptionEndDate = null;
-        for (VappProduct product : productList) {
-
-            if (product.isSubscriptionProduct()) {
-
-                boolean isCancelled = VappConfiguration.isSubscriptionCancelled(context, product);
-
-                if (!isCancelled) {
-                    Date subscriptionEndDate = VappConfiguration.getSubscriptionEndDate(context, product);
-
-                    // Check only for the earliest future end date.
-                    if (subscriptionEndDate != null
-                            && new Date().before(subscriptionEndDate)
-                            && (nextSubscriptionEndDate == null ||
-                            nextSubscriptionEndDate.after(subscriptionEndDate))) {
-                        nextSubscriptionEndDate = subscriptionEndDate;
-                    }
-                }
-            }
-        }
+        // Check only for the earliest future end date.
+        long nextRenewalTime = VappRenewalSchedule.getNextRenewalTime(context, catalog, System.currentTimeMillis());
+        Date nextSubscriptionEndDate = nextRenewalTime != 0 ? new Date(nextRenewalTime) : null;
 
         if (nextSubscriptionEndDate != null) {
             Log.d(Vapp.TAG, "Vapp.Processing reboot - adding alarm: " + nextSubscriptionEndDate.toString());
@@ -662,4 +916,65 @@ public abstract class Vapp {
     public static boolean isTestMode(Context context) {
         return VappConfiguration.isTestMode(context);
     }
+
+    /**
+     * Sets how much SMS log history is kept on the device, for example while the VAPP server cannot
+     * be reached. The limits are applied in the background the next time logs are written.
+     *
+     * @param context   the current context
+     * @param retention the retention limits, or {@link VappLogRetention#DEFAULT}
+     */
+    public static void setSmsLogRetention(Context context, VappLogRetention retention) {
+        VappConfiguration.setSmsLogRetention(context, retention);
+        SmsPersistenceQueue.get(context).compact();
+    }
+
+    /**
+     * Sets how long calls to the VAPP! server may take before they fail. Applies to calls started
+     * after this returns.
+     *
+     * @param context  the current context
+     * @param timeouts the timeouts, or {@link VappNetworkTimeouts#DEFAULT}
+     */
+    public static void setNetworkTimeouts(Context context, VappNetworkTimeouts timeouts) {
+        if (timeouts == null) {
+            throw new VappException("Invalid value for network timeouts - cannot be null!");
+        }
+        VappConfiguration.setNetworkTimeouts(context, timeouts);
+    }
+
+    /**
+     * Sets how long the result of checking whether the device's network supports VAPP! is reused,
+     * so that repeat purchases on the same network need not wait for the server.
+     *
+     * @param context the current context
+     * @param ttl     the times to live, {@link VappHniStatusTtl#DEFAULT}, or
+     *                {@link VappHniStatusTtl#NEVER} to check on every purchase
+     */
+    public static void setHniStatusTtl(Context context, VappHniStatusTtl ttl) {
+        if (ttl == null) {
+            throw new VappException("Invalid value for HNI status TTL - cannot be null!");
+        }
+        VappConfiguration.setHniStatusTtl(context, ttl);
+    }
+
+    /**
+     * Writes any state the SDK holds in memory to disk. Off the main thread, this returns once the
+     * state has been written; on the main thread, the write is only started.
+     *
+     * @param context the current context
+     */
+    public static void flushStoredState(Context context) {
+        VappConfiguration.flush(context);
+    }
+
+    /**
+     * Removes all state stored by the SDK on this device, including redeemed counts and the
+     * progress of any incomplete payment. Any payment in progress should be cancelled first.
+     *
+     * @param context the current context
+     */
+    public static void clearStoredState(Context context) {
+        VappConfiguration.clear(context);
+    }
 }
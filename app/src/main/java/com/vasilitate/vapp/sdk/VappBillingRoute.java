@@ -0,0 +1,12 @@
+package com.vasilitate.vapp.sdk;
+
+/**
+ * The billing route which serves a mobile network, as listed in the SDK's
+ * <code>billing_route_A</code>, <code>billing_route_B</code> and <code>billing_route_C</code>
+ * resources:
+ *  A, B or C if the network is listed in that route, or
+ *  UNKNOWN if it is not listed in any route.
+ */
+public enum VappBillingRoute {
+    A, B, C, UNKNOWN
+}
@@ -0,0 +1,92 @@
+package com.vasilitate.vapp.sdk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the products and subscriptions supplied at initialisation, indexed by
+ * product id. A new snapshot is built by each initialisation and published in a single write, so
+ * it can be read from any thread without locking.
+ */
+final class VappCatalog {
+
+    private final List<VappProduct> all;
+    private final List<VappProduct> products;
+    private final List<VappProduct> subscriptions;
+    private final Map<String, VappProduct> productsById;
+
+    /**
+     * Copies the given lists, which are not modified.
+     *
+     * @param products      the products, or null if there are none
+     * @param subscriptions the subscriptions, or null if there are none
+     */
+    VappCatalog(List<VappProduct> products, List<VappProduct> subscriptions) {
+        List<VappProduct> all = new ArrayList<>();
+
+        if (products != null) {
+            all.addAll(products);
+        }
+        if (subscriptions != null) {
+            all.addAll(subscriptions);
+        }
+
+        List<VappProduct> productPartition = new ArrayList<>();
+        List<VappProduct> subscriptionPartition = new ArrayList<>();
+        Map<String, VappProduct> productsById = new HashMap<>();
+
+        for (VappProduct product : all) {
+            if (product.isSubscriptionProduct()) {
+                subscriptionPartition.add(product);
+            }
+            else {
+                productPartition.add(product);
+            }
+
+            if (!productsById.containsKey(product.getProductId())) { // the first entry wins
+                productsById.put(product.getProductId(), product);
+            }
+        }
+
+        this.all = Collections.unmodifiableList(all);
+        this.products = Collections.unmodifiableList(productPartition);
+        this.subscriptions = Collections.unmodifiableList(subscriptionPartition);
+        this.productsById = productsById;
+    }
+
+    /**
+     * @return every product and subscription, in the order they were supplied.
+     */
+    List<VappProduct> getAll() {
+        return all;
+    }
+
+    /**
+     * @return the products which are not subscriptions.
+     */
+    List<VappProduct> getProducts() {
+        return products;
+    }
+
+    /**
+     * @return the subscription products.
+     */
+    List<VappProduct> getSubscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * @param productId the product id
+     * @return the product with the id, or null if there is none.
+     */
+    VappProduct getProduct(String productId) {
+        return productsById.get(productId);
+    }
+
+    boolean isEmpty() {
+        return all.isEmpty();
+    }
+}
@@ -2,154 +2,593 @@ package com.vasilitate.vapp.sdk;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
+import android.util.Log;
+import android.util.Pair;
 
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 /**
- * VAPP Shared Preferences.
+ * VAPP Shared Preferences, accessed through the process-wide {@link VappStateCache}.
+ * <p/>
+ * State is kept in a preferences file owned by the SDK ({@link #PREFS_NAME}) so that SDK writes
+ * never rewrite the host app's default preferences. Each product's state is held in a single
+ * {@link ProductState} record by the {@link ProductStateStore} selected with
+ * {@link #setStateStorage(Context, VappStateStorage)}. Products known to the SDK are tracked in a
+ * registry so that pruning never has to scan unrelated records.
+ * <p/>
+ * If the SMS service runs in the dedicated SDK process, that process owns all state and every other
+ * process accesses it through the {@link VappStateProvider} (see {@link VappProcess}).
  * <p/>
  * The class has package level scope but is abstract to prevent it being instantiated.
  */
 abstract class VappConfiguration {
 
-    private static final String APP_PREFIX = "com.vasilitate.vapp.sdk.";
+    static final String PREFS_NAME = "com.vasilitate.vapp.sdk";
+    static final String APP_PREFIX = "com.vasilitate.vapp.sdk.";
 //    private static final String PREF_APP_NAME = APP_PREFIX + "PREF_APP_NAME";
 
-    private static final String REDEEMED_SUFFIX = "REDEEMED_SUFFIX";
-    private static final String SENT_SMS_COUNT_SUFFIX = "_SENT_SMS_COUNT";
-    private static final String REQUIRED_SMS_COUNT_SUFFIX = "REQUIRED_SMS_COUNT";
-    private static final String CURRENT_DOWNLOAD_SMS_COUNT_SUFFIX = "CURRENT_DOWNLOAD_SMS_COUNT_SUFFIX";
-    private static final String PRODUCT_EXISTS_SUFFIX = "_PRODUCT_EXISTS";
     private static final String SDK_KEY = "SDK_KEY";
     private static final String TEST_MODE = APP_PREFIX + "TEST_MODE";
     private static final String CANCELLABLE_PRODUCTS = APP_PREFIX + "CANCELLABLE_PRODUCTS";
-    private static final String PRODUCT_CANCELLED = APP_PREFIX + "PRODUCT_CANCELLED";
-    private static final String SUBSCRIPTION_END_DATE = APP_PREFIX + "SUBSCRIPTION_END_DATE";
-    private static final String SUBSCRIPTION_CANCELLED = APP_PREFIX + "SUBSCRIPTION_CANCELLED";
+    private static final String STATE_STORAGE = APP_PREFIX + "STATE_STORAGE";
+    private static final String PREFS_MIGRATED = APP_PREFIX + "PREFS_MIGRATED";
+    private static final String ACTIVE_PURCHASE = APP_PREFIX + "ACTIVE_PURCHASE";
+    private static final String ACTIVE_PURCHASE_TRACKED = APP_PREFIX + "ACTIVE_PURCHASE_TRACKED";
+    private static final String LOG_RETENTION_MAX_ROWS = APP_PREFIX + "LOG_RETENTION_MAX_ROWS";
+    private static final String LOG_RETENTION_MAX_AGE = APP_PREFIX + "LOG_RETENTION_MAX_AGE";
+    private static final String LOG_RETENTION_MAX_BYTES = APP_PREFIX + "LOG_RETENTION_MAX_BYTES";
+    private static final String DEVICE_JITTER_SEED = APP_PREFIX + "DEVICE_JITTER_SEED";
+    private static final String NETWORK_CONNECT_TIMEOUT = APP_PREFIX + "NETWORK_CONNECT_TIMEOUT";
+    private static final String NETWORK_READ_TIMEOUT = APP_PREFIX + "NETWORK_READ_TIMEOUT";
+    private static final String NETWORK_DEADLINE = APP_PREFIX + "NETWORK_DEADLINE";
+    private static final String HNI_STATUS_TTL_WHITELISTED = APP_PREFIX + "HNI_STATUS_TTL_WHITELISTED";
+    private static final String HNI_STATUS_TTL_BLACKLISTED = APP_PREFIX + "HNI_STATUS_TTL_BLACKLISTED";
+    private static final String HNI_STATUS_TTL_UNKNOWN = APP_PREFIX + "HNI_STATUS_TTL_UNKNOWN";
+    private static final String HNI_STATUS_TTL_STALE = APP_PREFIX + "HNI_STATUS_TTL_STALE";
+    private static final String HNI_STATUS = APP_PREFIX + "HNI_STATUS_";
+    private static final String HNI_STATUS_CHECKED = APP_PREFIX + "HNI_STATUS_CHECKED_";
+
+    /**
+     * The exclusive upper bound of {@link #getDeviceJitterSeed(Context)}.
+     */
+    static final int DEVICE_JITTER_RANGE = 1000;
+
+    // Only taken once state has been loaded, as the first load replays into the shared prefs store.
+    private static final Object storeLock = new Object();
+
+    private static final Object activePurchaseLock = new Object();
+
+    private static volatile ProductStateStore store;
+    private static SharedPrefsProductStateStore sharedPrefsStore;
+
+    /**
+     * Reads the state record for a product.
+     *
+     * @param context   the current context
+     * @param productId the product id
+     * @return the product's state, or {@link ProductState#EMPTY} if nothing has been stored.
+     */
+    static ProductState getProductState(Context context, String productId) {
+        return getStore(context).get(productId);
+    }
+
+    /**
+     * Replaces the state record for a product, provided no other thread has changed it since
+     * <code>expected</code> was read.
+     *
+     * @param context   the current context
+     * @param productId the product id
+     * @param expected  the record the update was computed from
+     * @param update    the new record
+     * @return true if the record was replaced.
+     */
+    static boolean compareAndSetProductState(Context context, String productId,
+                                             ProductState expected, ProductState update) {
+        if (!getStore(context).compareAndSet(productId, expected, update)) {
+            return false;
+        }
+        onProductStateChanged(context, productId);
+        return true;
+    }
+
+    /**
+     * Applies an update to the state record for a product, retrying if the record is changed by
+     * another thread while the update is being computed.
+     *
+     * @param context   the current context
+     * @param productId the product id
+     * @param update    computes the new record from the current one
+     * @return the new record
+     */
+    static ProductState updateProductState(Context context, String productId, ProductState.Update update) {
+        while (true) {
+            ProductState current = getProductState(context, productId);
+            ProductState updated = update.apply(current);
+
+            if (compareAndSetProductState(context, productId, current, updated)) {
+                return updated;
+            }
+        }
+    }
+
+    /**
+     * Applies updates to the state records of several products in a single transaction, retrying
+     * if any record is changed by another thread while the updates are being computed.
+     *
+     * @param context the current context
+     * @param updates computes each product's new record from its current one, by product id
+     */
+    static void updateProductStates(Context context, Map<String, ProductState.Update> updates) {
+        ProductStateStore store = getStore(context);
 
-    static void setRequiredSmsCountForProduct(Context context, VappProduct product, int count) {
-        String key = getKeyForProduct(product, REQUIRED_SMS_COUNT_SUFFIX);
-        getSharedPrefsEditor(context).putInt(key, count).commit();
+        while (true) {
+            Map<String, ProductState> current = new HashMap<>();
+            Map<String, ProductState> updated = new HashMap<>();
+
+            for (Map.Entry<String, ProductState.Update> entry : updates.entrySet()) {
+                ProductState state = store.get(entry.getKey());
+                current.put(entry.getKey(), state);
+                updated.put(entry.getKey(), entry.getValue().apply(state));
+            }
+
+            if (store.compareAndSetAll(current, updated)) {
+                break;
+            }
+        }
+
+        for (String productId : updates.keySet()) {
+            onProductStateChanged(context, productId);
+        }
+    }
+
+    static void setRequiredSmsCountForProduct(Context context, VappProduct product, final int count) {
+        updateProductState(context, product.getProductId(), new ProductState.Update() {
+            @Override public ProductState apply(ProductState current) {
+                return current.withRequiredSmsCount(count);
+            }
+        });
     }
 
     static int getRequiredSmsCountForProduct(Context context, VappProduct product) {
-        String key = getKeyForProduct(product, REQUIRED_SMS_COUNT_SUFFIX);
-        return getSharedPrefs(context).getInt(key, 0);
+        return getProductState(context, product.getProductId()).getRequiredSmsCount();
     }
 
-    static void setCurrentDownloadSmsCountForProduct(Context context, VappProduct product, int count) {
-        String key = getKeyForProduct(product, CURRENT_DOWNLOAD_SMS_COUNT_SUFFIX);
-        getSharedPrefsEditor(context).putInt(key, count).commit();
+    static void setCurrentDownloadSmsCountForProduct(Context context, VappProduct product, final int count) {
+        updateProductState(context, product.getProductId(), new ProductState.Update() {
+            @Override public ProductState apply(ProductState current) {
+                return current.withCurrentDownloadSmsCount(count);
+            }
+        });
     }
 
     static int getCurrentDownloadSmsCountForProduct(Context context, VappProduct product) {
-        String key = getKeyForProduct(product, CURRENT_DOWNLOAD_SMS_COUNT_SUFFIX);
-        return getSharedPrefs(context).getInt(key, 0);
+        return getProductState(context, product.getProductId()).getCurrentDownloadSmsCount();
     }
 
-    static void setProductCancelled(Context context, String productId, boolean cancelled) {
-        String key = getKeyForProduct(productId, PRODUCT_CANCELLED);
-        getSharedPrefsEditor(context).putBoolean(key, cancelled).commit();
+    static void setProductCancelled(Context context, String productId, final boolean cancelled) {
+        updateProductState(context, productId, new ProductState.Update() {
+            @Override public ProductState apply(ProductState current) {
+                return current.withCancelled(cancelled);
+            }
+        });
     }
 
     static boolean isProductCancelled(Context context, String productId) {
-        String key = getKeyForProduct(productId, PRODUCT_CANCELLED);
-        return getSharedPrefs(context).getBoolean(key, false);
+        return getProductState(context, productId).isCancelled();
     }
 
-    static void setSentSmsCountForProduct(Context context, VappProduct product, int count) {
-        String key = getKeyForProduct(product, SENT_SMS_COUNT_SUFFIX);
-        getSharedPrefsEditor(context).putInt(key, count).commit();
+    static void setSentSmsCountForProduct(Context context, VappProduct product, final int count) {
+        updateProductState(context, product.getProductId(), new ProductState.Update() {
+            @Override public ProductState apply(ProductState current) {
+                return current.withSentSmsCount(count);
+            }
+        });
+    }
+
+    /**
+     * Records a new sent SMS count for a product in the {@link SmsProgressJournal}, which is far
+     * cheaper than committing the state record for every delivered SMS.
+     *
+     * @param context the current context
+     * @param product the product
+     * @param count   the number of SMSs sent
+     */
+    static void recordSentSmsCountForProduct(Context context, VappProduct product, int count) {
+        SmsProgressJournal journal = SmsProgressJournal.get(context);
+
+        if (journal == null || getStore(context) != getSharedPrefsStore(context)
+                || !journal.append(product.getProductId(), count, getSharedPrefsStore(context).getProductRegistry())) {
+            setSentSmsCountForProduct(context, product, count);
+        }
     }
 
     static int getSentSmsCountForProduct(Context context, VappProduct product) {
-        String key = getKeyForProduct(product, SENT_SMS_COUNT_SUFFIX);
-        return getSharedPrefs(context).getInt(key, 0);
+        return getProductState(context, product.getProductId()).getSentSmsCount();
     }
 
-    public static void setRedeemedCountForProduct(Context context, VappProduct product, int count) { // FIXME should be package visible
-        String key = getKeyForProduct(product, REDEEMED_SUFFIX);
-        getSharedPrefsEditor(context).putInt(key, count).commit();
+    static void setRedeemedCountForProduct(Context context, VappProduct product, final int count) {
+        updateProductState(context, product.getProductId(), new ProductState.Update() {
+            @Override public ProductState apply(ProductState current) {
+                return current.withRedeemedCount(count);
+            }
+        });
     }
 
-    public static int getRedeemedCountForProduct(Context context, VappProduct product) { // FIXME should be package visible
-        String key = getKeyForProduct(product, REDEEMED_SUFFIX);
-        return getSharedPrefs(context).getInt(key, 0);
+    static int getRedeemedCountForProduct(Context context, VappProduct product) {
+        return getProductState(context, product.getProductId()).getRedeemedCount();
     }
 
-    static void setProductExists(Context context, VappProduct product, boolean exists) {
-        String key = getKeyForProduct(product, PRODUCT_EXISTS_SUFFIX);
-        getSharedPrefsEditor(context).putBoolean(key, exists).commit();
+    static void setProductExists(Context context, VappProduct product, final boolean exists) {
+        updateProductState(context, product.getProductId(), new ProductState.Update() {
+            @Override public ProductState apply(ProductState current) {
+                return current.withExists(exists);
+            }
+        });
     }
 
     static boolean doesProductExist(Context context, VappProduct product) {
-        String key = getKeyForProduct(product, PRODUCT_EXISTS_SUFFIX);
-        return getSharedPrefs(context).getBoolean(key, false);
+        return getProductState(context, product.getProductId()).exists();
     }
 
-    static void setSubscriptionEndDate(Context context, VappProduct product, Date endDate) {
-        String key = getKeyForProduct(product, SUBSCRIPTION_END_DATE);
-        getSharedPrefsEditor(context).putLong(key, endDate != null ? endDate.getTime() : 0).commit();
+    static void setSubscriptionEndDate(Context context, VappProduct product, final Date endDate) {
+        updateProductState(context, product.getProductId(), new ProductState.Update() {
+            @Override public ProductState apply(ProductState current) {
+                return current.withSubscriptionEndDate(endDate);
+            }
+        });
     }
 
     static Date getSubscriptionEndDate(Context context, VappProduct product) {
-        String key = getKeyForProduct(product, SUBSCRIPTION_END_DATE);
-        long time = getSharedPrefs(context).getLong(key, 0);
-        return time == 0 ? null : new Date(time);
+        return getProductState(context, product.getProductId()).getSubscriptionEndDate();
     }
 
-    static void setSubscriptionCancelled(Context context, VappProduct product, boolean cancelled) {
-        String key = getKeyForProduct(product, SUBSCRIPTION_CANCELLED);
-        getSharedPrefsEditor(context).putBoolean(key, cancelled).commit();
+    static void setSubscriptionCancelled(Context context, VappProduct product, final boolean cancelled) {
+        updateProductState(context, product.getProductId(), new ProductState.Update() {
+            @Override public ProductState apply(ProductState current) {
+                return current.withSubscriptionCancelled(cancelled);
+            }
+        });
     }
 
     static boolean isSubscriptionCancelled(Context context, VappProduct product) {
-        String key = getKeyForProduct(product, SUBSCRIPTION_CANCELLED);
-        return getSharedPrefs(context).getBoolean(key, false);
+        return getProductState(context, product.getProductId()).isSubscriptionCancelled();
     }
 
     static void setTestMode(Context context, boolean mode) {
-        getSharedPrefsEditor(context).putBoolean(TEST_MODE, mode).commit();
+        getCache(context).putBoolean(TEST_MODE, mode);
     }
 
     static boolean isTestMode(Context context) {
-        return getSharedPrefs(context).getBoolean(TEST_MODE, false);
+        return getCache(context).getBoolean(TEST_MODE, false);
     }
 
     static void setCancellableProducts(Context context, boolean mode) {
-        getSharedPrefsEditor(context).putBoolean(CANCELLABLE_PRODUCTS, mode).commit();
+        getCache(context).putBoolean(CANCELLABLE_PRODUCTS, mode);
     }
 
     static boolean isCancellableProducts(Context context) {
-        return getSharedPrefs(context).getBoolean(CANCELLABLE_PRODUCTS, true);
+        return getCache(context).getBoolean(CANCELLABLE_PRODUCTS, true);
+    }
+
+    static void setSmsLogRetention(Context context, VappLogRetention retention) {
+        VappStateCache cache = getCache(context);
+        cache.putInt(LOG_RETENTION_MAX_ROWS, retention.getMaxRows());
+        cache.putLong(LOG_RETENTION_MAX_AGE, retention.getMaxAgeMs());
+        cache.putLong(LOG_RETENTION_MAX_BYTES, retention.getMaxBytes());
     }
 
     /**
-     * Prune all previously existing product keys that aren't in the list by setting EXISTS to false
+     * @param context the current context
+     * @return a random value, fixed for this installation, used to spread scheduled work across
+     * devices. Between 0 (inclusive) and {@link #DEVICE_JITTER_RANGE} (exclusive).
+     */
+    static int getDeviceJitterSeed(Context context) {
+        VappStateCache cache = getCache(context);
+
+        synchronized (storeLock) {
+            if (!cache.contains(DEVICE_JITTER_SEED)) {
+                cache.putInt(DEVICE_JITTER_SEED, new Random().nextInt(DEVICE_JITTER_RANGE));
+            }
+            return cache.getInt(DEVICE_JITTER_SEED, 0);
+        }
+    }
+
+    static VappLogRetention getSmsLogRetention(Context context) {
+        VappStateCache cache = getCache(context);
+
+        if (!cache.contains(LOG_RETENTION_MAX_ROWS)) {
+            return VappLogRetention.DEFAULT;
+        }
+        return new VappLogRetention(
+                cache.getInt(LOG_RETENTION_MAX_ROWS, VappLogRetention.DEFAULT.getMaxRows()),
+                cache.getLong(LOG_RETENTION_MAX_AGE, VappLogRetention.DEFAULT.getMaxAgeMs()),
+                cache.getLong(LOG_RETENTION_MAX_BYTES, VappLogRetention.DEFAULT.getMaxBytes()));
+    }
+
+    static void setNetworkTimeouts(Context context, VappNetworkTimeouts timeouts) {
+        VappStateCache cache = getCache(context);
+        cache.putInt(NETWORK_CONNECT_TIMEOUT, timeouts.getConnectTimeoutMs());
+        cache.putInt(NETWORK_READ_TIMEOUT, timeouts.getReadTimeoutMs());
+        cache.putInt(NETWORK_DEADLINE, timeouts.getDeadlineMs());
+    }
+
+    static VappNetworkTimeouts getNetworkTimeouts(Context context) {
+        VappStateCache cache = getCache(context);
+
+        if (!cache.contains(NETWORK_CONNECT_TIMEOUT)) {
+            return VappNetworkTimeouts.DEFAULT;
+        }
+        return new VappNetworkTimeouts(
+                cache.getInt(NETWORK_CONNECT_TIMEOUT, VappNetworkTimeouts.DEFAULT.getConnectTimeoutMs()),
+                cache.getInt(NETWORK_READ_TIMEOUT, VappNetworkTimeouts.DEFAULT.getReadTimeoutMs()),
+                cache.getInt(NETWORK_DEADLINE, VappNetworkTimeouts.DEFAULT.getDeadlineMs()));
+    }
+
+    static void setHniStatusTtl(Context context, VappHniStatusTtl ttl) {
+        VappStateCache cache = getCache(context);
+        cache.putLong(HNI_STATUS_TTL_WHITELISTED, ttl.getWhitelistedTtlMs());
+        cache.putLong(HNI_STATUS_TTL_BLACKLISTED, ttl.getBlacklistedTtlMs());
+        cache.putLong(HNI_STATUS_TTL_UNKNOWN, ttl.getUnknownTtlMs());
+        cache.putLong(HNI_STATUS_TTL_STALE, ttl.getStaleMs());
+    }
+
+    static VappHniStatusTtl getHniStatusTtl(Context context) {
+        VappStateCache cache = getCache(context);
+
+        if (!cache.contains(HNI_STATUS_TTL_WHITELISTED)) {
+            return VappHniStatusTtl.DEFAULT;
+        }
+        return new VappHniStatusTtl(
+                cache.getLong(HNI_STATUS_TTL_WHITELISTED, VappHniStatusTtl.DEFAULT.getWhitelistedTtlMs()),
+                cache.getLong(HNI_STATUS_TTL_BLACKLISTED, VappHniStatusTtl.DEFAULT.getBlacklistedTtlMs()),
+                cache.getLong(HNI_STATUS_TTL_UNKNOWN, VappHniStatusTtl.DEFAULT.getUnknownTtlMs()),
+                cache.getLong(HNI_STATUS_TTL_STALE, VappHniStatusTtl.DEFAULT.getStaleMs()));
+    }
+
+    /**
+     * Records the result of a network's HNI status check, for reuse by later purchases.
+     *
+     * @param context   the current context
+     * @param mcc       the network's mobile country code
+     * @param mnc       the network's mobile network code
+     * @param status    the network's status
+     * @param checkedAt when the status was returned by the server (ms since epoch)
+     */
+    static void setHniStatus(Context context, String mcc, String mnc, String status, long checkedAt) {
+        VappStateCache cache = getCache(context);
+        String network = mcc + "_" + mnc;
+
+        synchronized (storeLock) { // so that the status and its time are read together
+            cache.putString(HNI_STATUS + network, status);
+            cache.putLong(HNI_STATUS_CHECKED + network, checkedAt);
+        }
+    }
+
+    /**
+     * @param context the current context
+     * @param mcc     the network's mobile country code
+     * @param mnc     the network's mobile network code
+     * @return the last status returned for the network and when it was returned (ms since epoch),
+     * or null if it has never been checked.
+     */
+    static Pair<String, Long> getHniStatus(Context context, String mcc, String mnc) {
+        VappStateCache cache = getCache(context);
+        String network = mcc + "_" + mnc;
+
+        synchronized (storeLock) {
+            String status = cache.getString(HNI_STATUS + network, null);
+            return status != null ? Pair.create(status, cache.getLong(HNI_STATUS_CHECKED + network, 0)) : null;
+        }
+    }
+
+    /**
+     * Prune all previously registered products that aren't in the list by setting EXISTS to false,
+     * then record the list as the current product registry.
      *
      * @param context     the context
      * @param productList the list of initialised products
      */
     static void pruneMissingProducts(Context context, List<VappProduct> productList) {
-        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Set<String> registeredIds = getProductRegistry(context);
+        Set<String> currentIds = new LinkedHashSet<>();
+
+        for (VappProduct product : productList) {
+            currentIds.add(product.getProductId());
+        }
+
+        for (String productId : registeredIds) {
+            if (!currentIds.contains(productId)) {
+                updateProductState(context, productId, new ProductState.Update() {
+                    @Override public ProductState apply(ProductState current) {
+                        return current.withExists(false);
+                    }
+                });
+            }
+        }
+        getStore(context).setProductRegistry(currentIds);
+    }
 
-        for (String key : sharedPrefs.getAll().keySet()) {
-            if (key.contains(PRODUCT_EXISTS_SUFFIX)) {
+    /**
+     * @param context the current context
+     * @return the ids of all products which were registered by the last initialisation.
+     */
+    static Set<String> getProductRegistry(Context context) {
+        return getStore(context).getProductRegistry();
+    }
 
-                boolean shouldPrune = true;
+    /**
+     * Returns the product with a payment in flight, from a persisted pointer which is maintained
+     * as product state changes. The pointer is verified against the product's state, so this costs
+     * a single record read.
+     *
+     * @param context the current context
+     * @return the id of the product with a payment in flight, or null if there is none.
+     */
+    static String getActivePurchase(Context context) {
+        VappStateCache cache = getCache(context);
 
-                for (VappProduct product : productList) {
-                    if (key.contains(product.getProductId().toUpperCase())) {
-                        shouldPrune = false;
+        if (VappProcess.isStateClient(context)) { // the pointer is maintained by the SDK process
+            String productId = cache.getString(ACTIVE_PURCHASE, null);
+            return productId != null && isPurchaseInFlight(getProductState(context, productId)) ? productId : null;
+        }
+
+        synchronized (activePurchaseLock) {
+            if (!cache.getBoolean(ACTIVE_PURCHASE_TRACKED, false)) { // stored before the pointer existed
+                for (String productId : getProductRegistry(context)) {
+                    if (isPurchaseInFlight(getProductState(context, productId))) {
+                        cache.putString(ACTIVE_PURCHASE, productId);
+                        break;
                     }
                 }
+                cache.putBoolean(ACTIVE_PURCHASE_TRACKED, true);
+                cache.flush();
+            }
+
+            String productId = cache.getString(ACTIVE_PURCHASE, null);
+
+            if (productId != null && !isPurchaseInFlight(getProductState(context, productId))) {
+                cache.remove(ACTIVE_PURCHASE);
+                productId = null;
+            }
+            return productId;
+        }
+    }
+
+    /**
+     * @param state a product's state
+     * @return true if the product has a payment which has started but not completed or been cancelled.
+     */
+    static boolean isPurchaseInFlight(ProductState state) {
+        int sentCount = state.getSentSmsCount();
+        return state.exists() && !state.isCancelled()
+                && sentCount != 0 && sentCount < state.getCurrentDownloadSmsCount();
+    }
+
+    /**
+     * Updates the active purchase pointer and renewal schedule from a product's current state, and
+     * notifies any status listeners.
+     * The pointer is committed straight away, as it changes only when a payment starts or ends.
+     * <p/>
+     * In a client of the SDK process this is a no-op, as the SDK process applies the update and
+     * notifies it back through {@link #onRemoteProductStateChanged(Context, String)}.
+     */
+    static void onProductStateChanged(Context context, String productId) {
+        if (VappProcess.isStateClient(context)) {
+            return;
+        }
+
+        VappStateCache cache = getCache(context);
+
+        synchronized (activePurchaseLock) {
+            ProductState state = getProductState(context, productId);
+            String activePurchase = cache.getString(ACTIVE_PURCHASE, null);
+
+            if (isPurchaseInFlight(state)) {
+                if (!productId.equals(activePurchase)) {
+                    cache.putString(ACTIVE_PURCHASE, productId);
+                    cache.flush();
+                }
+            }
+            else if (productId.equals(activePurchase)) {
+                cache.remove(ACTIVE_PURCHASE);
+                cache.flush();
+            }
+            VappRenewalSchedule.onProductStateChanged(productId, state);
+        }
+        VappStatusNotifier.onProductStateChanged(productId);
+
+        if (VappProcess.isIsolated(context)) {
+            VappStateProvider.notifyProductChanged(context, productId);
+        }
+    }
+
+    /**
+     * Updates the renewal schedule and notifies any status listeners, in a client of the SDK
+     * process, once the SDK process has changed a product's state.
+     */
+    static void onRemoteProductStateChanged(Context context, String productId) {
+        VappRenewalSchedule.onProductStateChanged(productId, getProductState(context, productId));
+        VappStatusNotifier.onProductStateChanged(productId);
+    }
+
+    /**
+     * @param context the current context
+     * @return the fingerprint of the catalog last applied to the stored state, or 0 if none.
+     */
+    static long getCatalogFingerprint(Context context) {
+        return getStore(context).getCatalogFingerprint();
+    }
+
+    static void setCatalogFingerprint(Context context, long fingerprint) {
+        getStore(context).setCatalogFingerprint(fingerprint);
+    }
+
+    /**
+     * Selects where product state is stored. The choice is persisted, so that components started
+     * without an initialisation (such as receivers) use the same store. If the selection changes,
+     * all stored records are moved to the new store.
+     *
+     * @param context the current context
+     * @param storage the storage to use
+     */
+    static void setStateStorage(Context context, VappStateStorage storage) {
+        if (VappProcess.isStateClient(context)) { // the records are moved by the SDK process
+            ((RemoteProductStateStore) getStore(context)).setStateStorage(storage);
+            return;
+        }
+
+        VappStateCache cache = getCache(context);
+
+        synchronized (storeLock) {
+            VappStateStorage previous = getStateStorage(context);
+
+            if (previous == storage && store != null) {
+                return;
+            }
 
-                if (shouldPrune) {
-                    sharedPrefs.edit().putBoolean(key, false).commit();
+            ProductStateStore newStore = createStore(context, storage);
+
+            if (previous != storage) {
+                ProductStateStore oldStore = store != null ? store : createStore(context, previous);
+                Set<String> storedIds = oldStore.getStoredProductIds();
+
+                for (String productId : storedIds) {
+                    ProductState state = oldStore.get(productId);
+                    newStore.compareAndSet(productId, newStore.get(productId), state);
                 }
+                newStore.setProductRegistry(oldStore.getProductRegistry());
+                newStore.setCatalogFingerprint(oldStore.getCatalogFingerprint());
+                newStore.flush();
+                oldStore.clear();
+
+                cache.putString(STATE_STORAGE, storage.name());
+                Log.d(Vapp.TAG, "Moved " + storedIds.size() + " product records from " + previous + " to " + storage);
             }
+            store = newStore;
+        }
+    }
+
+    /**
+     * @param context the current context
+     * @return the persisted storage selection.
+     */
+    static VappStateStorage getStateStorage(Context context) {
+        String storage = getCache(context).getString(STATE_STORAGE, null);
+
+        try {
+            return storage != null ? VappStateStorage.valueOf(storage) : VappStateStorage.SHARED_PREFERENCES;
+        }
+        catch (IllegalArgumentException e) {
+            return VappStateStorage.SHARED_PREFERENCES;
         }
     }
 
@@ -160,7 +599,7 @@ abstract class VappConfiguration {
      * @param sdkKey  the sdk key to store
      */
     static void setSdkKey(Context context, String sdkKey) {
-        getSharedPrefsEditor(context).putString(SDK_KEY, sdkKey).commit();
+        getCache(context).putString(SDK_KEY, sdkKey);
     }
 
     /**
@@ -170,23 +609,225 @@ abstract class VappConfiguration {
      * @return the stored sdk key
      */
     static String getSdkKey(Context context) {
-        return getSharedPrefs(context).getString(SDK_KEY, null);
+        return getCache(context).getString(SDK_KEY, null);
     }
 
 
-    private static SharedPreferences.Editor getSharedPrefsEditor(Context context) {
-        return getSharedPrefs(context).edit();
+    /**
+     * Applies a sent count which has been recorded in the {@link SmsProgressJournal}.
+     */
+    static void applyJournalledSentSmsCount(Context context, String productId, int count,
+                                            long journalPosition) {
+        getSharedPrefsStore(context).applyJournalledSentSmsCount(productId, count, journalPosition);
+        onProductStateChanged(context, productId);
+    }
+
+    /**
+     * Commits all state together with a new journal position, waiting until it is on disk. Must
+     * not be called on the main thread.
+     */
+    static void commitJournalPosition(Context context, long journalPosition) {
+        getSharedPrefsStore(context).commitJournalPosition(journalPosition);
     }
 
-    private static SharedPreferences getSharedPrefs(Context context) {
-        return PreferenceManager.getDefaultSharedPreferences(context);
+    /**
+     * Re-applies any journalled SMS progress which had not been committed when the process last
+     * exited.
+     */
+    static void replayProgressJournal(Context context) {
+        SmsProgressJournal journal = SmsProgressJournal.get(context);
+
+        if (journal != null) {
+            SharedPrefsProductStateStore prefsStore = getSharedPrefsStore(context);
+            journal.replay(prefsStore.getJournalPosition(), prefsStore.getProductRegistry());
+        }
     }
 
-    private static String getKeyForProduct(VappProduct product, String suffix) {
-        return getKeyForProduct(product.getProductId(), suffix);
+    /**
+     * Writes any cached state which has not yet been persisted. Off the main thread, this waits
+     * until the state is on disk. On the main thread, the write is only started, so where a caller
+     * must not go on until the state is on disk (for example before stopping a service, after which
+     * the process may be killed) it should use {@link #flush(Context, Runnable)} instead.
+     *
+     * @param context the current context
+     */
+    static void flush(Context context) {
+        getCache(context).flush(); // first, as a client's store flush persists its cache in the SDK process
+        getStore(context).flush();
     }
 
-    private static String getKeyForProduct(String productId, String suffix) {
-        return APP_PREFIX + productId + suffix;
+    /**
+     * Writes any cached state which has not yet been persisted, then runs a task once it is on
+     * disk: on the main thread if called from it, where this never waits on disk, otherwise on the
+     * calling thread before this returns.
+     *
+     * @param context   the current context
+     * @param onFlushed run once the state has been written, even if writing it failed
+     */
+    static void flush(final Context context, final Runnable onFlushed) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            try {
+                flush(context);
+            }
+            finally {
+                onFlushed.run();
+            }
+            return;
+        }
+
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+        getCache(context).executeOnWriter(new Runnable() { // off the main thread, so the flush waits
+            @Override public void run() {
+                try {
+                    flush(context);
+                }
+                catch (RuntimeException e) {
+                    Log.e(Vapp.TAG, "Failed to persist VAPP state", e);
+                }
+                finally {
+                    mainHandler.post(onFlushed);
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes all state persisted by the SDK.
+     *
+     * @param context the current context
+     */
+    static void clear(Context context) {
+        if (VappProcess.isStateClient(context)) { // the SDK process clears everything
+            getCache(context).flush();
+            getStore(context).clear();
+            VappRenewalSchedule.invalidate();
+            getCache(context).reload();
+            return;
+        }
+
+        getStore(context).clear();
+        VappRenewalSchedule.invalidate();
+        VappStateCache cache = getCache(context);
+
+        for (String key : cache.getAll().keySet()) {
+            if (!PREFS_MIGRATED.equals(key) && !STATE_STORAGE.equals(key)) {
+                cache.remove(key);
+            }
+        }
+        cache.flush();
+
+        final Context appContext = context.getApplicationContext();
+
+        cache.executeOnWriter(new Runnable() { // the journals are opened from disk
+            @Override public void run() {
+                SmsProgressJournal journal = SmsProgressJournal.get(appContext);
+
+                if (journal != null) { // otherwise the journal would restore the cleared progress
+                    journal.compact();
+                }
+                PurchaseJournal.get(appContext).clear();
+            }
+        });
+    }
+
+    /**
+     * Opens the SDK's own preferences file. The first time this is called after an upgrade, any
+     * SDK keys left in the host app's default preferences are moved across.
+     *
+     * @param context the current context
+     * @return the SDK's preferences
+     */
+    static SharedPreferences openSharedPrefs(Context context) {
+        SharedPreferences sdkPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+        if (!sdkPrefs.getBoolean(PREFS_MIGRATED, false)) {
+            SharedPreferences defaultPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+            SharedPreferences.Editor sdkEditor = sdkPrefs.edit();
+            SharedPreferences.Editor defaultEditor = defaultPrefs.edit();
+            int migratedCount = 0;
+
+            for (Map.Entry<String, ?> entry : defaultPrefs.getAll().entrySet()) {
+                String key = entry.getKey();
+                Object value = entry.getValue();
+
+                if (!key.startsWith(APP_PREFIX) && !SDK_KEY.equals(key)) {
+                    continue;
+                }
+
+                if (value instanceof Integer) {
+                    sdkEditor.putInt(key, (Integer) value);
+                }
+                else if (value instanceof Long) {
+                    sdkEditor.putLong(key, (Long) value);
+                }
+                else if (value instanceof Boolean) {
+                    sdkEditor.putBoolean(key, (Boolean) value);
+                }
+                else if (value instanceof String) {
+                    sdkEditor.putString(key, (String) value);
+                }
+                defaultEditor.remove(key);
+                migratedCount++;
+            }
+
+            sdkEditor.putBoolean(PREFS_MIGRATED, true);
+
+            if (sdkEditor.commit() && migratedCount > 0) { // only remove the originals once copied
+                defaultEditor.commit();
+                Log.d(Vapp.TAG, "Migrated " + migratedCount + " VAPP keys from default preferences");
+            }
+        }
+        return sdkPrefs;
+    }
+
+    private static VappStateCache getCache(Context context) {
+        return VappStateCache.get(context);
+    }
+
+    /**
+     * @param context the current context
+     * @return the product state store for this process.
+     */
+    static ProductStateStore getStore(Context context) {
+        ProductStateStore current = store;
+
+        if (current == null) {
+            getCache(context);
+
+            synchronized (storeLock) {
+                if (store == null) {
+                    store = createStore(context, getStateStorage(context));
+                }
+                current = store;
+            }
+        }
+        return current;
+    }
+
+    private static ProductStateStore createStore(Context context, VappStateStorage storage) {
+        if (VappProcess.isStateClient(context)) {
+            return new RemoteProductStateStore(context);
+        }
+
+        switch (storage) {
+            case SQLITE:
+                return new SqliteProductStateStore(context);
+            case IN_MEMORY:
+                return new InMemoryProductStateStore();
+            default:
+                return getSharedPrefsStore(context);
+        }
+    }
+
+    private static SharedPrefsProductStateStore getSharedPrefsStore(Context context) {
+        VappStateCache cache = getCache(context);
+
+        synchronized (storeLock) {
+            if (sharedPrefsStore == null) {
+                sharedPrefsStore = new SharedPrefsProductStateStore(cache);
+            }
+            return sharedPrefsStore;
+        }
     }
 }
@@ -1,35 +1,91 @@
 package com.vasilitate.vapp.sdk;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.provider.BaseColumns;
 
 import com.vasilitate.vapp.sdk.network.request.PostLogsBody;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
- * Provides a DB Helper, which is used to temporarily persist sent messages in a local DB,
- * before they are sent via REST API to a server and removed.
+ * Provides a DB Helper, which is used to persist sent messages in a local DB until they have been
+ * sent via REST API to a server. Each upload acknowledges exactly the range of rows it sent, so
+ * messages logged while an upload is in flight are never lost. The DB also holds product state when
+ * {@link VappStateStorage#SQLITE} is selected.
+ * <p/>
+ * A single helper is shared by the whole process, and its connection is kept open rather than
+ * being opened and closed around each operation.
  */
 class VappDbHelper extends SQLiteOpenHelper {
 
     private static final String DB_NAME = "vapp.db";
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 4;
+
+    /**
+     * The approximate storage overhead of an SMS log row, excluding its text.
+     */
+    private static final int SMS_ROW_OVERHEAD_BYTES = 32;
 
-    VappDbHelper(Context context) {
+    private static VappDbHelper instance;
+
+    private SQLiteStatement insertSmsStatement;
+    private SQLiteStatement acknowledgeSmsStatement;
+    private SQLiteStatement hasPendingSmsStatement;
+    private SQLiteStatement countPendingSmsStatement;
+
+    private VappDbHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
     }
 
+    /**
+     * @param context the current context
+     * @return the process-wide helper.
+     */
+    static synchronized VappDbHelper get(Context context) {
+        if (instance == null) {
+            instance = new VappDbHelper(context.getApplicationContext());
+        }
+        return instance;
+    }
+
     @Override public void onCreate(SQLiteDatabase db) {
-        db.execSQL(SmsEntry.sqlCreateTable());
+        db.execSQL(SmsEntry.sqlCreateTable(SmsEntry.TABLE_NAME));
+        db.execSQL(SmsEntry.sqlCreateIndex());
+        db.execSQL(SmsEntry.sqlCreateProductIndex());
+        db.execSQL(ProductStateEntry.sqlCreateTable());
+    }
+
+    @Override public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        // Lets reads proceed while the SMS log is written. Not available before Honeycomb.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
     }
 
     @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            db.execSQL(ProductStateEntry.sqlCreateTable());
+        }
+        if (oldVersion < 3) { // rebuild sms_entry with ids, keeping any messages not yet uploaded
+            String newTable = SmsEntry.TABLE_NAME + "_v3";
+            db.execSQL(SmsEntry.sqlCreateTable(newTable));
+            db.execSQL(String.format("INSERT INTO %s (%s, %s, %s, %s) SELECT %s, %s, %d, %d FROM %s",
+                    newTable, SmsEntry.COLUMN_NAME_MESSAGE, SmsEntry.COLUMN_NAME_DDI,
+                    SmsEntry.COLUMN_NAME_CREATED_AT, SmsEntry.COLUMN_NAME_UPLOAD_STATE,
+                    SmsEntry.COLUMN_NAME_MESSAGE, SmsEntry.COLUMN_NAME_DDI,
+                    System.currentTimeMillis(), SmsEntry.UPLOAD_STATE_PENDING, SmsEntry.TABLE_NAME));
+            db.execSQL("DROP TABLE " + SmsEntry.TABLE_NAME);
+            db.execSQL(String.format("ALTER TABLE %s RENAME TO %s", newTable, SmsEntry.TABLE_NAME));
+            db.execSQL(SmsEntry.sqlCreateIndex());
+        }
+        if (oldVersion < 4) {
+            db.execSQL(SmsEntry.sqlCreateProductIndex());
+        }
     }
 
     /**
@@ -39,61 +95,328 @@ class VappDbHelper extends SQLiteOpenHelper {
         public static final String TABLE_NAME = "sms_entry";
         public static final String COLUMN_NAME_MESSAGE = "message";
         public static final String COLUMN_NAME_DDI = "ddi";
+        public static final String COLUMN_NAME_PRODUCT_ID = "product_id";
+        public static final String COLUMN_NAME_CREATED_AT = "created_at";
+        public static final String COLUMN_NAME_UPLOAD_STATE = "upload_state";
+
+        public static final int UPLOAD_STATE_PENDING = 0;
+        public static final int UPLOAD_STATE_UPLOADED = 1;
+
+        public static String sqlCreateTable(String tableName) {
+            return String.format("CREATE TABLE %s (%s INTEGER PRIMARY KEY AUTOINCREMENT, %s TEXT, %s TEXT, " +
+                            "%s TEXT, %s INTEGER NOT NULL, %s INTEGER NOT NULL DEFAULT %d)",
+                    tableName, _ID, COLUMN_NAME_MESSAGE, COLUMN_NAME_DDI, COLUMN_NAME_PRODUCT_ID,
+                    COLUMN_NAME_CREATED_AT, COLUMN_NAME_UPLOAD_STATE, UPLOAD_STATE_PENDING);
+        }
+
+        public static String sqlCreateIndex() {
+            return String.format("CREATE INDEX %s_%s_idx ON %s (%s, %s)",
+                    TABLE_NAME, COLUMN_NAME_UPLOAD_STATE, TABLE_NAME, COLUMN_NAME_UPLOAD_STATE, _ID);
+        }
+
+        public static String sqlCreateProductIndex() {
+            return String.format("CREATE INDEX %s_%s_idx ON %s (%s, %s)",
+                    TABLE_NAME, COLUMN_NAME_PRODUCT_ID, TABLE_NAME, COLUMN_NAME_PRODUCT_ID, _ID);
+        }
+    }
+
+    /**
+     * Defines the ProductStateEntry table schema, used by {@link SqliteProductStateStore}.
+     */
+    static abstract class ProductStateEntry implements BaseColumns {
+        public static final String TABLE_NAME = "product_state";
+        public static final String COLUMN_NAME_PRODUCT_ID = "product_id";
+        public static final String COLUMN_NAME_STATE = "state";
+        public static final String COLUMN_NAME_REGISTERED = "registered";
 
         public static String sqlCreateTable() {
-            return String.format("CREATE TABLE %s (%s TEXT, %s TEXT)",
-                    TABLE_NAME, COLUMN_NAME_MESSAGE, COLUMN_NAME_DDI);
+            return String.format("CREATE TABLE %s (%s TEXT PRIMARY KEY, %s TEXT NOT NULL, %s INTEGER NOT NULL DEFAULT 0)",
+                    TABLE_NAME, COLUMN_NAME_PRODUCT_ID, COLUMN_NAME_STATE, COLUMN_NAME_REGISTERED);
         }
     }
 
     /**
-     * Retrieves a list of all messages which have been sent but not logged on the server
+     * A page of logged messages, identified by the range of row ids it covers. The messages
+     * themselves are only read when the page is uploaded, one row at a time.
+     */
+    static final class SmsLogBatch implements PostLogsBody.LogSource {
+        private final VappDbHelper dbHelper;
+        final long firstId;
+        final long lastId;
+        final int count;
+
+        SmsLogBatch(VappDbHelper dbHelper, long firstId, long lastId, int count) {
+            this.dbHelper = dbHelper;
+            this.firstId = firstId;
+            this.lastId = lastId;
+            this.count = count;
+        }
+
+        boolean isEmpty() {
+            return count == 0;
+        }
+
+        @Override public int getCount() {
+            return count;
+        }
+
+        @Override public Cursor query() {
+            return dbHelper.getReadableDatabase().query(SmsEntry.TABLE_NAME,
+                    new String[]{SmsEntry.COLUMN_NAME_MESSAGE, SmsEntry.COLUMN_NAME_DDI},
+                    String.format("%s BETWEEN %d AND %d AND %s = %d", SmsEntry._ID, firstId, lastId,
+                            SmsEntry.COLUMN_NAME_UPLOAD_STATE, SmsEntry.UPLOAD_STATE_PENDING),
+                    null, null, null, SmsEntry._ID);
+        }
+    }
+
+    /**
+     * Finds the oldest page of messages which have been sent but not yet logged on the server.
      *
-     * @return a list of log entries
+     * @param pageSize the maximum number of messages in the page
+     * @return the page, which is empty if there are no such messages
      */
-    List<PostLogsBody.LogEntry> retrieveSentSmsLogs() {
-        List<PostLogsBody.LogEntry> logEntryList = new ArrayList<>();
+    SmsLogBatch retrieveSentSmsLogs(int pageSize) {
+        Cursor cursor = getReadableDatabase().rawQuery(
+                String.format("SELECT MIN(%1$s), MAX(%1$s), COUNT(*) FROM " +
+                                "(SELECT %1$s FROM %2$s WHERE %3$s = %4$d ORDER BY %1$s LIMIT %5$d)",
+                        SmsEntry._ID, SmsEntry.TABLE_NAME, SmsEntry.COLUMN_NAME_UPLOAD_STATE,
+                        SmsEntry.UPLOAD_STATE_PENDING, pageSize), null);
 
-        SQLiteDatabase readableDatabase = getReadableDatabase();
-        Cursor cursor = readableDatabase.query(SmsEntry.TABLE_NAME, null, null, null, null, null, null);
+        try {
+            if (cursor.moveToFirst() && cursor.getInt(2) > 0) {
+                return new SmsLogBatch(this, cursor.getLong(0), cursor.getLong(1), cursor.getInt(2));
+            }
+            return new SmsLogBatch(this, 0, 0, 0);
+        }
+        finally {
+            cursor.close();
+        }
+    }
 
-        int columnIndexDdi = cursor.getColumnIndex(SmsEntry.COLUMN_NAME_DDI);
-        int columnIndexMessage = cursor.getColumnIndex(SmsEntry.COLUMN_NAME_MESSAGE);
+    /**
+     * A single index lookup, however many messages are stored.
+     *
+     * @return true if any sent messages have not yet been logged on the server.
+     */
+    synchronized boolean hasPendingSmsLogs() {
+        if (hasPendingSmsStatement == null) {
+            hasPendingSmsStatement = getReadableDatabase().compileStatement(
+                    String.format("SELECT EXISTS (SELECT 1 FROM %s WHERE %s = %d)",
+                            SmsEntry.TABLE_NAME, SmsEntry.COLUMN_NAME_UPLOAD_STATE, SmsEntry.UPLOAD_STATE_PENDING));
+        }
+        return hasPendingSmsStatement.simpleQueryForLong() != 0;
+    }
+
+    /**
+     * Counts the pending rows using the upload state index. The count is bounded by the
+     * {@link VappLogRetention} row limit.
+     *
+     * @return the number of sent messages not yet logged on the server.
+     */
+    synchronized long countPendingSmsLogs() {
+        if (countPendingSmsStatement == null) {
+            countPendingSmsStatement = getReadableDatabase().compileStatement(
+                    String.format("SELECT COUNT(*) FROM %s WHERE %s = %d",
+                            SmsEntry.TABLE_NAME, SmsEntry.COLUMN_NAME_UPLOAD_STATE, SmsEntry.UPLOAD_STATE_PENDING));
+        }
+        return countPendingSmsStatement.simpleQueryForLong();
+    }
 
-        if (cursor.moveToFirst()) {
-            do {
-                String message = cursor.getString(columnIndexMessage);
-                String ddi = cursor.getString(columnIndexDdi);
-                logEntryList.add(new PostLogsBody.LogEntry(message, ddi));
+    /**
+     * Marks the messages in a batch as logged on the server. Messages logged after the batch was
+     * retrieved are unaffected. Uploaded messages are kept as history until removed by
+     * {@link #compactSmsLogs(VappLogRetention, long)}.
+     *
+     * @param batch a batch which has been successfully uploaded
+     */
+    synchronized void acknowledgeSentSmsLogs(SmsLogBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        SQLiteDatabase db = getWritableDatabase();
+
+        if (acknowledgeSmsStatement == null) {
+            acknowledgeSmsStatement = db.compileStatement(
+                    String.format("UPDATE %s SET %s = %d WHERE %s BETWEEN ? AND ?",
+                            SmsEntry.TABLE_NAME, SmsEntry.COLUMN_NAME_UPLOAD_STATE, SmsEntry.UPLOAD_STATE_UPLOADED,
+                            SmsEntry._ID));
+        }
+        acknowledgeSmsStatement.bindLong(1, batch.firstId);
+        acknowledgeSmsStatement.bindLong(2, batch.lastId);
+        acknowledgeSmsStatement.execute();
+    }
+
+    /**
+     * Removes messages beyond the retention limits. Messages older than the maximum age are
+     * removed first. If the row or byte limit is still exceeded, the oldest uploaded messages are
+     * removed, then the oldest messages awaiting upload.
+     *
+     * @param retention the retention limits
+     * @param now       the current time (ms since epoch)
+     * @return the number of messages removed which had not yet been uploaded
+     */
+    synchronized int compactSmsLogs(VappLogRetention retention, long now) {
+        SQLiteDatabase db = getWritableDatabase();
+        int droppedPending = 0;
+
+        db.beginTransaction();
+
+        try {
+            String expired = SmsEntry.COLUMN_NAME_CREATED_AT + " < " + (now - retention.getMaxAgeMs());
+            droppedPending += db.delete(SmsEntry.TABLE_NAME,
+                    expired + " AND " + isUploadState(SmsEntry.UPLOAD_STATE_PENDING), null);
+            db.delete(SmsEntry.TABLE_NAME, expired, null);
+
+            long excessRows = queryLong(db, "SELECT COUNT(*) FROM " + SmsEntry.TABLE_NAME) - retention.getMaxRows();
+
+            if (excessRows > 0) {
+                excessRows -= deleteOldest(db, SmsEntry.UPLOAD_STATE_UPLOADED, excessRows);
+            }
+            if (excessRows > 0) {
+                droppedPending += deleteOldest(db, SmsEntry.UPLOAD_STATE_PENDING, excessRows);
             }
-            while (cursor.moveToNext());
+
+            long excessBytes = queryLong(db, "SELECT SUM(" + rowBytes() + ") FROM " + SmsEntry.TABLE_NAME)
+                    - retention.getMaxBytes();
+
+            if (excessBytes > 0) {
+                excessBytes -= deleteOldestBytes(db, SmsEntry.UPLOAD_STATE_UPLOADED, excessBytes).bytes;
+            }
+            if (excessBytes > 0) {
+                droppedPending += deleteOldestBytes(db, SmsEntry.UPLOAD_STATE_PENDING, excessBytes).rows;
+            }
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+        }
+        return droppedPending;
+    }
+
+    private int deleteOldest(SQLiteDatabase db, int uploadState, long count) {
+        return db.delete(SmsEntry.TABLE_NAME, String.format("%1$s IN (SELECT %1$s FROM %2$s WHERE %3$s ORDER BY %1$s LIMIT %4$d)",
+                SmsEntry._ID, SmsEntry.TABLE_NAME, isUploadState(uploadState), count), null);
+    }
+
+    /**
+     * Deletes the oldest rows in an upload state until at least the given number of bytes have
+     * been freed, or none remain.
+     */
+    private Removed deleteOldestBytes(SQLiteDatabase db, int uploadState, long bytes) {
+        Cursor cursor = db.query(SmsEntry.TABLE_NAME, new String[]{SmsEntry._ID, rowBytes()},
+                isUploadState(uploadState), null, null, null, SmsEntry._ID);
+        Removed removed = new Removed();
+        long lastId = -1;
+
+        try {
+            while (removed.bytes < bytes && cursor.moveToNext()) {
+                lastId = cursor.getLong(0);
+                removed.bytes += cursor.getLong(1);
+                removed.rows++;
+            }
+        }
+        finally {
+            cursor.close();
+        }
+
+        if (lastId != -1) {
+            db.delete(SmsEntry.TABLE_NAME,
+                    isUploadState(uploadState) + " AND " + SmsEntry._ID + " <= " + lastId, null);
+        }
+        return removed;
+    }
+
+    private static long queryLong(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+        finally {
+            cursor.close();
         }
-        cursor.close();
-        readableDatabase.close();
-        return logEntryList;
+    }
+
+    private static String isUploadState(int uploadState) {
+        return SmsEntry.COLUMN_NAME_UPLOAD_STATE + " = " + uploadState;
     }
 
     /**
-     * Deletes all records of messages which have been sent.
+     * @return the size of the row logging an SMS, as counted against the {@link VappLogRetention}
+     * byte limit.
      */
-    void clearSentSmsLogs() {
-        SQLiteDatabase writableDatabase = getWritableDatabase();
-        writableDatabase.delete(SmsEntry.TABLE_NAME, null, null);
-        writableDatabase.close();
+    static long estimateSmsLogBytes(VappSms sms, String productId) {
+        return sms.toString().length() + length(sms.getDeliveryNumber()) + length(productId) + SMS_ROW_OVERHEAD_BYTES;
+    }
+
+    private static int length(String value) {
+        return value != null ? value.length() : 0;
+    }
+
+    private static String rowBytes() {
+        return String.format("IFNULL(LENGTH(%s), 0) + IFNULL(LENGTH(%s), 0) + IFNULL(LENGTH(%s), 0) + %d",
+                SmsEntry.COLUMN_NAME_MESSAGE, SmsEntry.COLUMN_NAME_DDI, SmsEntry.COLUMN_NAME_PRODUCT_ID,
+                SMS_ROW_OVERHEAD_BYTES);
+    }
+
+    private static final class Removed {
+        int rows;
+        long bytes;
     }
 
     /**
      * Inserts a log of an SMS into the DB
-     * @param sms the sms
+     *
+     * @param sms       the sms
+     * @param productId the id of the product the sms paid for
+     */
+    synchronized void insertSmsLogDbRecord(VappSms sms, String productId) {
+        if (insertSmsStatement == null) {
+            insertSmsStatement = getWritableDatabase().compileStatement(
+                    String.format("INSERT INTO %s (%s, %s, %s, %s) VALUES (?, ?, ?, ?)",
+                            SmsEntry.TABLE_NAME, SmsEntry.COLUMN_NAME_MESSAGE, SmsEntry.COLUMN_NAME_DDI,
+                            SmsEntry.COLUMN_NAME_PRODUCT_ID, SmsEntry.COLUMN_NAME_CREATED_AT));
+        }
+        insertSmsStatement.bindString(1, sms.toString());
+        bindStringOrNull(insertSmsStatement, 2, sms.getDeliveryNumber());
+        bindStringOrNull(insertSmsStatement, 3, productId);
+        insertSmsStatement.bindLong(4, System.currentTimeMillis());
+        insertSmsStatement.executeInsert();
+        insertSmsStatement.clearBindings();
+    }
+
+    /**
+     * Checks whether an SMS was logged for its product before its purchase was interrupted. Such
+     * an SMS can only be the product's most recent log, whether or not it has since been uploaded,
+     * so only that row is read, through the product index.
+     * <p/>
+     * If retention compaction has already removed the row, which needs the log to reach its limits
+     * with nothing older left to remove, or the row to pass the maximum age, the SMS is not found,
+     * so it is logged and uploaded again.
+     *
+     * @return true if the SMS is the most recent logged for the product.
      */
-    void insertSmsLogDbRecord(VappSms sms) {
-        SQLiteDatabase writableDatabase = getWritableDatabase();
-        ContentValues values = new ContentValues();
-
-        values.put(SmsEntry.COLUMN_NAME_MESSAGE, sms.toString());
-        values.put(SmsEntry.COLUMN_NAME_DDI, sms.getDeliveryNumber());
-        writableDatabase.insert(SmsEntry.TABLE_NAME, null, values);
-        writableDatabase.close();
+    synchronized boolean isLastSmsLog(VappSms sms, String productId) {
+        Cursor cursor = getReadableDatabase().query(SmsEntry.TABLE_NAME, new String[]{SmsEntry.COLUMN_NAME_MESSAGE},
+                SmsEntry.COLUMN_NAME_PRODUCT_ID + " = ?", new String[]{productId}, null, null,
+                SmsEntry._ID + " DESC", "1");
+
+        try {
+            return cursor.moveToFirst() && sms.toString().equals(cursor.getString(0));
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        }
+        else {
+            statement.bindNull(index);
+        }
     }
 
 }
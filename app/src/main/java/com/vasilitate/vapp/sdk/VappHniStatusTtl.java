@@ -0,0 +1,65 @@
+package com.vasilitate.vapp.sdk;
+
+import com.vasilitate.vapp.sdk.exceptions.VappException;
+
+/**
+ * Limits how long the result of a network's HNI status check is reused before the VAPP! server is
+ * asked again, set with {@link Vapp#setHniStatusTtl(android.content.Context, VappHniStatusTtl)}.
+ * <p/>
+ * A result younger than the time to live for its status is used without contacting the server. For
+ * a further stale period, an expired whitelisted result is still used, while it is refreshed in the
+ * background for the next purchase. Older results, and expired blacklisted or unknown results, are
+ * discarded, and the purchase waits for the server.
+ */
+public final class VappHniStatusTtl {
+
+    /**
+     * Reuses a whitelisted result for 24 hours, a blacklisted result for 6 hours and an unknown
+     * result for 15 minutes, then a whitelisted result for a further 24 hours while it is refreshed.
+     */
+    public static final VappHniStatusTtl DEFAULT = new VappHniStatusTtl(24L * 60 * 60 * 1000,
+            6L * 60 * 60 * 1000, 15L * 60 * 1000, 24L * 60 * 60 * 1000);
+
+    /**
+     * Never reuses a result, so that every purchase waits for the server.
+     */
+    public static final VappHniStatusTtl NEVER = new VappHniStatusTtl(0, 0, 0, 0);
+
+    private final long whitelistedTtlMs;
+    private final long blacklistedTtlMs;
+    private final long unknownTtlMs;
+    private final long staleMs;
+
+    /**
+     * @param whitelistedTtlMs how long a whitelisted result is reused, in milliseconds
+     * @param blacklistedTtlMs how long a blacklisted result is reused, in milliseconds
+     * @param unknownTtlMs     how long an unknown result is reused, in milliseconds
+     * @param staleMs          how long an expired whitelisted result is still reused while it is
+     *                         refreshed, in milliseconds
+     */
+    public VappHniStatusTtl(long whitelistedTtlMs, long blacklistedTtlMs, long unknownTtlMs, long staleMs) {
+        if (whitelistedTtlMs < 0 || blacklistedTtlMs < 0 || unknownTtlMs < 0 || staleMs < 0) {
+            throw new VappException("HNI status times to live cannot be negative");
+        }
+        this.whitelistedTtlMs = whitelistedTtlMs;
+        this.blacklistedTtlMs = blacklistedTtlMs;
+        this.unknownTtlMs = unknownTtlMs;
+        this.staleMs = staleMs;
+    }
+
+    public long getWhitelistedTtlMs() {
+        return whitelistedTtlMs;
+    }
+
+    public long getBlacklistedTtlMs() {
+        return blacklistedTtlMs;
+    }
+
+    public long getUnknownTtlMs() {
+        return unknownTtlMs;
+    }
+
+    public long getStaleMs() {
+        return staleMs;
+    }
+}
@@ -0,0 +1,141 @@
+package com.vasilitate.vapp.sdk;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.vasilitate.vapp.sdk.exceptions.VappException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A handle on an initialisation started by {@link Vapp#initialiseAsync}. Vapp methods called on a
+ * background thread before the initialisation completes wait for it. On the main thread they throw
+ * a {@link com.vasilitate.vapp.sdk.exceptions.VappInitialisingException} instead, other than
+ * {@link Vapp#showVappPaymentScreen(android.app.Activity, VappProduct, boolean, int)}, which is
+ * queued until it completes.
+ */
+public final class VappInitialisation {
+
+    /**
+     * Notified on the main thread once initialisation has completed.
+     */
+    public interface Listener {
+
+        /**
+         * @param error the reason initialisation failed, or null if it succeeded.
+         */
+        void onInitialisationComplete(VappException error);
+    }
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> listeners = new ArrayList<>();
+
+    private volatile VappException error;
+
+    VappInitialisation() {
+    }
+
+    /**
+     * @return true if initialisation has completed, successfully or not.
+     */
+    public boolean isDone() {
+        return latch.getCount() == 0;
+    }
+
+    /**
+     * @return the reason initialisation failed, or null if it succeeded or has not yet completed.
+     */
+    public VappException getError() {
+        return error;
+    }
+
+    /**
+     * Blocks until initialisation has completed. Must not be called on the main thread.
+     *
+     * @throws VappException if initialisation failed.
+     */
+    public void await() throws VappException {
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                latch.await();
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        throwIfFailed();
+    }
+
+    /**
+     * Blocks until initialisation has completed, or the timeout expires.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the unit of the timeout
+     * @return true if initialisation completed, false if the timeout expired first.
+     * @throws VappException        if initialisation failed.
+     * @throws InterruptedException if the current thread was interrupted while waiting.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws VappException, InterruptedException {
+        if (!latch.await(timeout, unit)) {
+            return false;
+        }
+        throwIfFailed();
+        return true;
+    }
+
+    /**
+     * Adds a listener to be notified on the main thread once initialisation completes. If it has
+     * already completed, the listener is notified straight away (still on the main thread).
+     *
+     * @param listener the listener
+     */
+    public void addListener(Listener listener) {
+        synchronized (listeners) {
+            if (!isDone()) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    void complete(VappException error) {
+        List<Listener> pending;
+
+        synchronized (listeners) {
+            this.error = error;
+            latch.countDown();
+            pending = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+
+        for (Listener listener : pending) {
+            notifyListener(listener);
+        }
+    }
+
+    private void notifyListener(final Listener listener) {
+        mainHandler.post(new Runnable() {
+            @Override public void run() {
+                listener.onInitialisationComplete(error);
+            }
+        });
+    }
+
+    private void throwIfFailed() throws VappException {
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.vasilitate.vapp.sdk;
+
+/**
+ * The {@link VappLogShipperReceiver}, declared in the dedicated SDK process. Targeted by the
+ * {@link VappLogShipper} alarm in place of the receiver when <code>vapp_isolated_process</code> is
+ * set, so that logs are only ever uploaded by the process which owns them.
+ */
+public class VappIsolatedLogShipperReceiver extends VappLogShipperReceiver {
+}
@@ -0,0 +1,9 @@
+package com.vasilitate.vapp.sdk;
+
+/**
+ * The {@link VappSmsService}, declared in the dedicated SDK process. Started in place of the
+ * service when <code>vapp_isolated_process</code> is set, so that the SMS timers are unaffected by
+ * garbage collection and memory pressure in the host app.
+ */
+public class VappIsolatedSmsService extends VappSmsService {
+}
@@ -0,0 +1,50 @@
+package com.vasilitate.vapp.sdk;
+
+import com.vasilitate.vapp.sdk.exceptions.VappException;
+
+/**
+ * Limits how much SMS log history the SDK keeps on the device, set with
+ * {@link Vapp#setSmsLogRetention(android.content.Context, VappLogRetention)}.
+ * <p/>
+ * Logs older than the maximum age are always removed. When the row or byte limit is exceeded the
+ * oldest uploaded logs are removed first, then, if the device has been unable to upload for long
+ * enough that the limit is still exceeded, the oldest logs awaiting upload.
+ */
+public final class VappLogRetention {
+
+    /**
+     * Keeps up to 1000 logs, no older than 30 days, in no more than 256KB.
+     */
+    public static final VappLogRetention DEFAULT =
+            new VappLogRetention(1000, 30L * 24 * 60 * 60 * 1000, 256 * 1024);
+
+    private final int maxRows;
+    private final long maxAgeMs;
+    private final long maxBytes;
+
+    /**
+     * @param maxRows  the maximum number of logs kept
+     * @param maxAgeMs the maximum age of a log, in milliseconds
+     * @param maxBytes the maximum (approximate) size of all logs, in bytes
+     */
+    public VappLogRetention(int maxRows, long maxAgeMs, long maxBytes) {
+        if (maxRows <= 0 || maxAgeMs <= 0 || maxBytes <= 0) {
+            throw new VappException("Log retention limits must be greater than 0");
+        }
+        this.maxRows = maxRows;
+        this.maxAgeMs = maxAgeMs;
+        this.maxBytes = maxBytes;
+    }
+
+    public int getMaxRows() {
+        return maxRows;
+    }
+
+    public long getMaxAgeMs() {
+        return maxAgeMs;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+}
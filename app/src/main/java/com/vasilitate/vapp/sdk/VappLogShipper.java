@@ -0,0 +1,225 @@
+package com.vasilitate.vapp.sdk;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.database.sqlite.SQLiteException;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.vasilitate.vapp.sdk.exceptions.VappApiException;
+import com.vasilitate.vapp.sdk.network.RemoteNetworkTaskListener;
+import com.vasilitate.vapp.sdk.network.VappRestClient;
+import com.vasilitate.vapp.sdk.network.request.PostLogsBody;
+import com.vasilitate.vapp.sdk.network.request.RemoteNetworkTask;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Uploads logged SMSs to POST /logs, independently of any purchase. It is the only component which
+ * uploads logs, and only runs in the process which owns them (see {@link VappProcess}), so a row is
+ * never posted by two uploads at once.
+ * <p/>
+ * Once {@link #BATCH_SIZE} logs are awaiting upload, or the oldest has waited
+ * {@link #MAX_DELAY_MS}, an alarm triggers a flush of every pending page. Each alarm is offset by a
+ * fixed per-device jitter, so that devices don't upload in step. A flush without connectivity, or
+ * which fails, is retried after {@link #RETRY_DELAY_MS}. Each page is read, posted and acknowledged
+ * on a background thread.
+ */
+final class VappLogShipper {
+
+    /**
+     * The number of pending logs which triggers an upload.
+     */
+    static final int BATCH_SIZE = 20;
+
+    /**
+     * The longest a log waits before an upload is triggered, excluding jitter.
+     */
+    static final long MAX_DELAY_MS = 60 * 1000;
+
+    /**
+     * The delay before retrying a failed upload, excluding jitter.
+     */
+    static final long RETRY_DELAY_MS = 5 * 60 * 1000;
+
+    /**
+     * The maximum per-device delay added to each alarm.
+     */
+    static final long MAX_JITTER_MS = 15 * 1000;
+
+    /**
+     * The maximum number of logs sent in a single request.
+     */
+    static final int PAGE_SIZE = 200;
+
+    private static final int REQUEST_CODE = 1002;
+
+    /**
+     * Notified on the main thread once a flush has completed.
+     */
+    interface Listener {
+
+        /**
+         * @param success true if every pending log was uploaded
+         */
+        void onFlushComplete(boolean success);
+    }
+
+    private static long alarmTime; // elapsed realtime of the pending alarm, or 0 if none
+
+    // accessed on the main thread only
+    private static boolean flushing;
+    private static final List<Listener> listeners = new ArrayList<>();
+
+    private VappLogShipper() {
+    }
+
+    /**
+     * Schedules an upload once logs have been written. May be called on any thread.
+     *
+     * @param context      the current context
+     * @param pendingCount the number of logs now awaiting upload
+     */
+    static void onLogsWritten(Context context, long pendingCount) {
+        if (pendingCount > 0) {
+            schedule(context, pendingCount >= BATCH_SIZE ? 0 : MAX_DELAY_MS);
+        }
+    }
+
+    /**
+     * Uploads every pending log, a page at a time. If a flush is already in progress, the listener
+     * is notified when it completes, as it also uploads any logs written since it started. Must be
+     * called on the main thread, of the process which owns the SMS logs.
+     *
+     * @param context  the current context
+     * @param listener notified once the flush completes, or null
+     */
+    static void flush(Context context, Listener listener) {
+        Context appContext = context.getApplicationContext();
+
+        if (listener != null) {
+            listeners.add(listener);
+        }
+        if (flushing) {
+            return;
+        }
+
+        if (!isConnected(appContext)) {
+            Log.d(Vapp.TAG, "No connection available, deferring log upload");
+            finish(appContext, false);
+        }
+        else {
+            flushing = true;
+            shipLogs(appContext);
+        }
+    }
+
+    private static void shipLogs(final Context context) {
+        ShipLogsTask task = new ShipLogsTask(VappNetwork.getRestClient(context), VappDbHelper.get(context),
+                Vapp.getUserPhoneNumber(context), Vapp.getDeviceStateContract(context).getOriginatingNetworkName());
+
+        task.setRequestListener(new RemoteNetworkTaskListener<Boolean>() {
+            @Override public void onRequestSuccess(Boolean result) {
+                finish(context, true);
+            }
+
+            @Override public void onRequestFailure() {
+                finish(context, false);
+            }
+        });
+        task.execute();
+    }
+
+    private static void finish(Context context, boolean success) {
+        flushing = false;
+
+        if (!success) {
+            schedule(context, RETRY_DELAY_MS);
+        }
+
+        List<Listener> completed = new ArrayList<>(listeners);
+        listeners.clear();
+
+        for (Listener listener : completed) {
+            listener.onFlushComplete(success);
+        }
+    }
+
+    /**
+     * Sets the alarm to fire after the delay plus this device's jitter, unless it is already due
+     * sooner.
+     */
+    private static synchronized void schedule(Context context, long delayMs) {
+        long now = SystemClock.elapsedRealtime();
+        long time = now + delayMs + getJitterMs(context);
+
+        if (alarmTime > now && alarmTime <= time) {
+            return;
+        }
+        alarmTime = time;
+
+        Intent intent = new Intent(context, VappProcess.getLogShipperReceiverClass(context));
+        PendingIntent sender = PendingIntent.getBroadcast(context, REQUEST_CODE, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME, time, sender); // logs can wait for the device to wake
+    }
+
+    private static long getJitterMs(Context context) {
+        return MAX_JITTER_MS * VappConfiguration.getDeviceJitterSeed(context) / VappConfiguration.DEVICE_JITTER_RANGE;
+    }
+
+    /**
+     * Posts every pending page, acknowledging each once it has been accepted.
+     */
+    private static final class ShipLogsTask extends RemoteNetworkTask<Boolean> {
+
+        private final VappDbHelper dbHelper;
+        private final String phoneNumber;
+        private final String networkName;
+
+        ShipLogsTask(VappRestClient restClient, VappDbHelper dbHelper, String phoneNumber, String networkName) {
+            super(restClient);
+            this.dbHelper = dbHelper;
+            this.phoneNumber = phoneNumber;
+            this.networkName = networkName;
+        }
+
+        /**
+         * @return true once no logs are pending, or null if the logs could not be read or written.
+         */
+        @Override protected Boolean performApiCall() throws IOException, VappApiException {
+            try {
+                while (true) {
+                    VappDbHelper.SmsLogBatch batch = dbHelper.retrieveSentSmsLogs(PAGE_SIZE);
+
+                    if (batch.isEmpty()) {
+                        return true;
+                    }
+                    if (restClient.postLog(new PostLogsBody(batch, phoneNumber, networkName)) == null) {
+                        return null;
+                    }
+                    dbHelper.acknowledgeSentSmsLogs(batch); // only the rows which were sent, not any logged since
+                }
+            }
+            catch (SQLiteException e) {
+                Log.e(Vapp.TAG, "Failed to read or acknowledge SMS logs", e);
+                return null;
+            }
+        }
+    }
+
+    private static boolean isConnected(Context context) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+}
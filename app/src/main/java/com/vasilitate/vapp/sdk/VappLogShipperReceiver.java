@@ -0,0 +1,35 @@
+package com.vasilitate.vapp.sdk;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+
+/**
+ * Flushes logged SMSs to the VAPP backend when the {@link VappLogShipper} alarm fires. Where
+ * supported, the broadcast is held open until the flush completes, so that the process is not
+ * treated as idle and killed part way through.
+ */
+public class VappLogShipperReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (VappProcess.isStateClient(context)) { // an alarm set before the SDK process was used
+            context.sendBroadcast(new Intent(context, VappIsolatedLogShipperReceiver.class));
+            return;
+        }
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) { // goAsync is not available
+            VappLogShipper.flush(context, null);
+            return;
+        }
+
+        final PendingResult result = goAsync();
+
+        VappLogShipper.flush(context, new VappLogShipper.Listener() {
+            @Override public void onFlushComplete(boolean success) {
+                result.finish();
+            }
+        });
+    }
+}
@@ -0,0 +1,92 @@
+package com.vasilitate.vapp.sdk;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.vasilitate.vapp.R;
+import com.vasilitate.vapp.sdk.network.VappRestClient;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Holds the process-wide {@link VappRestClient}, so that every call to the VAPP! server shares one
+ * client and its pool of keep-alive connections. The client is replaced only when the SDK key,
+ * test mode or {@link VappNetworkTimeouts} change.
+ */
+final class VappNetwork {
+
+    /**
+     * The minimum interval between prewarms. Well within the time an idle pooled connection is
+     * kept alive.
+     */
+    static final long PREWARM_INTERVAL_MS = 60 * 1000;
+
+    private static final ExecutorService prewarmer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "vapp-http-prewarm");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static VappRestClient restClient;
+    private static long lastPrewarmTime; // elapsed realtime, or 0 if never prewarmed
+
+    private VappNetwork() {
+    }
+
+    /**
+     * @param context the current context
+     * @return the client for the current configuration.
+     */
+    static synchronized VappRestClient getRestClient(Context context) {
+        String endpoint = context.getString(R.string.api_endpoint);
+        String sdkKey = VappConfiguration.getSdkKey(context);
+        boolean testMode = VappConfiguration.isTestMode(context);
+        VappNetworkTimeouts timeouts = VappConfiguration.getNetworkTimeouts(context);
+
+        if (restClient == null
+                || !restClient.getEndpoint().equals(endpoint)
+                || !TextUtils.equals(restClient.getSdkKey(), sdkKey)
+                || restClient.isTestMode() != testMode
+                || !restClient.getTimeouts().equals(timeouts)) {
+            restClient = new VappRestClient(endpoint, sdkKey, testMode, timeouts);
+        }
+        return restClient;
+    }
+
+    /**
+     * Connects to the server in the background, so that the first call of a purchase doesn't pay
+     * for DNS and the TCP and TLS handshakes. Does nothing if a prewarm was started recently.
+     *
+     * @param context the current context
+     */
+    static void prewarm(Context context) {
+        final VappRestClient client = getRestClient(context);
+
+        synchronized (VappNetwork.class) {
+            long now = SystemClock.elapsedRealtime();
+
+            if (lastPrewarmTime != 0 && now - lastPrewarmTime < PREWARM_INTERVAL_MS) {
+                return;
+            }
+            lastPrewarmTime = now;
+        }
+
+        prewarmer.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    client.prewarm();
+                }
+                catch (IOException e) {
+                    Log.d(Vapp.TAG, "Unable to prewarm connection to VAPP! server", e);
+                }
+            }
+        });
+    }
+}
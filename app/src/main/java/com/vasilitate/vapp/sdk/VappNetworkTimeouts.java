@@ -0,0 +1,65 @@
+package com.vasilitate.vapp.sdk;
+
+import com.vasilitate.vapp.sdk.exceptions.VappException;
+
+/**
+ * Limits how long a call to the VAPP! server may take, set with
+ * {@link Vapp#setNetworkTimeouts(android.content.Context, VappNetworkTimeouts)}.
+ * <p/>
+ * The connect and read timeouts bound each step of a call, while the deadline bounds the whole
+ * call, so that a server which trickles its response can never stall a purchase.
+ */
+public final class VappNetworkTimeouts {
+
+    /**
+     * Connects within 15 seconds, waits up to 20 seconds for each read, and completes a call
+     * within 45 seconds.
+     */
+    public static final VappNetworkTimeouts DEFAULT = new VappNetworkTimeouts(15 * 1000, 20 * 1000, 45 * 1000);
+
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final int deadlineMs;
+
+    /**
+     * @param connectTimeoutMs the maximum time to establish a connection, in milliseconds
+     * @param readTimeoutMs    the maximum time to wait for data, in milliseconds
+     * @param deadlineMs       the maximum time for a whole call, in milliseconds
+     */
+    public VappNetworkTimeouts(int connectTimeoutMs, int readTimeoutMs, int deadlineMs) {
+        if (connectTimeoutMs <= 0 || readTimeoutMs <= 0 || deadlineMs <= 0) {
+            throw new VappException("Network timeouts must be greater than 0");
+        }
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.deadlineMs = deadlineMs;
+    }
+
+    public int getConnectTimeoutMs() {
+        return connectTimeoutMs;
+    }
+
+    public int getReadTimeoutMs() {
+        return readTimeoutMs;
+    }
+
+    public int getDeadlineMs() {
+        return deadlineMs;
+    }
+
+    @Override public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VappNetworkTimeouts)) {
+            return false;
+        }
+        VappNetworkTimeouts that = (VappNetworkTimeouts) o;
+        return connectTimeoutMs == that.connectTimeoutMs && readTimeoutMs == that.readTimeoutMs
+                && deadlineMs == that.deadlineMs;
+    }
+
+    @Override public int hashCode() {
+        return 31 * (31 * connectTimeoutMs + readTimeoutMs) + deadlineMs;
+    }
+}
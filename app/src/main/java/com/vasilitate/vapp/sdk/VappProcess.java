@@ -0,0 +1,80 @@
+package com.vasilitate.vapp.sdk;
+
+import android.app.ActivityManager;
+import android.content.Context;
+
+import com.vasilitate.vapp.R;
+
+import java.util.List;
+
+/**
+ * Determines which process owns the SDK's state.
+ * <p/>
+ * By default the SMS service runs in the host app's process, alongside all SDK state. If the host
+ * app sets <code>vapp_isolated_process</code> to true, the service runs in the dedicated
+ * {@link #PROCESS_SUFFIX} process instead, which then owns all state. Any other process is a
+ * client, which reads and writes state through the {@link VappStateProvider}.
+ */
+final class VappProcess {
+
+    /**
+     * The suffix of the dedicated SDK process, as declared in the manifest.
+     */
+    static final String PROCESS_SUFFIX = ":vapp";
+
+    private static Boolean stateClient;
+
+    private VappProcess() {
+    }
+
+    /**
+     * @param context the current context
+     * @return true if the SMS service runs in the dedicated SDK process.
+     */
+    static boolean isIsolated(Context context) {
+        return context.getResources().getBoolean(R.bool.vapp_isolated_process);
+    }
+
+    /**
+     * @param context the current context
+     * @return true if state is owned by another process, and must be accessed through the
+     * {@link VappStateProvider}.
+     */
+    static synchronized boolean isStateClient(Context context) {
+        if (stateClient == null) {
+            stateClient = isIsolated(context) && !isSdkProcess(context);
+        }
+        return stateClient;
+    }
+
+    /**
+     * @param context the current context
+     * @return the SMS service to start in the current mode.
+     */
+    static Class<? extends VappSmsService> getSmsServiceClass(Context context) {
+        return isIsolated(context) ? VappIsolatedSmsService.class : VappSmsService.class;
+    }
+
+    /**
+     * @param context the current context
+     * @return the receiver of the log upload alarm, in the process which owns the SMS logs.
+     */
+    static Class<? extends VappLogShipperReceiver> getLogShipperReceiverClass(Context context) {
+        return isIsolated(context) ? VappIsolatedLogShipperReceiver.class : VappLogShipperReceiver.class;
+    }
+
+    private static boolean isSdkProcess(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        List<ActivityManager.RunningAppProcessInfo> processes = activityManager.getRunningAppProcesses();
+        int pid = android.os.Process.myPid();
+
+        if (processes != null) {
+            for (ActivityManager.RunningAppProcessInfo process : processes) {
+                if (process.pid == pid) {
+                    return process.processName.equals(context.getPackageName() + PROCESS_SUFFIX);
+                }
+            }
+        }
+        return false;
+    }
+}
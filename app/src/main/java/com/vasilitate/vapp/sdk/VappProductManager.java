@@ -6,7 +6,10 @@ import com.vasilitate.vapp.sdk.exceptions.InvalidVappProductException;
 import com.vasilitate.vapp.sdk.exceptions.InvalidVappProgressException;
 
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 abstract class VappProductManager {
@@ -17,36 +20,79 @@ abstract class VappProductManager {
 
     private static final int MINIMUM_SMS_INTERVAL = 12;
 
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Applies the catalog to the stored product state. A fingerprint of the last applied catalog
+     * is persisted, so an unchanged catalog costs a single comparison; otherwise only products
+     * which were added, removed or had their required SMS count changed are written.
+     *
+     * @param context     the current context
+     * @param productList the products and subscriptions being initialised
+     */
     static void addProducts(Context context, List<VappProduct> productList) {
 
+        long fingerprint = getCatalogFingerprint(productList);
+
+        if (VappConfiguration.getCatalogFingerprint(context) == fingerprint) {
+            return; // unchanged since it was last applied
+        }
+
         VappConfiguration.pruneMissingProducts(context, productList);
 
         for (VappProduct product : productList) {
 
-            int requiredCount = product.getRequiredSmsCount();
-            VappConfiguration.setProductExists(context, product, true);
-            VappConfiguration.setRequiredSmsCountForProduct(context, product, requiredCount );
+            final int requiredCount = product.getRequiredSmsCount();
+            ProductState state = VappConfiguration.getProductState(context, product.getProductId());
 
-            // Ensure any current download count is not greater than the new value for the required
-            // SMSs for the product.
-            int currentSMSCountForProduct = VappConfiguration.getCurrentDownloadSmsCountForProduct(context, product );
-            if( currentSMSCountForProduct > requiredCount ) {
-                VappConfiguration.setCurrentDownloadSmsCountForProduct(context, product, requiredCount);
+            if (state.exists() && state.getRequiredSmsCount() == requiredCount) {
+                continue;
             }
 
-            int smsCount = VappConfiguration.getSentSmsCountForProduct(context, product);
+            VappConfiguration.updateProductState(context, product.getProductId(), new ProductState.Update() {
+                @Override public ProductState apply(ProductState current) {
+                    ProductState updated = current.withExists(true).withRequiredSmsCount(requiredCount);
+
+                    // Ensure any current download count is not greater than the new value for the
+                    // required SMSs for the product.
+                    if (current.getCurrentDownloadSmsCount() > requiredCount) {
+                        updated = updated.withCurrentDownloadSmsCount(requiredCount);
+                    }
+
+                    // Deal with the situation where a product is in the process of being purchased
+                    // and the SMSs already sent exceeds the new required count.
+                    if (current.getSentSmsCount() > requiredCount) {
+
+                        // Mark the purchase as complete and increment the redeemed count.
+                        updated = updated.withSentSmsCount(0)
+                                .withRedeemedCount(current.getRedeemedCount() + 1);
+                    }
+                    return updated;
+                }
+            });
+        }
+        VappConfiguration.setCatalogFingerprint(context, fingerprint);
+    }
 
-            // Deal with the situation where a product is in the process of being purchased
-            // and the SMSs already sent exceeds the new required count.
-            if( smsCount > requiredCount ) {
+    /**
+     * @param productList the catalog
+     * @return a 64 bit FNV-1a hash of each product's id and required SMS count, never 0.
+     */
+    static long getCatalogFingerprint(List<VappProduct> productList) {
+        long hash = FNV_OFFSET_BASIS;
 
-                // Mark the purchase as complete and increment the redeemed coumt.
-                VappConfiguration.setSentSmsCountForProduct(context, product, 0);
+        for (VappProduct product : productList) {
+            String productId = product.getProductId();
 
-                int redeemedCount = VappConfiguration.getRedeemedCountForProduct(context, product );
-                VappConfiguration.setRedeemedCountForProduct(context, product, redeemedCount + 1 );
+            for (int i = 0; i < productId.length(); i++) {
+                hash = (hash ^ productId.charAt(i)) * FNV_PRIME;
             }
+            hash = (hash ^ ':') * FNV_PRIME;
+            hash = (hash ^ product.getRequiredSmsCount()) * FNV_PRIME;
+            hash = (hash ^ ',') * FNV_PRIME;
         }
+        return hash != 0 ? hash : 1;
     }
 
     static int getRedeemedCount(Context context, VappProduct product) {
@@ -117,6 +163,69 @@ abstract class VappProductManager {
         }
     }
 
+    /**
+     * Validates every state, then applies them all in a single transaction. Unlike
+     * {@link #setSMSPaymentProgress(Context, VappProduct, int)}, a progress of 0 is accepted, and
+     * means no payment is in progress.
+     *
+     * @param context the current context
+     * @param states  the states to restore, by product
+     */
+    static void restorePurchaseStates(Context context, Map<VappProduct, VappPurchaseState> states) {
+
+        Map<String, ProductState.Update> updates = new HashMap<>();
+
+        for (Map.Entry<VappProduct, VappPurchaseState> entry : states.entrySet()) { // validate first
+            VappProduct product = entry.getKey();
+            final VappPurchaseState state = entry.getValue();
+            final int requiredCount = product.getRequiredSmsCount();
+
+            checkProductExists(context, product);
+
+            if (state.getRedeemedCount() < 0) {
+                throw new InvalidVappProductException(String.format("Redeemed count %d for product '%s' cannot be negative",
+                        state.getRedeemedCount(), product.getProductId()));
+            }
+            if (state.getPaymentProgress() < 0 || state.getPaymentProgress() > requiredCount) {
+                throw new InvalidVappProgressException(state.getPaymentProgress(), requiredCount);
+            }
+
+            final int currentDownloadSMSCount = generateCurrentDownloadSMSCount(product);
+
+            updates.put(product.getProductId(), new ProductState.Update() {
+                @Override public ProductState apply(ProductState current) {
+                    ProductState updated = current.withRedeemedCount(state.getRedeemedCount())
+                            .withSubscriptionEndDate(state.getSubscriptionEndDate())
+                            .withSubscriptionCancelled(state.isSubscriptionCancelled());
+
+                    if (state.getPaymentProgress() == 0) {
+                        return updated.withSentSmsCount(0);
+                    }
+                    return updated.withCurrentDownloadSmsCount(currentDownloadSMSCount)
+                            .withSentSmsCount(Math.min(state.getPaymentProgress(), currentDownloadSMSCount));
+                }
+            });
+        }
+
+        VappConfiguration.updateProductStates(context, updates);
+        VappConfiguration.flush(context);
+    }
+
+    /**
+     * @param context  the current context
+     * @param products the products to export
+     * @return the purchase state of each product, by product id.
+     */
+    static Map<String, VappPurchaseState> exportPurchaseStates(Context context, List<VappProduct> products) {
+        Map<String, VappPurchaseState> states = new LinkedHashMap<>();
+
+        for (VappProduct product : products) {
+            states.put(product.getProductId(), new VappPurchaseState(
+                    VappConfiguration.getProductState(context, product.getProductId())));
+        }
+        return states;
+    }
+
     private static void checkProductExists(Context context, VappProduct product) {
 
         if( !VappConfiguration.doesProductExist(context, product) ) {
@@ -0,0 +1,73 @@
+package com.vasilitate.vapp.sdk;
+
+import java.util.Date;
+
+/**
+ * An immutable record of a product's entitlement, payment progress and subscription state, as
+ * captured in a {@link VappStatusSnapshot}.
+ */
+public final class VappProductStatus {
+
+    private final VappProduct product;
+    private final int redeemedCount;
+    private final int paymentProgress;
+    private final boolean paymentInProgress;
+    private final long subscriptionEndTime;
+    private final boolean subscriptionCancelled;
+
+    VappProductStatus(VappProduct product, ProductState state) {
+        this.product = product;
+        this.redeemedCount = state.getRedeemedCount();
+        this.paymentProgress = state.getSentSmsCount();
+        this.paymentInProgress = state.getSentSmsCount() != 0
+                && state.getSentSmsCount() < state.getCurrentDownloadSmsCount();
+        this.subscriptionEndTime = state.getSubscriptionEndTime();
+        this.subscriptionCancelled = state.isSubscriptionCancelled();
+    }
+
+    public VappProduct getProduct() {
+        return product;
+    }
+
+    /**
+     * @return the number of product instances fully purchased.
+     */
+    public int getRedeemedCount() {
+        return redeemedCount;
+    }
+
+    /**
+     * @return true if the product has been paid for.
+     */
+    public boolean isPaidFor() {
+        return redeemedCount > 0;
+    }
+
+    /**
+     * @return true if a payment is currently in progress.
+     */
+    public boolean isPaymentInProgress() {
+        return paymentInProgress;
+    }
+
+    /**
+     * @return the number of SMS messages sent for an incomplete payment.
+     */
+    public int getPaymentProgress() {
+        return paymentProgress;
+    }
+
+    /**
+     * @return the subscription end date, or null if the product has not been subscribed to.
+     */
+    public Date getSubscriptionEndDate() {
+        return subscriptionEndTime != 0 ? new Date(subscriptionEndTime) : null;
+    }
+
+    /**
+     * @return true if the subscription has been cancelled.
+     */
+    public boolean isSubscriptionCancelled() {
+        return subscriptionCancelled;
+    }
+}
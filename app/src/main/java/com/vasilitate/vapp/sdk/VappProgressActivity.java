@@ -12,6 +12,7 @@ import android.widget.TextView;
 
 import com.beardedhen.androidbootstrap.FontAwesomeText;
 import com.vasilitate.vapp.R;
+import com.vasilitate.vapp.sdk.exceptions.VappException;
 
 import static android.view.View.GONE;
 import static android.view.View.INVISIBLE;
@@ -86,27 +87,49 @@ public class VappProgressActivity extends Activity implements VappProgressListen
 
         if( getIntent().getExtras().containsKey( VappActions.EXTRA_PRODUCT_ID ) ) {
 
-            String productId = getIntent().getExtras().getString(VappActions.EXTRA_PRODUCT_ID);
+            final String productId = getIntent().getExtras().getString(VappActions.EXTRA_PRODUCT_ID);
+            VappInitialisation pending = Vapp.getRunningInitialisation();
 
-            VappProduct productBeingPurchased = Vapp.getProductBeingPurchased(this);
+            if (pending == null) {
+                startPayment(productId);
+            }
+            else { // recreated while an asynchronous initialisation runs, which the main thread never waits for
+                pending.addListener(new VappInitialisation.Listener() {
+                    @Override public void onInitialisationComplete(VappException error) {
+                        if (isFinishing()) {
+                            return;
+                        }
+                        if (error == null) {
+                            startPayment(productId);
+                        }
+                        else {
+                            Vapp.showErrorMessage(VappProgressActivity.this, error.getMessage());
+                        }
+                    }
+                });
+            }
+        }
+    }
 
-            if( productBeingPurchased != null ) {
+    private void startPayment(String productId) {
+        VappProduct productBeingPurchased = Vapp.getProductBeingPurchased(this);
 
-                // The App should be guarding against two products being purchased
-                // simultaneously!
-                finish();
+        if( productBeingPurchased != null ) {
 
-            } else {
+            // The App should be guarding against two products being purchased
+            // simultaneously!
+            finish();
+
+        } else {
 
-                currentProduct = Vapp.getProduct( productId );
+            currentProduct = Vapp.getProduct( productId );
 
-                int currentSMSCount = VappProductManager.generateCurrentDownloadSMSCount(currentProduct);
-                VappConfiguration.setCurrentDownloadSmsCountForProduct( this, currentProduct, currentSMSCount );
+            int currentSMSCount = VappProductManager.generateCurrentDownloadSMSCount(currentProduct);
+            VappConfiguration.setCurrentDownloadSmsCountForProduct( this, currentProduct, currentSMSCount );
 
-                // Start the SMS Service - SMSs need to be sent in a background so that the process can
-                // continue when the user switches to another App!
-                Vapp.startSMSService(this, productId);
-            }
+            // Start the SMS Service - SMSs need to be sent in a background so that the process can
+            // continue when the user switches to another App!
+            Vapp.startSMSService(this, productId);
         }
     }
 
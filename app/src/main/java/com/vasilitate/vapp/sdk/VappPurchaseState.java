@@ -0,0 +1,133 @@
+package com.vasilitate.vapp.sdk;
+
+import com.vasilitate.vapp.sdk.exceptions.VappException;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The purchase state of a single product, as exported by
+ * {@link Vapp#exportPurchaseState(android.content.Context)} and restored by
+ * {@link Vapp#restorePurchaseState(android.content.Context, Map)}.
+ * <p/>
+ * A set of states is exported in a compact string format, which should be stored as-is:
+ * <pre>
+ * v1;[product id]:[redeemed count]:[payment progress]:[subscription end (ms)]:[subscription cancelled (0/1)];...
+ * </pre>
+ */
+public final class VappPurchaseState {
+
+    private static final String FORMAT_VERSION = "v1";
+    private static final String ENTRY_SEPARATOR = ";";
+    private static final String FIELD_SEPARATOR = ":";
+    private static final int FIELD_COUNT = 5;
+
+    private final int redeemedCount;
+    private final int paymentProgress;
+    private final long subscriptionEndTime;
+    private final boolean subscriptionCancelled;
+
+    /**
+     * @param redeemedCount         the number of product instances fully purchased
+     * @param paymentProgress       the number of SMSs sent for an incomplete payment, or 0 if none
+     * @param subscriptionEndDate   the subscription end date, or null if not subscribed
+     * @param subscriptionCancelled true if the subscription has been cancelled
+     */
+    public VappPurchaseState(int redeemedCount, int paymentProgress, Date subscriptionEndDate,
+                             boolean subscriptionCancelled) {
+        this(redeemedCount, paymentProgress,
+                subscriptionEndDate != null ? subscriptionEndDate.getTime() : 0, subscriptionCancelled);
+    }
+
+    VappPurchaseState(int redeemedCount, int paymentProgress, long subscriptionEndTime,
+                      boolean subscriptionCancelled) {
+        this.redeemedCount = redeemedCount;
+        this.paymentProgress = paymentProgress;
+        this.subscriptionEndTime = subscriptionEndTime;
+        this.subscriptionCancelled = subscriptionCancelled;
+    }
+
+    VappPurchaseState(ProductState state) {
+        this(state.getRedeemedCount(), state.getSentSmsCount(), state.getSubscriptionEndTime(),
+                state.isSubscriptionCancelled());
+    }
+
+    public int getRedeemedCount() {
+        return redeemedCount;
+    }
+
+    public int getPaymentProgress() {
+        return paymentProgress;
+    }
+
+    public Date getSubscriptionEndDate() {
+        return subscriptionEndTime != 0 ? new Date(subscriptionEndTime) : null;
+    }
+
+    long getSubscriptionEndTime() {
+        return subscriptionEndTime;
+    }
+
+    public boolean isSubscriptionCancelled() {
+        return subscriptionCancelled;
+    }
+
+    /**
+     * @param states the states to export, by product id
+     * @return the states in the compact export format.
+     */
+    static String format(Map<String, VappPurchaseState> states) {
+        StringBuilder builder = new StringBuilder(FORMAT_VERSION);
+
+        for (Map.Entry<String, VappPurchaseState> entry : states.entrySet()) {
+            VappPurchaseState state = entry.getValue();
+            builder.append(ENTRY_SEPARATOR)
+                    .append(entry.getKey()).append(FIELD_SEPARATOR)
+                    .append(state.redeemedCount).append(FIELD_SEPARATOR)
+                    .append(state.paymentProgress).append(FIELD_SEPARATOR)
+                    .append(state.subscriptionEndTime).append(FIELD_SEPARATOR)
+                    .append(state.subscriptionCancelled ? 1 : 0);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param exported states in the compact export format
+     * @return the states, by product id, in the order they were exported.
+     * @throws VappException if the string is not in the export format.
+     */
+    static Map<String, VappPurchaseState> parse(String exported) throws VappException {
+        if (exported == null) {
+            throw new VappException("Invalid purchase state - cannot be null!");
+        }
+
+        String[] entries = exported.split(ENTRY_SEPARATOR);
+
+        if (!FORMAT_VERSION.equals(entries[0])) {
+            throw new VappException(String.format("Unsupported purchase state format '%s'", entries[0]));
+        }
+
+        Map<String, VappPurchaseState> states = new LinkedHashMap<>();
+
+        for (int i = 1; i < entries.length; i++) {
+            String[] fields = entries[i].split(FIELD_SEPARATOR);
+
+            if (fields.length != FIELD_COUNT) {
+                throw new VappException(String.format("Invalid purchase state entry '%s'", entries[i]));
+            }
+
+            try {
+                states.put(fields[0], new VappPurchaseState(
+                        Integer.parseInt(fields[1]),
+                        Integer.parseInt(fields[2]),
+                        Long.parseLong(fields[3]),
+                        "1".equals(fields[4])));
+            }
+            catch (NumberFormatException e) {
+                throw new VappException(String.format("Invalid purchase state entry '%s'", entries[i]), e);
+            }
+        }
+        return states;
+    }
+}
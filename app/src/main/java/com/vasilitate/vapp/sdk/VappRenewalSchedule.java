@@ -0,0 +1,114 @@
+package com.vasilitate.vapp.sdk;
+
+import android.content.Context;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * An in-memory schedule of the end dates of all active (not cancelled) subscriptions, ordered by
+ * end date. It is built from the stored state of the catalog's subscriptions on first use, then
+ * kept up to date by {@link VappConfiguration} as each product's state changes, so the next due or
+ * upcoming renewal is found in O(log n) without reading every product.
+ */
+final class VappRenewalSchedule {
+
+    private static VappCatalog builtFor;
+    private static final TreeSet<Renewal> renewals = new TreeSet<>();
+    private static final Map<String, Renewal> renewalsById = new HashMap<>();
+
+    private VappRenewalSchedule() {
+    }
+
+    /**
+     * @param context the current context
+     * @param catalog the current catalog
+     * @param now     the current time (ms since epoch)
+     * @return the id of the subscription whose end date passed longest ago, or null if none have.
+     */
+    static synchronized String getFirstDueRenewal(Context context, VappCatalog catalog, long now) {
+        ensureBuilt(context, catalog);
+
+        if (renewals.isEmpty() || renewals.first().endTime >= now) {
+            return null;
+        }
+        return renewals.first().productId;
+    }
+
+    /**
+     * @param context the current context
+     * @param catalog the current catalog
+     * @param now     the current time (ms since epoch)
+     * @return the earliest subscription end date after now (ms since epoch), or 0 if there is none.
+     */
+    static synchronized long getNextRenewalTime(Context context, VappCatalog catalog, long now) {
+        ensureBuilt(context, catalog);
+
+        Renewal next = renewals.ceiling(new Renewal(now + 1, ""));
+        return next != null ? next.endTime : 0;
+    }
+
+    /**
+     * Updates the schedule with a product's new state. Ignored until the schedule has been built.
+     */
+    static synchronized void onProductStateChanged(String productId, ProductState state) {
+        if (builtFor != null && builtFor.getProduct(productId) != null
+                && builtFor.getProduct(productId).isSubscriptionProduct()) {
+            schedule(productId, state);
+        }
+    }
+
+    /**
+     * Discards the schedule, so that it is rebuilt from stored state on next use.
+     */
+    static synchronized void invalidate() {
+        builtFor = null;
+        renewals.clear();
+        renewalsById.clear();
+    }
+
+    private static void ensureBuilt(Context context, VappCatalog catalog) {
+        if (builtFor == catalog) {
+            return;
+        }
+        invalidate();
+
+        for (VappProduct product : catalog.getSubscriptions()) {
+            schedule(product.getProductId(),
+                    VappConfiguration.getProductState(context, product.getProductId()));
+        }
+        builtFor = catalog;
+    }
+
+    private static void schedule(String productId, ProductState state) {
+        Renewal previous = renewalsById.remove(productId);
+
+        if (previous != null) {
+            renewals.remove(previous);
+        }
+
+        if (state.getSubscriptionEndTime() != 0 && !state.isSubscriptionCancelled()) {
+            Renewal renewal = new Renewal(state.getSubscriptionEndTime(), productId);
+            renewals.add(renewal);
+            renewalsById.put(productId, renewal);
+        }
+    }
+
+    private static final class Renewal implements Comparable<Renewal> {
+        final long endTime;
+        final String productId;
+
+        Renewal(long endTime, String productId) {
+            this.endTime = endTime;
+            this.productId = productId;
+        }
+
+        @Override public int compareTo(Renewal other) {
+            if (endTime != other.endTime) {
+                return endTime < other.endTime ? -1 : 1;
+            }
+            return productId.compareTo(other.productId);
+        }
+    }
+}
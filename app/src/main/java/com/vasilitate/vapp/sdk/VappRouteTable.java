@@ -0,0 +1,142 @@
+package com.vasilitate.vapp.sdk;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.vasilitate.vapp.R;
+
+import java.util.Arrays;
+
+/**
+ * Classifies mobile networks by billing route, offline, from the SDK's route resources, whose items
+ * take the form "MCC/MNC, MNC, ...".
+ * <p/>
+ * The resources are parsed once, on first use, into a sorted array of networks, each packed into a
+ * single int (see {@link #pack(String, String)}), with a parallel array of routes, so that each lookup
+ * is a binary search. If no route lists any network, no network can be ruled out.
+ */
+final class VappRouteTable {
+
+    private static final int[] ROUTE_ARRAYS = {
+            R.array.billing_route_A, R.array.billing_route_B, R.array.billing_route_C};
+    private static final VappBillingRoute[] ROUTES = {VappBillingRoute.A, VappBillingRoute.B, VappBillingRoute.C};
+
+    private static VappRouteTable table;
+
+    private final int[] networks;
+    private final byte[] routes; // index into ROUTES of each network
+
+    private VappRouteTable(int[] networks, byte[] routes) {
+        this.networks = networks;
+        this.routes = routes;
+    }
+
+    static synchronized VappRouteTable get(Context context) {
+        if (table == null) {
+            table = parse(context.getApplicationContext().getResources());
+        }
+        return table;
+    }
+
+    /**
+     * @param hni the network's HNI, its MCC followed by its MNC
+     * @return the network's billing route, or {@link VappBillingRoute#UNKNOWN} if it is not listed.
+     */
+    VappBillingRoute getRoute(String hni) {
+        int network = hni != null && hni.length() > 3 ? pack(hni.substring(0, 3), hni.substring(3)) : -1;
+        int index = network >= 0 ? Arrays.binarySearch(networks, network) : -1;
+        return index >= 0 ? ROUTES[routes[index]] : VappBillingRoute.UNKNOWN;
+    }
+
+    /**
+     * @param hni the network's HNI, its MCC followed by its MNC
+     * @return false if the routes list networks, but not this one, otherwise true.
+     */
+    boolean isSupported(String hni) {
+        return networks.length == 0 || getRoute(hni) != VappBillingRoute.UNKNOWN;
+    }
+
+    private static VappRouteTable parse(Resources resources) {
+        String[][] routeItems = new String[ROUTE_ARRAYS.length][];
+
+        for (int route = 0; route < ROUTE_ARRAYS.length; route++) {
+            routeItems[route] = resources.getStringArray(ROUTE_ARRAYS[route]);
+        }
+        return parse(routeItems);
+    }
+
+    /**
+     * @param routeItems the items of the A, B and C route resources, in that order
+     * @return a table of the networks listed, ignoring invalid items.
+     */
+    static VappRouteTable parse(String[][] routeItems) {
+        int[] networks = new int[0];
+        byte[] routes = new byte[0];
+        int count = 0;
+
+        for (byte route = 0; route < routeItems.length; route++) {
+            for (String item : routeItems[route]) {
+                String[] parts = item.split("/", 2);
+                String[] mncs = parts.length == 2 ? parts[1].split(",") : new String[0];
+
+                for (String mnc : mncs) {
+                    int network = pack(parts[0].trim(), mnc.trim());
+
+                    if (network < 0) {
+                        Log.w(Vapp.TAG, "Ignoring invalid billing route entry: " + item);
+                        continue;
+                    }
+                    if (count == networks.length) {
+                        networks = Arrays.copyOf(networks, count * 2 + 16);
+                        routes = Arrays.copyOf(routes, count * 2 + 16);
+                    }
+                    networks[count] = network;
+                    routes[count++] = route;
+                }
+            }
+        }
+        return sort(Arrays.copyOf(networks, count), Arrays.copyOf(routes, count));
+    }
+
+    /**
+     * Sorts the networks, keeping each with its route. A network listed more than once keeps the
+     * first route it was listed in.
+     */
+    private static VappRouteTable sort(int[] networks, byte[] routes) {
+        long[] entries = new long[networks.length];
+
+        for (int i = 0; i < networks.length; i++) { // network, then listing order, then route
+            entries[i] = ((long) networks[i] << 32) | ((long) i << 8) | routes[i];
+        }
+        Arrays.sort(entries);
+
+        int count = 0;
+
+        for (long entry : entries) {
+            int network = (int) (entry >>> 32);
+
+            if (count == 0 || networks[count - 1] != network) {
+                networks[count] = network;
+                routes[count++] = (byte) (entry & 0xff);
+            }
+        }
+        return new VappRouteTable(Arrays.copyOf(networks, count), Arrays.copyOf(routes, count));
+    }
+
+    /**
+     * Packs a network into an int, distinguishing two and three digit MNCs (such as 01 and 001),
+     * and treating a single digit MNC as two digits.
+     *
+     * @return the packed network, or -1 if the MCC or MNC is invalid.
+     */
+    static int pack(String mcc, String mnc) {
+        if (mcc.length() != 3 || mnc.length() < 1 || mnc.length() > 3
+                || !TextUtils.isDigitsOnly(mcc) || !TextUtils.isDigitsOnly(mnc)) {
+            return -1;
+        }
+        int mncDigits = Math.max(mnc.length(), 2);
+        return (Integer.parseInt(mcc) * 1000 + Integer.parseInt(mnc)) * 10 + mncDigits;
+    }
+}
@@ -48,6 +48,26 @@ class VappSms {
         this.message = generateSms();
     }
 
+    /**
+     * Restores a previously generated SMS, with the fields needed to resend and verify it.
+     */
+    VappSms(String message, String deliveryNumber, String randomSegment2, String randomSegment3, String imei) {
+        this.message = message;
+        this.deliveryNumber = deliveryNumber;
+        this.randomSegment2 = randomSegment2;
+        this.randomSegment3 = randomSegment3;
+        this.imei = imei;
+
+        this.appVappId = null;
+        this.userToken = null;
+        this.smsCount = 0;
+        this.currentSms = 0;
+        this.isRoaming = false;
+        this.networkName = null;
+        this.networkCountry = null;
+        this.randomSegment1 = null;
+    }
+
     private String generateSms() {
         Random random = new Random();
         StringBuilder sb = new StringBuilder();
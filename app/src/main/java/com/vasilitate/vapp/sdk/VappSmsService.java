@@ -6,7 +6,6 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.IBinder;
 import android.support.annotation.Nullable;
@@ -16,14 +15,10 @@ import android.widget.Toast;
 import com.vasilitate.vapp.R;
 import com.vasilitate.vapp.sdk.network.RemoteNetworkTaskListener;
 import com.vasilitate.vapp.sdk.network.VappRestClient;
-import com.vasilitate.vapp.sdk.network.request.PostLogsBody;
-import com.vasilitate.vapp.sdk.network.request.PostLogsRequestTask;
 import com.vasilitate.vapp.sdk.network.response.GetHniStatusResponse;
 import com.vasilitate.vapp.sdk.network.response.GetReceivedStatusResponse;
-import com.vasilitate.vapp.sdk.network.response.PostLogsResponse;
 
 import java.util.Date;
-import java.util.List;
 
 import static com.vasilitate.vapp.sdk.VappActions.ACTION_SMS_PROGRESS;
 import static com.vasilitate.vapp.sdk.VappActions.EXTRA_ERROR_MESSAGE;
@@ -69,10 +64,8 @@ public class VappSmsService extends Service implements SmsSendManager.SmsSendLis
     private final Handler receivedStatusHandler = new Handler();
 
     private VappRestClient restClient;
-    private VappDbHelper vappDbHelper;
     private SmsSendManager smsSendManager;
     private SmsApiCheckManager smsApiCheckManager;
-    private PostLogsRequestTask postHistoricalLogsTask;
     private boolean shouldCheckReceivedStatus = true;
 
     private Intent originatingIntent;
@@ -82,30 +75,12 @@ public class VappSmsService extends Service implements SmsSendManager.SmsSendLis
 
         originatingIntent = intent;
         testMode = VappConfiguration.isTestMode(this);
-        vappDbHelper = new VappDbHelper(this);
-        restClient = new VappRestClient(getString(R.string.api_endpoint), VappConfiguration.getSdkKey(this), testMode);
+        restClient = VappNetwork.getRestClient(this);
 
-        // check if an existing product has not been logged to the server yet
+        // bound the stored logs, then upload any not yet logged to the server, without holding up the purchase
+        SmsPersistenceQueue.get(this).compactAndUpload();
 
-        if (vappDbHelper.retrieveSentSmsLogs().isEmpty()) {
-            handleStartCommand(intent);
-        }
-        else {
-            Log.d(Vapp.TAG, "Attempting upload of locally stored sent messages!");
-
-            if (postHistoricalLogsTask != null && postHistoricalLogsTask.getStatus() == AsyncTask.Status.RUNNING) {
-                postHistoricalLogsTask.cancel(true);
-            }
-
-            postHistoricalLogsTask = new PostLogsRequestTask(restClient, retrieveSmsLogs());
-            postHistoricalLogsTask.setRequestListener(new ResponseHandler<PostLogsResponse>() {
-                @Override public void onRequestSuccess(PostLogsResponse result) {
-                    vappDbHelper.clearSentSmsLogs();
-                    handleStartCommand(intent);
-                }
-            });
-            postHistoricalLogsTask.execute();
-        }
+        handleStartCommand(intent);
         return START_STICKY;
     }
 
@@ -136,10 +111,20 @@ public class VappSmsService extends Service implements SmsSendManager.SmsSendLis
         super.onDestroy();
     }
 
+    /**
+     * Stops the service once all state it wrote is on disk, as the process may be killed as soon
+     * as it stops.
+     */
     private void terminateService() {
         broadcastSMSsCompleted();
-        SubscriptionAlarmReceiver.completeWakefulIntent(originatingIntent);
-        stopSelf();
+        final Intent intent = originatingIntent;
+
+        VappConfiguration.flush(this, new Runnable() {
+            @Override public void run() {
+                SubscriptionAlarmReceiver.completeWakefulIntent(intent);
+                stopSelf();
+            }
+        });
     }
 
     /**
@@ -148,14 +133,14 @@ public class VappSmsService extends Service implements SmsSendManager.SmsSendLis
      *
      * @param intent the start command intent
      */
-    private void handleStartCommand(Intent intent) {
+    private void handleStartCommand(final Intent intent) {
 
         if( intent == null ) {
             Log.d(Vapp.TAG, "Null intent passed to VappSmsService");
             return;
         }
 
-        String productId = intent.getStringExtra(EXTRA_PRODUCT_ID);
+        final String productId = intent.getStringExtra(EXTRA_PRODUCT_ID);
         currentProduct = Vapp.getProduct(productId);
 
         if (currentProduct == null) {
@@ -165,23 +150,57 @@ public class VappSmsService extends Service implements SmsSendManager.SmsSendLis
         else {
             VappConfiguration.setProductCancelled(getApplicationContext(), productId, false);
 
-            PendingIntent sentPI = PendingIntent.getBroadcast(this, SENT_SMS_REQUEST_CODE,
-                    new Intent(INTENT_SMS_SENT), 0);
-            PendingIntent deliveredPI = PendingIntent.getBroadcast(this, DELIVERED_SMS_REQUEST_CODE,
-                    new Intent(INTENT_SMS_DELIVERED), 0);
+            // resume an interrupted purchase from its last recorded event, rather than repeating it
+            final VappProduct product = currentProduct;
 
-            smsSendManager = new SmsSendManager(currentProduct, testMode, sentPI, deliveredPI, this, this);
-            setupApiCheckManager();
-            setupReceivers();
+            PurchaseJournal.get(this).getPosition(productId, new PurchaseJournal.PositionCallback() {
+                @Override public void onPosition(PurchaseJournal.Position position) {
+                    if (originatingIntent == intent && currentProduct == product) { // not cancelled or replaced
+                        startPurchase(productId, position);
+                    }
+                }
+            });
+        }
+    }
 
-            if (smsSendManager.isFirstInSequence()) {
-                Log.d(Vapp.TAG, "Performing Backend HNI status check");
-                smsApiCheckManager.performHniStatusCheck(); // perform MCC/MNC check prior to sending very first SMS
-            }
-            else {
-                Log.d(Vapp.TAG, "Initiate SMS purchase");
-                smsSendManager.addNextSmsToSendQueue();
-            }
+    /**
+     * Starts sending the SMS for the current product.
+     *
+     * @param position the point an interrupted purchase reached, or null to start a new purchase
+     */
+    private void startPurchase(String productId, @Nullable PurchaseJournal.Position position) {
+        if (position == null) {
+            PurchaseJournal.get(this).start(productId);
+        }
+        else {
+            Log.d(Vapp.TAG, "Resuming purchase of " + productId);
+        }
+        shouldCheckReceivedStatus = position == null || !position.verified;
+
+        PendingIntent sentPI = PendingIntent.getBroadcast(this, SENT_SMS_REQUEST_CODE,
+                new Intent(INTENT_SMS_SENT), 0);
+        PendingIntent deliveredPI = PendingIntent.getBroadcast(this, DELIVERED_SMS_REQUEST_CODE,
+                new Intent(INTENT_SMS_DELIVERED), 0);
+
+        smsSendManager = new SmsSendManager(currentProduct, testMode, sentPI, deliveredPI, this, this, position);
+        setupApiCheckManager();
+        setupReceivers();
+
+        if (smsSendManager.hasUnrecordedDelivery()) {
+            Log.d(Vapp.TAG, "SMS delivered before the purchase was interrupted, recording its delivery");
+            smsSendManager.recordResumedDelivery(deliveryPersistedCallback);
+        }
+        else if (smsSendManager.hasUndeliveredSms()) {
+            Log.d(Vapp.TAG, "SMS sent before the purchase was interrupted, waiting for its delivery report");
+            smsSendManager.awaitResumedDelivery();
+        }
+        else if (smsSendManager.isFirstInSequence() && (position == null || !position.hniChecked)) {
+            Log.d(Vapp.TAG, "Performing Backend HNI status check");
+            smsApiCheckManager.performHniStatusCheck(); // perform MCC/MNC check prior to sending very first SMS
+        }
+        else {
+            Log.d(Vapp.TAG, "Initiate SMS purchase");
+            smsSendManager.addNextSmsToSendQueue();
         }
     }
 
@@ -197,6 +216,8 @@ public class VappSmsService extends Service implements SmsSendManager.SmsSendLis
 
                         if (HNI_STATUS_WHITELISTED.equals(result.getStatus())) {
                             Log.d(Vapp.TAG, "Backend HNI status check OK, start sending SMS");
+                            PurchaseJournal.get(VappSmsService.this).record(PurchaseJournal.HNI_CHECKED,
+                                    currentProduct.getProductId(), -1);
                             smsSendManager.addNextSmsToSendQueue(); // send initial sms!
                         }
                         else { // blacklisted!
@@ -211,6 +232,8 @@ public class VappSmsService extends Service implements SmsSendManager.SmsSendLis
                         if (RECEIVED_STATUS_YES.equals(result.getReceived())) {
                             shouldCheckReceivedStatus = false;
                             Log.d(Vapp.TAG, "Test SMS received OK, proceed");
+                            PurchaseJournal.get(VappSmsService.this).record(PurchaseJournal.SMS_VERIFIED,
+                                    currentProduct.getProductId(), -1);
                             if (smsSendManager.hasFinishedPurchase()) {
                                 terminateService();
                             } else {
@@ -229,49 +252,55 @@ public class VappSmsService extends Service implements SmsSendManager.SmsSendLis
                             handlePurchaseUnsupported();
                         }
                     }
-                },
-                new ResponseHandler<PostLogsResponse>() {
-                    @Override public void onRequestSuccess(PostLogsResponse result) {
-                        vappDbHelper.clearSentSmsLogs();
-
-                        if (shouldCheckReceivedStatus) {
-                            Log.d(Vapp.TAG, "Check Backend Delivery notification");
-                            receivedStatusHandler.removeCallbacks(retryReceivedStatusCheck);
-                            receivedStatusHandler.postDelayed(retryReceivedStatusCheck, POST_LOG_DELAY);
-                        }
-                        else if (smsSendManager.hasFinishedPurchase()) { // completed purchase!!!
-                            Log.d(Vapp.TAG, "Completed SMS purchase!");
-
-                            // Delay the sending of the completion so that any clients can display
-                            // the completion of the purchase.
-                            completionHandler.postDelayed(new Runnable() {
-                                @Override
-                                public void run() {
-
-                                    //If a subscription product set it's new end date...
-                                    if( currentProduct.isSubscriptionProduct() ) {
-
-                                        Date subscriptionEndDate =
-                                                currentProduct.getNextSubscriptionEndDate( new Date());
-                                        VappConfiguration.setSubscriptionEndDate(
-                                                VappSmsService.this, currentProduct, subscriptionEndDate );
-
-                                        Log.d( Vapp.TAG, "New subscription end date: " +
-                                                currentProduct.getProductId() + " - " +
-                                                subscriptionEndDate.toString());
-                                    }
-
-                                    terminateService();
-                                }
-                            }, 2000);
-                        }
-                        else {
-                            smsSendManager.addNextSmsToSendQueue();
-                        }
-                    }
                 });
     }
 
+    /**
+     * Posts the logs of sent messages, then checks that the server has received the delivery
+     * notification for the test SMS, as it can only do so once the log has arrived.
+     */
+    private void postLogsAndCheckReceivedStatus() {
+        VappLogShipper.flush(this, new VappLogShipper.Listener() {
+            @Override public void onFlushComplete(boolean success) {
+                if (!success) {
+                    handleNoConnectionAvailable();
+                }
+                else if (shouldCheckReceivedStatus) {
+                    Log.d(Vapp.TAG, "Check Backend Delivery notification");
+                    receivedStatusHandler.removeCallbacks(retryReceivedStatusCheck);
+                    receivedStatusHandler.postDelayed(retryReceivedStatusCheck, POST_LOG_DELAY);
+                }
+            }
+        });
+    }
+
+    private void completePurchase() {
+        Log.d(Vapp.TAG, "Completed SMS purchase!");
+
+        // Delay the sending of the completion so that any clients can display
+        // the completion of the purchase.
+        completionHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+
+                //If a subscription product set it's new end date...
+                if( currentProduct.isSubscriptionProduct() ) {
+
+                    Date subscriptionEndDate =
+                            currentProduct.getNextSubscriptionEndDate( new Date());
+                    VappConfiguration.setSubscriptionEndDate(
+                            VappSmsService.this, currentProduct, subscriptionEndDate );
+
+                    Log.d( Vapp.TAG, "New subscription end date: " +
+                            currentProduct.getProductId() + " - " +
+                            subscriptionEndDate.toString());
+                }
+
+                terminateService();
+            }
+        }, 2000);
+    }
+
 
     /*
      * Handle Sms Logic
@@ -288,7 +317,11 @@ public class VappSmsService extends Service implements SmsSendManager.SmsSendLis
     }
 
     @Override public void onSmsPurchaseCompleted() {
-        smsApiCheckManager.performPostLogsCall(retrieveSmsLogs()); // send log of all sent sms to server
+        VappLogShipper.flush(this, null); // send log of all sent sms to server, in the background
+
+        if (!shouldCheckReceivedStatus) { // otherwise completes once the test SMS is confirmed
+            completePurchase();
+        }
     }
 
     @Override public void onSmsSendError(String message) {
@@ -296,15 +329,19 @@ public class VappSmsService extends Service implements SmsSendManager.SmsSendLis
     }
 
     @Override public void onSmsDeliverySuccess() {
-        smsSendManager.notifySmsDelivered();
+        smsSendManager.notifySmsDelivered(deliveryPersistedCallback);
+    }
 
-        if (shouldCheckReceivedStatus) { // should check that the server received delivery notification from telco
-            smsApiCheckManager.performPostLogsCall(retrieveSmsLogs());
-        }
-        else {
-            smsSendManager.addNextSmsToSendQueue();
+    private final SmsPersistenceQueue.Callback deliveryPersistedCallback = new SmsPersistenceQueue.Callback() {
+        @Override public void onPersisted() {
+            if (shouldCheckReceivedStatus) { // should check that the server received delivery notification from telco
+                postLogsAndCheckReceivedStatus();
+            }
+            else {
+                smsSendManager.addNextSmsToSendQueue();
+            }
         }
-    }
+    };
 
     @Override public void onSmsDeliveryFailure() {
         broadcastSMSError(getString(R.string.vapp_sms_delivery_failure));
@@ -316,12 +353,6 @@ public class VappSmsService extends Service implements SmsSendManager.SmsSendLis
         }
     }
 
-    private PostLogsBody retrieveSmsLogs() {
-        List<PostLogsBody.LogEntry> entryList = vappDbHelper.retrieveSentSmsLogs();
-        String cli = Vapp.getUserPhoneNumber(this);
-        String cliDetail = Vapp.getOriginatingNetworkName(this);
-        return new PostLogsBody(entryList, cli, cliDetail);
-    }
 
 
     /**
@@ -400,6 +431,7 @@ public class VappSmsService extends Service implements SmsSendManager.SmsSendLis
         }
         if (currentProduct != null) {
             String productId = currentProduct.getProductId();
+            PurchaseJournal.get(context).record(PurchaseJournal.CANCELLED, productId, -1);
             VappConfiguration.setProductCancelled(context, productId, true);
 
             if (userCancelled) {
@@ -408,7 +440,12 @@ public class VappSmsService extends Service implements SmsSendManager.SmsSendLis
 
             Toast.makeText(context, R.string.cancelled_product_purchase, Toast.LENGTH_LONG).show();
             currentProduct = null;
-            stopSelf();
+
+            VappConfiguration.flush(context, new Runnable() { // stop once the cancellation is on disk
+                @Override public void run() {
+                    stopSelf();
+                }
+            });
         }
     }
 
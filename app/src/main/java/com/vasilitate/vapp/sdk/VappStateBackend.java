@@ -0,0 +1,26 @@
+package com.vasilitate.vapp.sdk;
+
+import java.util.Map;
+
+/**
+ * The persistent storage behind the {@link VappStateCache}. The cache serves every read from memory,
+ * so a backend is only asked for all of its values, when the cache loads or reloads, and to commit
+ * a batch of writes.
+ * <p/>
+ * Values are Integers, Longs, Booleans and Strings.
+ */
+interface VappStateBackend {
+
+    /**
+     * @return every persisted value, by key.
+     */
+    Map<String, ?> loadAll();
+
+    /**
+     * Persists a batch of writes, all or none.
+     *
+     * @param batch the values to write, by key, where a null value removes the key
+     * @return true if the batch was persisted.
+     */
+    boolean commit(Map<String, Object> batch);
+}
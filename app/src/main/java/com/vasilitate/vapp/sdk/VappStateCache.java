@@ -0,0 +1,423 @@
+package com.vasilitate.vapp.sdk;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A process-wide, write-behind cache of the SDK's persisted state.
+ * <p/>
+ * All values are loaded from the SDK's SharedPreferences once, on a background thread, after which
+ * reads are served from memory. Writes update memory immediately and are batched into a single
+ * commit on a background thread, at most {@link #FLUSH_DELAY_MS} after the first unflushed write.
+ * At points where state must survive the process being killed, call {@link #flush()} off the main
+ * thread, or {@link VappConfiguration#flush(Context, Runnable)} on it, as on the main thread
+ * {@link #flush()} only starts the commit. No method touches disk on the main thread.
+ * <p/>
+ * In a client of the dedicated SDK process (see {@link VappProcess}) the values are loaded from, and
+ * committed to, the {@link VappStateProvider} instead (see {@link VappStateBackend}), and reloaded whenever the SDK process
+ * commits a change.
+ */
+final class VappStateCache {
+
+    /**
+     * The maximum number of milliseconds a write may remain in memory before it is committed.
+     */
+    static final long FLUSH_DELAY_MS = 250;
+
+    private static final Object REMOVED = new Object();
+
+    private static volatile VappStateCache instance;
+    private static FutureTask<VappStateCache> loadTask;
+
+    // the cache being loaded, visible to the journal replay which reads through it
+    private static final ThreadLocal<VappStateCache> loading = new ThreadLocal<>();
+
+    private final VappStateBackend backend;
+    private final Map<String, Object> values;
+    private final Map<String, Object> pendingWrites = new HashMap<>();
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService writer;
+    private final Runnable commitListener;
+
+    private boolean flushScheduled;
+
+    private final Runnable commitTask = new Runnable() {
+        @Override public void run() {
+            commit();
+        }
+    };
+
+    /**
+     * @param backend        the storage the values are loaded from and committed to
+     * @param commitListener run after each commit, or null
+     */
+    private VappStateCache(VappStateBackend backend, Runnable commitListener) {
+        this.backend = backend;
+        this.commitListener = commitListener;
+        this.values = new HashMap<>(backend.loadAll());
+        this.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "vapp-state-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Waits for the cache to load, if it has not yet. The load reads disk on its own thread, so
+     * StrictMode does not see the wait; the SDK's initialisation completes only once it has
+     * loaded, so callers only wait if they call the SDK before then.
+     *
+     * @param context the current context
+     * @return the process-wide cache, waiting for it to load on first use.
+     */
+    static VappStateCache get(Context context) {
+        VappStateCache cache = instance;
+
+        if (cache == null) {
+            cache = loading.get();
+        }
+        return cache != null ? cache : await(startLoading(context));
+    }
+
+    /**
+     * Starts loading the cache on a background thread, if it has not been already, so that the
+     * main thread never reads the preferences file itself.
+     */
+    private static synchronized FutureTask<VappStateCache> startLoading(Context context) {
+        if (loadTask == null) {
+            final Context appContext = context.getApplicationContext();
+
+            loadTask = new FutureTask<>(new Callable<VappStateCache>() {
+                @Override public VappStateCache call() {
+                    instance = load(appContext);
+                    return instance;
+                }
+            });
+
+            Thread thread = new Thread(loadTask, "vapp-state-loader");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return loadTask;
+    }
+
+    private static VappStateCache load(final Context appContext) {
+        if (VappProcess.isStateClient(appContext)) {
+            final VappStateCache cache = new VappStateCache(new RemoteStateBackend(appContext), null);
+
+            appContext.getContentResolver().registerContentObserver(
+                    VappStateProvider.getUri(appContext, VappStateProvider.PATH_VALUES), false,
+                    new ContentObserver(null) {
+                        @Override public void onChange(boolean selfChange) {
+                            cache.reload();
+                        }
+                    });
+            return cache;
+        }
+
+        Runnable commitListener = null;
+
+        if (VappProcess.isIsolated(appContext)) { // this is the SDK process, so notify its clients
+            commitListener = new Runnable() {
+                @Override public void run() {
+                    VappStateProvider.notifyValuesChanged(appContext);
+                }
+            };
+        }
+        VappStateCache cache = new VappStateCache(
+                new SharedPrefsStateBackend(VappConfiguration.openSharedPrefs(appContext)), commitListener);
+        loading.set(cache);
+
+        try {
+            VappConfiguration.replayProgressJournal(appContext);
+        }
+        finally {
+            loading.remove();
+        }
+        return cache;
+    }
+
+    private static VappStateCache await(FutureTask<VappStateCache> task) {
+        try {
+            return Futures.getUninterruptibly(task);
+        }
+        catch (RuntimeException e) {
+            synchronized (VappStateCache.class) { // so that the next call retries
+                if (loadTask == task) {
+                    loadTask = null;
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Replaces every value which has no unflushed write with its persisted value. Used to pick up
+     * changes committed by another process.
+     */
+    void reload() {
+        synchronized (flushLock) { // so that a write in the middle of being committed isn't reverted
+            Map<String, ?> persisted;
+
+            try {
+                persisted = backend.loadAll();
+            }
+            catch (RuntimeException e) {
+                Log.w(Vapp.TAG, "Unable to reload VAPP state", e);
+                return;
+            }
+
+            synchronized (this) {
+                for (String key : new HashMap<>(values).keySet()) {
+                    if (!persisted.containsKey(key) && !pendingWrites.containsKey(key)) {
+                        values.remove(key);
+                    }
+                }
+                for (Map.Entry<String, ?> entry : persisted.entrySet()) {
+                    if (!pendingWrites.containsKey(entry.getKey())) {
+                        values.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    synchronized int getInt(String key, int defaultValue) {
+        Object value = values.get(key);
+        return value instanceof Integer ? (Integer) value : defaultValue;
+    }
+
+    synchronized long getLong(String key, long defaultValue) {
+        Object value = values.get(key);
+        return value instanceof Long ? (Long) value : defaultValue;
+    }
+
+    synchronized boolean getBoolean(String key, boolean defaultValue) {
+        Object value = values.get(key);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    synchronized String getString(String key, String defaultValue) {
+        Object value = values.get(key);
+        return value instanceof String ? (String) value : defaultValue;
+    }
+
+    /**
+     * @param key the key the record is stored under
+     * @return the record held under the key, or {@link ProductState#EMPTY} if there is none.
+     */
+    synchronized ProductState getProductState(String key) {
+        Object value = values.get(key);
+
+        if (value instanceof String) { // decode once, then hold the decoded form
+            ProductState state = ProductState.decode((String) value);
+
+            if (state != null) {
+                values.put(key, state);
+                return state;
+            }
+        }
+        return value instanceof ProductState ? (ProductState) value : ProductState.EMPTY;
+    }
+
+    /**
+     * Atomically replaces a record, provided it has not changed since it was read.
+     *
+     * @param key      the key the record is stored under
+     * @param expected the record the update was computed from
+     * @param update   the new record
+     * @return true if the record was replaced, false if it no longer matched the expected record.
+     */
+    synchronized boolean compareAndSetProductState(String key, ProductState expected, ProductState update) {
+        return compareAndSetProductState(key, expected, update, true);
+    }
+
+    /**
+     * As {@link #compareAndSetProductState(String, ProductState, ProductState)}, but the record is
+     * only committed by the next flush rather than scheduling one. Used for writes which are
+     * already durable elsewhere, such as in the {@link SmsProgressJournal}.
+     */
+    synchronized boolean compareAndSetProductStateDeferred(String key, ProductState expected,
+                                                           ProductState update) {
+        return compareAndSetProductState(key, expected, update, false);
+    }
+
+    private boolean compareAndSetProductState(String key, ProductState expected, ProductState update,
+                                              boolean scheduleFlush) {
+        if (!getProductState(key).equals(expected)) {
+            return false;
+        }
+        put(key, update, scheduleFlush);
+        return true;
+    }
+
+    /**
+     * Atomically replaces several records, provided none has changed since it was read. The
+     * records are always committed together.
+     *
+     * @param expected the records the updates were computed from, by key
+     * @param updates  the new records, by key
+     * @return true if the records were replaced, false if any no longer matched.
+     */
+    synchronized boolean compareAndSetProductStates(Map<String, ProductState> expected,
+                                                    Map<String, ProductState> updates) {
+        for (Map.Entry<String, ProductState> entry : expected.entrySet()) {
+            if (!getProductState(entry.getKey()).equals(entry.getValue())) {
+                return false;
+            }
+        }
+        for (Map.Entry<String, ProductState> entry : updates.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+        return true;
+    }
+
+    synchronized boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    /**
+     * @return a copy of every key currently held, including unflushed writes.
+     */
+    synchronized Map<String, Object> getAll() {
+        return new HashMap<>(values);
+    }
+
+    void putInt(String key, int value) {
+        put(key, value);
+    }
+
+    void putLong(String key, long value) {
+        put(key, value);
+    }
+
+    /**
+     * Writes a value which is only committed by the next flush, rather than scheduling one.
+     */
+    void putLongDeferred(String key, long value) {
+        put(key, value, false);
+    }
+
+    void putBoolean(String key, boolean value) {
+        put(key, value);
+    }
+
+    void putString(String key, String value) {
+        if (value == null) {
+            remove(key);
+        }
+        else {
+            put(key, value);
+        }
+    }
+
+    synchronized void remove(String key) {
+        if (values.containsKey(key)) {
+            values.remove(key);
+            pendingWrites.put(key, REMOVED);
+            scheduleFlush();
+        }
+    }
+
+    private void put(String key, Object value) {
+        put(key, value, true);
+    }
+
+    private synchronized void put(String key, Object value, boolean scheduleFlush) {
+        if (!value.equals(values.get(key))) {
+            values.put(key, value);
+            pendingWrites.put(key, value);
+
+            if (scheduleFlush) {
+                scheduleFlush();
+            }
+        }
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            writer.schedule(commitTask, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Commits any writes which have not yet reached disk. Off the main thread, this waits for the
+     * commit. On the main thread, which must never wait on disk, the commit is started straight
+     * away on the background thread instead.
+     */
+    void flush() {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            writer.execute(commitTask);
+        }
+        else {
+            commit();
+        }
+    }
+
+    /**
+     * Runs a task on the thread which commits the cache, after any commit already started.
+     */
+    void executeOnWriter(Runnable task) {
+        writer.execute(task);
+    }
+
+    private void commit() {
+        synchronized (flushLock) { // serialise commits so an older batch never overwrites a newer one
+            Map<String, Object> batch;
+
+            synchronized (this) {
+                flushScheduled = false;
+
+                if (pendingWrites.isEmpty()) {
+                    return;
+                }
+                batch = new HashMap<>(pendingWrites);
+                pendingWrites.clear();
+            }
+
+            Map<String, Object> persisted = new HashMap<>();
+
+            for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                Object value = entry.getValue();
+
+                if (value == REMOVED) {
+                    value = null;
+                }
+                else if (value instanceof ProductState) {
+                    value = ((ProductState) value).encode();
+                }
+                persisted.put(entry.getKey(), value);
+            }
+
+            if (!backend.commit(persisted)) {
+                Log.w(Vapp.TAG, "Failed to persist VAPP state, retrying " + batch.size() + " values");
+
+                synchronized (this) { // requeue anything which hasn't been overwritten since
+                    for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                        if (!pendingWrites.containsKey(entry.getKey())) {
+                            pendingWrites.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    scheduleFlush();
+                }
+            }
+            else if (commitListener != null) {
+                commitListener.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.vasilitate.vapp.sdk;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Serves the SDK's state to client processes when <code>vapp_isolated_process</code> is set. The
+ * provider runs in the dedicated SDK process, which owns the {@link VappStateCache} and
+ * {@link ProductStateStore}, so every update is applied by a single process.
+ * <p/>
+ * Clients are notified of a change to the state cache on {@link #PATH_VALUES}, and of a change to a
+ * product's state on its {@link #PATH_PRODUCTS} uri.
+ */
+public class VappStateProvider extends ContentProvider {
+
+    static final String AUTHORITY_SUFFIX = ".vappstate";
+
+    static final String PATH_VALUES = "values";
+    static final String PATH_PRODUCTS = "products";
+    static final String PATH_REGISTRY = "registry";
+    static final String PATH_FINGERPRINT = "fingerprint";
+    static final String PATH_STORAGE = "storage";
+    static final String PATH_FLUSH = "flush";
+
+    static final String COLUMN_KEY = "key";
+    static final String COLUMN_VALUE = "value";
+    static final String COLUMN_TYPE = "type";
+
+    // the types of values held in the state cache, which a cursor does not preserve
+    static final String TYPE_INT = "i";
+    static final String TYPE_LONG = "l";
+    static final String TYPE_BOOLEAN = "b";
+    static final String TYPE_STRING = "s";
+
+    static final String EXPECTED_PREFIX = "expected:";
+    static final String UPDATE_PREFIX = "update:";
+
+    private static final int VALUES = 1;
+    private static final int PRODUCTS = 2;
+    private static final int PRODUCT = 3;
+    private static final int REGISTRY = 4;
+    private static final int FINGERPRINT = 5;
+    private static final int STORAGE = 6;
+    private static final int FLUSH = 7;
+
+    private UriMatcher uriMatcher;
+
+    /**
+     * @param context the current context
+     * @param path    the path within the provider, or null for the root
+     * @return the uri of the path.
+     */
+    static Uri getUri(Context context, String path) {
+        String root = "content://" + context.getPackageName() + AUTHORITY_SUFFIX;
+        return Uri.parse(path != null ? root + "/" + path : root);
+    }
+
+    /**
+     * Notifies clients that the state cache has been committed. Called in the SDK process only.
+     */
+    static void notifyValuesChanged(Context context) {
+        context.getContentResolver().notifyChange(getUri(context, PATH_VALUES), null);
+    }
+
+    /**
+     * Notifies clients that a product's state has changed. Called in the SDK process only.
+     */
+    static void notifyProductChanged(Context context, String productId) {
+        context.getContentResolver().notifyChange(
+                getUri(context, PATH_PRODUCTS + "/" + Uri.encode(productId)), null);
+    }
+
+    @Override public boolean onCreate() {
+        uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+        String authority = getContext().getPackageName() + AUTHORITY_SUFFIX;
+        uriMatcher.addURI(authority, PATH_VALUES, VALUES);
+        uriMatcher.addURI(authority, PATH_PRODUCTS, PRODUCTS);
+        uriMatcher.addURI(authority, PATH_PRODUCTS + "/*", PRODUCT);
+        uriMatcher.addURI(authority, PATH_REGISTRY, REGISTRY);
+        uriMatcher.addURI(authority, PATH_FINGERPRINT, FINGERPRINT);
+        uriMatcher.addURI(authority, PATH_STORAGE, STORAGE);
+        uriMatcher.addURI(authority, PATH_FLUSH, FLUSH);
+        return true;
+    }
+
+    @Override public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                                  String sortOrder) {
+        Context context = getContext();
+        MatrixCursor cursor = new MatrixCursor(new String[]{COLUMN_KEY, COLUMN_VALUE, COLUMN_TYPE});
+
+        switch (match(uri)) {
+            case VALUES:
+                for (Map.Entry<String, Object> entry : VappStateCache.get(context).getAll().entrySet()) {
+                    cursor.addRow(toRow(entry.getKey(), entry.getValue()));
+                }
+                break;
+
+            case PRODUCTS:
+                for (String productId : VappConfiguration.getStore(context).getStoredProductIds()) {
+                    cursor.addRow(new Object[]{productId, null, null});
+                }
+                break;
+
+            case PRODUCT:
+                String productId = uri.getLastPathSegment();
+                cursor.addRow(new Object[]{productId,
+                        VappConfiguration.getProductState(context, productId).encode(), TYPE_STRING});
+                break;
+
+            case REGISTRY:
+                for (String registeredId : VappConfiguration.getProductRegistry(context)) {
+                    cursor.addRow(new Object[]{registeredId, null, null});
+                }
+                break;
+
+            case FINGERPRINT:
+                cursor.addRow(new Object[]{PATH_FINGERPRINT, VappConfiguration.getCatalogFingerprint(context), TYPE_LONG});
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unsupported uri " + uri);
+        }
+        return cursor;
+    }
+
+    @Override public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        Context context = getContext();
+
+        switch (match(uri)) {
+            case VALUES:
+                applyValues(VappStateCache.get(context), values);
+                return values.size();
+
+            case PRODUCT:
+                return VappConfiguration.compareAndSetProductState(context, uri.getLastPathSegment(),
+                        decode(values.getAsString(EXPECTED_PREFIX)), decode(values.getAsString(UPDATE_PREFIX))) ? 1 : 0;
+
+            case PRODUCTS:
+                return compareAndSetAll(context, values) ? 1 : 0;
+
+            case REGISTRY:
+                VappConfiguration.getStore(context).setProductRegistry(new LinkedHashSet<>(values.keySet()));
+                return 1;
+
+            case FINGERPRINT:
+                VappConfiguration.setCatalogFingerprint(context, values.getAsLong(PATH_FINGERPRINT));
+                return 1;
+
+            case STORAGE:
+                VappConfiguration.setStateStorage(context, VappStateStorage.valueOf(values.getAsString(PATH_STORAGE)));
+                return 1;
+
+            case FLUSH:
+                VappConfiguration.flush(context);
+                return 1;
+
+            default:
+                throw new IllegalArgumentException("Unsupported uri " + uri);
+        }
+    }
+
+    /**
+     * Removes all persisted state, as {@link VappConfiguration#clear(Context)}.
+     */
+    @Override public int delete(Uri uri, String selection, String[] selectionArgs) {
+        VappConfiguration.clear(getContext());
+        return 1;
+    }
+
+    @Override public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Insert is not supported");
+    }
+
+    @Override public String getType(Uri uri) {
+        return null;
+    }
+
+    private int match(Uri uri) {
+        return uriMatcher.match(uri);
+    }
+
+    private static Object[] toRow(String key, Object value) {
+        if (value instanceof Integer) {
+            return new Object[]{key, value.toString(), TYPE_INT};
+        }
+        else if (value instanceof Long) {
+            return new Object[]{key, value.toString(), TYPE_LONG};
+        }
+        else if (value instanceof Boolean) {
+            return new Object[]{key, value.toString(), TYPE_BOOLEAN};
+        }
+        else if (value instanceof ProductState) {
+            return new Object[]{key, ((ProductState) value).encode(), TYPE_STRING};
+        }
+        return new Object[]{key, value, TYPE_STRING};
+    }
+
+    private static void applyValues(VappStateCache cache, ContentValues values) {
+        for (String key : values.keySet()) {
+            Object value = values.get(key);
+
+            if (value == null) {
+                cache.remove(key);
+            }
+            else if (value instanceof Integer) {
+                cache.putInt(key, (Integer) value);
+            }
+            else if (value instanceof Long) {
+                cache.putLong(key, (Long) value);
+            }
+            else if (value instanceof Boolean) {
+                cache.putBoolean(key, (Boolean) value);
+            }
+            else {
+                cache.putString(key, (String) value);
+            }
+        }
+    }
+
+    private static boolean compareAndSetAll(Context context, ContentValues values) {
+        Map<String, ProductState> expected = new HashMap<>();
+        Map<String, ProductState> updates = new HashMap<>();
+
+        for (String key : values.keySet()) {
+            if (key.startsWith(EXPECTED_PREFIX)) {
+                expected.put(key.substring(EXPECTED_PREFIX.length()), decode(values.getAsString(key)));
+            }
+            else if (key.startsWith(UPDATE_PREFIX)) {
+                updates.put(key.substring(UPDATE_PREFIX.length()), decode(values.getAsString(key)));
+            }
+        }
+
+        if (!VappConfiguration.getStore(context).compareAndSetAll(expected, updates)) {
+            return false;
+        }
+        for (String productId : updates.keySet()) {
+            VappConfiguration.onProductStateChanged(context, productId);
+        }
+        return true;
+    }
+
+    private static ProductState decode(String encoded) {
+        ProductState state = encoded != null ? ProductState.decode(encoded) : null;
+        return state != null ? state : ProductState.EMPTY;
+    }
+
+    /**
+     * @return the ids held in a {@link #PATH_PRODUCTS} or {@link #PATH_REGISTRY} cursor.
+     */
+    static Set<String> readIds(Cursor cursor) {
+        Set<String> ids = new LinkedHashSet<>();
+
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getString(0));
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,11 @@
+package com.vasilitate.vapp.sdk;
+
+/**
+ * Where the SDK stores the purchase state of each product:
+ *  SHARED_PREFERENCES in the SDK's own preferences file (default),
+ *  SQLITE in the SDK's database, which scales better to large catalogs, or
+ *  IN_MEMORY for tests and ephemeral sessions, where nothing outlives the process.
+ */
+public enum VappStateStorage {
+    SHARED_PREFERENCES, SQLITE, IN_MEMORY
+}
@@ -0,0 +1,16 @@
+package com.vasilitate.vapp.sdk;
+
+import java.util.Set;
+
+/**
+ * Notified on the main thread when the status of one or more products changes. Changes made in
+ * quick succession are delivered together.
+ */
+public interface VappStatusListener {
+
+    /**
+     * @param snapshot          the status of every product after the change
+     * @param changedProductIds the ids of the products whose status changed
+     */
+    void onStatusChanged(VappStatusSnapshot snapshot, Set<String> changedProductIds);
+}
@@ -0,0 +1,98 @@
+package com.vasilitate.vapp.sdk;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.vasilitate.vapp.sdk.exceptions.VappException;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers product status changes to {@link VappStatusListener}s. Changes are collected until the
+ * main thread next runs, then delivered with a single snapshot. While an asynchronous
+ * initialisation is running they are held until it completes, as the main thread never waits for it.
+ */
+final class VappStatusNotifier {
+
+    private static final List<VappStatusListener> listeners = new CopyOnWriteArrayList<>();
+    private static final Set<String> changedProductIds = new LinkedHashSet<>();
+
+    private static Handler mainHandler;
+    private static Context appContext;
+    private static boolean dispatchPending;
+
+    private VappStatusNotifier() {
+    }
+
+    static synchronized void addListener(Context context, VappStatusListener listener) {
+        if (mainHandler == null) {
+            mainHandler = new Handler(Looper.getMainLooper());
+            appContext = context.getApplicationContext();
+        }
+        listeners.add(listener);
+    }
+
+    static void removeListener(VappStatusListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Records a change to a product's state, to be delivered to listeners on the main thread.
+     */
+    static synchronized void onProductStateChanged(String productId) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        changedProductIds.add(productId);
+
+        if (!dispatchPending) {
+            dispatchPending = true;
+            mainHandler.post(new Runnable() {
+                @Override public void run() {
+                    dispatch();
+                }
+            });
+        }
+    }
+
+    private static void dispatch() {
+        VappInitialisation pending = Vapp.getRunningInitialisation();
+
+        if (pending != null) { // dispatchPending stays set, so later changes join this dispatch
+            pending.addListener(new VappInitialisation.Listener() {
+                @Override public void onInitialisationComplete(VappException error) {
+                    dispatch();
+                }
+            });
+            return;
+        }
+
+        Set<String> changed;
+
+        synchronized (VappStatusNotifier.class) {
+            dispatchPending = false;
+            changed = Collections.unmodifiableSet(new LinkedHashSet<>(changedProductIds));
+            changedProductIds.clear();
+        }
+
+        VappStatusSnapshot snapshot;
+
+        try {
+            snapshot = Vapp.getStatusSnapshot(appContext);
+        }
+        catch (RuntimeException e) {
+            Log.w(Vapp.TAG, "Unable to build status snapshot", e);
+            return;
+        }
+
+        for (VappStatusListener listener : listeners) {
+            listener.onStatusChanged(snapshot, changed);
+        }
+    }
+}
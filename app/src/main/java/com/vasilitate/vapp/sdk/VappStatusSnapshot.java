@@ -0,0 +1,48 @@
+package com.vasilitate.vapp.sdk;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable view of the status of every product and subscription, built in a single pass by
+ * {@link Vapp#getStatusSnapshot(android.content.Context)}. Products are held in the order they
+ * were supplied at initialisation.
+ */
+public final class VappStatusSnapshot {
+
+    private final VappProductStatus[] statuses;
+    private final Map<String, Integer> indexById;
+
+    VappStatusSnapshot(VappProductStatus[] statuses) {
+        this.statuses = statuses;
+        this.indexById = new HashMap<>(statuses.length * 2);
+
+        for (int i = 0; i < statuses.length; i++) {
+            indexById.put(statuses[i].getProduct().getProductId(), i);
+        }
+    }
+
+    /**
+     * @return the number of products in the snapshot.
+     */
+    public int size() {
+        return statuses.length;
+    }
+
+    /**
+     * @param index the index of the product, in initialisation order
+     * @return the status of the product at the index.
+     */
+    public VappProductStatus get(int index) {
+        return statuses[index];
+    }
+
+    /**
+     * @param productId the product id
+     * @return the status of the product, or null if it is not in the snapshot.
+     */
+    public VappProductStatus get(String productId) {
+        Integer index = indexById.get(productId);
+        return index != null ? statuses[index] : null;
+    }
+}
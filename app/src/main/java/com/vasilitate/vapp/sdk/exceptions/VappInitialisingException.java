@@ -0,0 +1,12 @@
+package com.vasilitate.vapp.sdk.exceptions;
+
+/**
+ * An exception that is thrown when a Vapp method is called on the main thread while an
+ * asynchronous initialisation is still running.
+ */
+public class VappInitialisingException extends VappException {
+
+    public VappInitialisingException(String detailMessage) {
+        super(detailMessage);
+    }
+}
@@ -5,54 +5,133 @@ import android.support.annotation.StringDef;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.vasilitate.vapp.sdk.Vapp;
+import com.vasilitate.vapp.sdk.VappNetworkTimeouts;
 import com.vasilitate.vapp.sdk.exceptions.VappApiException;
 import com.vasilitate.vapp.sdk.network.request.PostLogsBody;
+import com.vasilitate.vapp.sdk.network.response.BaseResponse;
 import com.vasilitate.vapp.sdk.network.response.GetHniStatusResponse;
 import com.vasilitate.vapp.sdk.network.response.GetReceivedStatusResponse;
 import com.vasilitate.vapp.sdk.network.response.PostLogsResponse;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * A REST client which implements calls to the Vapp API.
+ * <p/>
+ * Connections are kept alive and reused by the platform's connection pool, so every response
+ * (including an error response) is read to the end before its stream is closed, and connections
+ * are never disconnected other than by the deadline. A client is safe for use from multiple
+ * threads.
+ * <p/>
+ * Responses may be gzip-compressed, and POST bodies are gzip-compressed unless the server has
+ * rejected a compressed body, after which this client sends them uncompressed. A compressed body
+ * answered with 415 (Unsupported Media Type), or with 400 (Bad Request), is sent again once,
+ * uncompressed. After a 415, later bodies are always sent uncompressed; after a 400, only if the
+ * uncompressed body was accepted, as a 400 may not be caused by the compression.
  */
 public class VappRestClient implements VappRestApi {
 
-    @StringDef({HTTP_GET, HTTP_POST})
+    @StringDef({HTTP_GET, HTTP_POST, HTTP_HEAD})
     @Retention(RetentionPolicy.SOURCE) @interface HTTPMethod {
     }
 
     public static final String HTTP_GET = "GET";
     public static final String HTTP_POST = "POST";
+    public static final String HTTP_HEAD = "HEAD";
     public static final String RESOURCE_HNI_STATUS = "/hnistatus";
     public static final String RESOURCE_RECEIVED_STATUS = "/receivedstatus";
     public static final String RESOURCE_LOGS = "/logs";
 
+    private static final String CHARSET = "UTF-8";
+    private static final String GZIP = "gzip";
+
+    // disconnects calls which overrun their deadline
+    private static final ScheduledExecutorService deadlineTimer =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "vapp-http-deadline");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     private final String endpoint;
     private final String sdkKey;
-    private final Gson gson;
+    private final VappNetworkTimeouts timeouts;
     private boolean log = true;
+    private volatile boolean compressRequests = true;
 
     public VappRestClient(String endpoint, String sdkKey, boolean testMode) {
+        this(endpoint, sdkKey, testMode, VappNetworkTimeouts.DEFAULT);
+    }
+
+    public VappRestClient(String endpoint, String sdkKey, boolean testMode, VappNetworkTimeouts timeouts) {
         this.endpoint = endpoint;
         this.sdkKey = sdkKey;
         this.log = testMode;
-        gson = new Gson();
+        this.timeouts = timeouts;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public String getSdkKey() {
+        return sdkKey;
+    }
+
+    public boolean isTestMode() {
+        return log;
+    }
+
+    public VappNetworkTimeouts getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * Opens a connection to the endpoint, resolving its host and completing the TCP and TLS
+     * handshakes, and returns it to the connection pool for the next call. Must not be called on
+     * the main thread.
+     *
+     * @throws IOException if the endpoint could not be reached.
+     */
+    public void prewarm() throws IOException {
+        HttpURLConnection connection = createHttpConnection(getUrlForAddress(endpoint), HTTP_HEAD);
+        ScheduledFuture<?> deadline = startDeadline(connection, new AtomicBoolean());
+
+        try {
+            drain(getResponseStream(connection));
+        }
+        finally {
+            deadline.cancel(false);
+        }
     }
 
     @Override
@@ -64,14 +143,11 @@ public class VappRestClient implements VappRestApi {
         URL url = getUrlForAddress(address);
 
         HttpURLConnection connection = createHttpConnection(url, HTTP_GET);
-        String response = executeRequest(connection);
-
-        if (TextUtils.isEmpty(response)) {
-            return null;
-        }
-        else {
-            return gson.fromJson(response, GetHniStatusResponse.class);
-        }
+        return executeRequest(connection, null, new ResponseReader<GetHniStatusResponse>() {
+            @Override public GetHniStatusResponse read(JsonReader reader) throws IOException {
+                return GetHniStatusResponse.readFrom(reader);
+            }
+        });
     }
 
     private void validateParameter(String value, String paramName) {
@@ -82,23 +158,44 @@ public class VappRestClient implements VappRestApi {
 
     @Override
     public PostLogsResponse postLog(PostLogsBody logs) throws VappApiException, IOException {
-        if (logs == null || logs.getLogs().isEmpty()) {
+        if (logs == null || logs.getLogCount() == 0) {
             throw new VappApiException("Cannot send empty logs to server!");
         }
 
         String address = combinePaths(endpoint, RESOURCE_LOGS);
         URL url = getUrlForAddress(address);
 
-        HttpURLConnection connection = createHttpConnection(url, HTTP_POST);
-        String json = gson.toJson(logs);
-        String response = executeRequest(connection, json);
+        ResponseReader<PostLogsResponse> responseReader = new ResponseReader<PostLogsResponse>() {
+            @Override public PostLogsResponse read(JsonReader reader) throws IOException {
+                return PostLogsResponse.readFrom(reader);
+            }
+        };
 
-        if (TextUtils.isEmpty(response)) {
-            return null;
+        try {
+            return executeRequest(createPostConnection(url, compressRequests), logs, responseReader);
         }
-        else {
-            return gson.fromJson(response, PostLogsResponse.class);
+        catch (CompressionRejectedException e) { // resend the logs uncompressed, once
+            Log.w(Vapp.TAG, String.format("%s rejected a gzip request body with %d, sending uncompressed",
+                    url, e.responseCode));
+
+            if (e.responseCode == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+                compressRequests = false;
+            }
+
+            PostLogsResponse response = executeRequest(createPostConnection(url, false), logs, responseReader);
+            compressRequests = false; // accepted uncompressed, so the compression was the problem
+            return response;
+        }
+    }
+
+    private HttpURLConnection createPostConnection(URL url, boolean compress) throws IOException {
+        HttpURLConnection connection = createHttpConnection(url, HTTP_POST);
+        connection.setChunkedStreamingMode(0); // the length isn't known until the logs are written
+
+        if (compress) {
+            connection.setRequestProperty("Content-Encoding", GZIP);
         }
+        return connection;
     }
 
     @Override
@@ -119,14 +216,11 @@ public class VappRestClient implements VappRestApi {
         URL url = getUrlForAddress(address);
 
         HttpURLConnection connection = createHttpConnection(url, HTTP_GET);
-        String response = executeRequest(connection);
-
-        if (TextUtils.isEmpty(response)) {
-            return null;
-        }
-        else {
-            return gson.fromJson(response, GetReceivedStatusResponse.class);
-        }
+        return executeRequest(connection, null, new ResponseReader<GetReceivedStatusResponse>() {
+            @Override public GetReceivedStatusResponse read(JsonReader reader) throws IOException {
+                return GetReceivedStatusResponse.readFrom(reader);
+            }
+        });
     }
 
 
@@ -140,48 +234,155 @@ public class VappRestClient implements VappRestApi {
 
     private HttpURLConnection createHttpConnection(URL url, @HTTPMethod String method) throws IOException {
         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(timeouts.getConnectTimeoutMs());
+        connection.setReadTimeout(timeouts.getReadTimeoutMs());
         connection.setRequestProperty("Accept", "application/json");
+        connection.setRequestProperty("Accept-Encoding", GZIP); // decoded by executeRequest
         connection.setRequestProperty("SDK-key", sdkKey);
 
         if (HTTP_POST.equals(method)) { // add content type as POST has payload
             connection.setRequestProperty("Content-Type", "application/json");
             connection.setRequestMethod(HTTP_POST);
         }
+        else if (HTTP_HEAD.equals(method)) {
+            connection.setRequestMethod(HTTP_HEAD);
+        }
         return connection;
     }
 
-    private String executeRequest(HttpURLConnection connection) throws IOException {
-        return executeRequest(connection, null);
+    /**
+     * Disconnects the connection if the call has not completed by the deadline, which fails any
+     * blocked read or write.
+     */
+    private ScheduledFuture<?> startDeadline(final HttpURLConnection connection, final AtomicBoolean expired) {
+        return deadlineTimer.schedule(new Runnable() {
+            @Override public void run() {
+                expired.set(true);
+                connection.disconnect();
+            }
+        }, timeouts.getDeadlineMs(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the response body, or the error body if the server returned an error status.
+     * @throws IOException if the call failed, after reading any error body so that the connection
+     *                     can be reused.
+     */
+    private static InputStream getResponseStream(HttpURLConnection connection) throws IOException {
+        try {
+            return connection.getInputStream();
+        }
+        catch (IOException e) {
+            InputStream errorStream = connection.getErrorStream();
+
+            if (errorStream != null) {
+                drain(errorStream);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a stream to the end and closes it, which returns its connection to the pool.
+     */
+    private static void drain(InputStream is) throws IOException {
+        try {
+            byte[] buffer = new byte[1024];
+
+            while (is.read(buffer) != -1) {
+                // discard
+            }
+        }
+        finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Thrown when the server rejects a gzip-compressed request body.
+     */
+    private static class CompressionRejectedException extends IOException {
+
+        final int responseCode;
+
+        CompressionRejectedException(int responseCode) {
+            this.responseCode = responseCode;
+        }
+    }
+
+    /**
+     * Decodes a response body, field by field, as it is read from the connection.
+     */
+    private interface ResponseReader<T extends BaseResponse> {
+        T read(JsonReader reader) throws IOException;
     }
 
-    private String executeRequest(HttpURLConnection connection, String postBody) throws IOException {
+    /**
+     * @return the decoded response, or null if the response body was empty.
+     */
+    private <T extends BaseResponse> T executeRequest(HttpURLConnection connection, PostLogsBody postBody,
+                                                      ResponseReader<T> responseReader) throws IOException {
         InputStream is = null;
-        DataOutputStream os = null;
-        BufferedReader reader;
-        String response = null;
+        JsonWriter os = null;
+        T response = null;
 
         if (log) {
             logRequest(connection, postBody);
         }
 
+        AtomicBoolean expired = new AtomicBoolean();
+        ScheduledFuture<?> deadline = startDeadline(connection, expired);
+
         try {
-            if (!TextUtils.isEmpty(postBody)) { // send the POST body
-                os = new DataOutputStream(connection.getOutputStream());
-                os.write(postBody.getBytes());
+            if (postBody != null) { // stream the POST body, rather than building it in memory
+                boolean compressed = GZIP.equals(connection.getRequestProperty("Content-Encoding"));
+                OutputStream body = connection.getOutputStream();
+
+                os = new JsonWriter(new BufferedWriter(new OutputStreamWriter(
+                        compressed ? new GZIPOutputStream(body) : body, CHARSET)));
+                os.setSerializeNulls(false);
+                postBody.writeTo(os);
+                os.close(); // completes the gzip stream and the chunked body
+                os = null;
+
+                int responseCode = compressed ? connection.getResponseCode() : -1;
+
+                if (responseCode == HttpURLConnection.HTTP_UNSUPPORTED_TYPE
+                        || responseCode == HttpURLConnection.HTTP_BAD_REQUEST) {
+                    InputStream errorStream = connection.getErrorStream();
+
+                    if (errorStream != null) {
+                        drain(errorStream);
+                    }
+                    throw new CompressionRejectedException(responseCode);
+                }
             }
 
-            is = new BufferedInputStream(connection.getInputStream()); // read the HTTP response
-            reader = new BufferedReader(new InputStreamReader(is));
+            is = getResponseStream(connection); // decode the HTTP response
 
-            String line;
-            StringBuilder sb = new StringBuilder();
+            if (GZIP.equalsIgnoreCase(connection.getContentEncoding())) {
+                is = new GZIPInputStream(is);
+            }
+            is = new BufferedInputStream(is);
+            JsonReader reader = new JsonReader(new InputStreamReader(is, CHARSET));
+            reader.setLenient(true);
 
-            while ((line = reader.readLine()) != null) {
-                sb.append(line);
+            if (hasContent(reader)) {
+                response = responseReader.read(reader);
+            }
+            drain(is); // skip anything after the response, so the connection can be reused
+            is = null;
+        }
+        catch (IOException e) {
+            if (expired.get()) {
+                throw new SocketTimeoutException(String.format("No response from %s within %dms",
+                        connection.getURL(), timeouts.getDeadlineMs()));
             }
-            response = sb.toString();
+            throw e;
         }
         finally {
+            deadline.cancel(false);
+
             if (is != null) {
                 try {
                     is.close();
@@ -195,7 +396,7 @@ public class VappRestClient implements VappRestApi {
                     os.close();
                 }
                 catch (IOException e) {
-                    throw new VappApiException("Failed to close input stream", e);
+                    throw new VappApiException("Failed to close output stream", e);
                 }
             }
         }
@@ -205,7 +406,7 @@ public class VappRestClient implements VappRestApi {
         return response;
     }
 
-    private void logRequest(HttpURLConnection connection, String postBody) {
+    private void logRequest(HttpURLConnection connection, PostLogsBody postBody) {
         Log.d(Vapp.TAG, String.format("%s %s", connection.getRequestMethod(), connection.getURL()));
         Map<String, List<String>> requestProperties = connection.getRequestProperties();
 
@@ -222,12 +423,22 @@ public class VappRestClient implements VappRestApi {
         }
 
         if (postBody != null) {
-            Log.d(Vapp.TAG, postBody);
+            Log.d(Vapp.TAG, String.format("[%d log entries]", postBody.getLogCount()));
         }
     }
 
-    private void logResponse(String response) {
-        Log.d(Vapp.TAG, response);
+    private void logResponse(BaseResponse response) {
+        Log.d(Vapp.TAG, response != null ? response.toString() : "[empty response]");
+    }
+
+    private static boolean hasContent(JsonReader reader) throws IOException {
+        try {
+            reader.peek();
+            return true;
+        }
+        catch (EOFException e) {
+            return false;
+        }
     }
 
     @NonNull private URL getUrlForAddress(String address) throws VappApiException {
@@ -1,27 +1,60 @@
 package com.vasilitate.vapp.sdk.network.request;
 
+import android.database.Cursor;
 import android.text.TextUtils;
 
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonWriter;
 import com.vasilitate.vapp.sdk.exceptions.VappApiException;
 
+import java.io.IOException;
 import java.util.List;
 
 /**
- * Models the payload for POST /logs
+ * Models the payload for POST /logs. The log entries are either held in a list, or read row by row
+ * from a {@link LogSource} as the payload is written, so that a large backlog is never held in
+ * memory.
  */
 public final class PostLogsBody {
 
     public static final String PLUS_SYMBOL = "+";
 
+    /**
+     * Supplies log entries from a database as the payload is written.
+     */
+    public interface LogSource {
+
+        /**
+         * @return the number of entries the cursor will contain.
+         */
+        int getCount();
+
+        /**
+         * Queries the entries. Called on the thread which writes the payload.
+         *
+         * @return a cursor whose first column is the message and second column is the ddi
+         */
+        Cursor query();
+    }
+
     private final List<LogEntry> logs;
+    private final transient LogSource logSource;
     private final String cli;
 
     @SerializedName("cli_detail")
     private final String cliDetail;
 
     public PostLogsBody(List<LogEntry> logs, String cli, String cliDetail) {
+        this(logs, null, cli, cliDetail);
+    }
+
+    public PostLogsBody(LogSource logSource, String cli, String cliDetail) {
+        this(null, logSource, cli, cliDetail);
+    }
+
+    private PostLogsBody(List<LogEntry> logs, LogSource logSource, String cli, String cliDetail) {
         this.logs = logs;
+        this.logSource = logSource;
         this.cliDetail = cliDetail;
 
         if (cli == null) {
@@ -36,10 +69,20 @@ public final class PostLogsBody {
         }
     }
 
+    /**
+     * @return the log entries, or null if they are read from a {@link LogSource}.
+     */
     public List<LogEntry> getLogs() {
         return logs;
     }
 
+    /**
+     * @return the number of log entries.
+     */
+    public int getLogCount() {
+        return logs != null ? logs.size() : logSource.getCount();
+    }
+
     public String getCli() {
         return cli;
     }
@@ -48,6 +91,40 @@ public final class PostLogsBody {
         return cliDetail;
     }
 
+    /**
+     * Writes the payload as JSON, reading entries from the {@link LogSource} one row at a time.
+     *
+     * @param writer the writer
+     * @throws IOException if the payload could not be written.
+     */
+    public void writeTo(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("logs").beginArray();
+
+        if (logs != null) {
+            for (LogEntry entry : logs) {
+                entry.writeTo(writer);
+            }
+        }
+        else {
+            Cursor cursor = logSource.query();
+
+            try {
+                while (cursor.moveToNext()) {
+                    new LogEntry(cursor.getString(0), cursor.getString(1)).writeTo(writer);
+                }
+            }
+            finally {
+                cursor.close();
+            }
+        }
+
+        writer.endArray();
+        writer.name("cli").value(cli);
+        writer.name("cli_detail").value(cliDetail);
+        writer.endObject();
+    }
+
     public static class LogEntry {
 
         private final String message;
@@ -80,6 +157,13 @@ public final class PostLogsBody {
         public String getDdi() {
             return ddi;
         }
+
+        void writeTo(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("message").value(message);
+            writer.name("ddi").value(ddi);
+            writer.endObject();
+        }
     }
 
 }
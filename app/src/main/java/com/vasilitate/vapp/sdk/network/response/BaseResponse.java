@@ -3,6 +3,10 @@ package com.vasilitate.vapp.sdk.network.response;
 import android.support.annotation.Nullable;
 import android.support.annotation.StringDef;
 
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 
@@ -35,4 +39,19 @@ public abstract class BaseResponse {
     @Nullable public String getError() {
         return error;
     }
+
+    @Override public String toString() {
+        return String.format("status: %s, error: %s", status, error);
+    }
+
+    /**
+     * @return the next value as a string, or null if it is null.
+     */
+    @Nullable static String nextStringOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
 }
@@ -3,6 +3,9 @@ package com.vasilitate.vapp.sdk.network.response;
 import android.support.annotation.Nullable;
 import android.support.annotation.StringDef;
 
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 
@@ -29,4 +32,42 @@ public final class GetReceivedStatusResponse extends BaseResponse {
     public String getReceived() {
         return received;
     }
+
+    @Override public String toString() {
+        return String.format("%s, received: %s", super.toString(), received);
+    }
+
+    /**
+     * Reads the response from JSON, ignoring any unknown fields.
+     *
+     * @param reader the reader
+     * @return the response.
+     * @throws IOException if the response could not be read.
+     */
+    public static GetReceivedStatusResponse readFrom(JsonReader reader) throws IOException {
+        String status = null;
+        String error = null;
+        String received = null;
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if ("status".equals(name)) {
+                status = nextStringOrNull(reader);
+            }
+            else if ("error".equals(name)) {
+                error = nextStringOrNull(reader);
+            }
+            else if ("received".equals(name)) {
+                received = nextStringOrNull(reader);
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new GetReceivedStatusResponse(status, error, received);
+    }
 }
@@ -2,6 +2,10 @@ package com.vasilitate.vapp.sdk.network.response;
 
 import android.support.annotation.Nullable;
 
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+
 /**
  * Models the response for POST /logs
  */
@@ -10,4 +14,34 @@ public class PostLogsResponse extends BaseResponse {
     public PostLogsResponse(@RequestStatus @Nullable String status, @Nullable String error) {
         super(status, error);
     }
+
+    /**
+     * Reads the response from JSON, ignoring any unknown fields.
+     *
+     * @param reader the reader
+     * @return the response.
+     * @throws IOException if the response could not be read.
+     */
+    public static PostLogsResponse readFrom(JsonReader reader) throws IOException {
+        String status = null;
+        String error = null;
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if ("status".equals(name)) {
+                status = nextStringOrNull(reader);
+            }
+            else if ("error".equals(name)) {
+                error = nextStringOrNull(reader);
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new PostLogsResponse(status, error);
+    }
 }
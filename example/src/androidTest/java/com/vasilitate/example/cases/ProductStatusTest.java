@@ -1,6 +1,5 @@
 package com.vasilitate.example.cases;
 
-import android.preference.PreferenceManager;
 import android.test.AndroidTestCase;
 
 import com.vasilitate.vapp.sdk.Vapp;
@@ -29,7 +28,7 @@ public class ProductStatusTest extends AndroidTestCase {
 
     @Override protected void tearDown() throws Exception {
         super.tearDown();
-        PreferenceManager.getDefaultSharedPreferences(getContext()).edit().clear().apply();
+        Vapp.clearStoredState(getContext());
     }
 
     public void testPreconditions() {
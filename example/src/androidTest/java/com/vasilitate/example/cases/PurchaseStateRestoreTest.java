@@ -0,0 +1,77 @@
+package com.vasilitate.example.cases;
+
+import android.test.AndroidTestCase;
+
+import com.vasilitate.vapp.sdk.Vapp;
+import com.vasilitate.vapp.sdk.VappProduct;
+import com.vasilitate.vapp.sdk.VappPurchaseState;
+import com.vasilitate.vapp.sdk.exceptions.InvalidVappProgressException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class PurchaseStateRestoreTest extends AndroidTestCase {
+
+    private static final VappProduct PRODUCT_LIVES = new VappProduct("productLives", 5, 90);
+    private static final VappProduct PRODUCT_LEVEL = new VappProduct("productLevel", 10, 1);
+
+    @Override public void setUp() throws Exception {
+        super.setUp();
+        initialiseVapp();
+    }
+
+    private void initialiseVapp() {
+        List<VappProduct> productList = new ArrayList<>();
+        productList.add(PRODUCT_LIVES);
+        productList.add(PRODUCT_LEVEL);
+
+        Vapp.initialise(getContext(),
+                productList,
+                null,
+                true,
+                true,
+                "BG8R4X2PCXYCHRCRJTK6");
+    }
+
+    @Override protected void tearDown() throws Exception {
+        super.tearDown();
+        Vapp.clearStoredState(getContext());
+    }
+
+    public void testExportRestoreRoundTrip() {
+        Vapp.setProductRedeemedCount(getContext(), PRODUCT_LIVES, 3);
+        Vapp.setSMSPaymentProgress(getContext(), PRODUCT_LEVEL, 4);
+
+        String exported = Vapp.exportPurchaseState(getContext());
+        Vapp.clearStoredState(getContext());
+        initialiseVapp();
+
+        assertEquals(0, Vapp.getProductRedeemedCount(getContext(), PRODUCT_LIVES));
+
+        Vapp.restorePurchaseState(getContext(), exported);
+
+        assertEquals(3, Vapp.getProductRedeemedCount(getContext(), PRODUCT_LIVES));
+        assertEquals(4, Vapp.getSMSPaymentProgress(getContext(), PRODUCT_LEVEL));
+        assertEquals(true, Vapp.isSMSPaymentInProgress(getContext(), PRODUCT_LEVEL));
+        assertEquals(exported, Vapp.exportPurchaseState(getContext()));
+    }
+
+    public void testInvalidStateRestoresNothing() {
+        Map<String, VappPurchaseState> states = new HashMap<>();
+        states.put(PRODUCT_LIVES.getProductId(), new VappPurchaseState(2, 0, null, false));
+        states.put(PRODUCT_LEVEL.getProductId(), new VappPurchaseState(1, 11, null, false));
+
+        try {
+            Vapp.restorePurchaseState(getContext(), states);
+            fail("Failed to reject payment progress greater than the required SMS count");
+        }
+        catch (InvalidVappProgressException ignored) {
+        }
+
+        assertEquals(0, Vapp.getProductRedeemedCount(getContext(), PRODUCT_LIVES));
+        assertEquals(0, Vapp.getProductRedeemedCount(getContext(), PRODUCT_LEVEL));
+    }
+
+}
@@ -2,6 +2,9 @@ package com.vasilitate.example.cases;
 
 import android.test.AndroidTestCase;
 
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.vasilitate.vapp.sdk.exceptions.VappApiException;
 import com.vasilitate.vapp.sdk.network.VappRestClient;
 import com.vasilitate.vapp.sdk.network.request.PostLogsBody;
@@ -10,6 +13,8 @@ import com.vasilitate.vapp.sdk.network.response.GetReceivedStatusResponse;
 import com.vasilitate.vapp.sdk.network.response.PostLogsResponse;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -72,6 +77,14 @@ public class RestTest extends AndroidTestCase {
         assertEquals(HNI_STATUS_WHITELISTED, response.getStatus());
     }
 
+    public void testGetHniStatusAfterPrewarm() throws IOException {
+        vappRestClient.prewarm();
+
+        GetHniStatusResponse response = vappRestClient.getHniStatus(VALID_MCC, VALID_MNC);
+        assertNotNull(response);
+        assertEquals(HNI_STATUS_WHITELISTED, response.getStatus());
+    }
+
     public void testInvalidGetReceivedStatus() throws IOException {
         checkInvalidReceivedStatusCall(VALID_DDI, VALID_RANDOM_2, VALID_RANDOM_3);
         checkInvalidReceivedStatusCall("", VALID_RANDOM_2, VALID_RANDOM_3);
@@ -117,6 +130,33 @@ public class RestTest extends AndroidTestCase {
         assertNotNull(response.getStatus());
     }
 
+    public void testStreamedPostLogsBodyMatchesSerialisedBody() throws IOException {
+        List<LogEntry> values = new ArrayList<>();
+        values.add(new LogEntry(VALID_MESSAGE, "+" + VALID_DDI));
+        values.add(new LogEntry(VALID_MESSAGE, VALID_DDI));
+        PostLogsBody body = new PostLogsBody(values, "+" + VALID_CLI, VALID_CLI_DETAIL);
+
+        StringWriter streamed = new StringWriter();
+        JsonWriter writer = new JsonWriter(streamed);
+        writer.setSerializeNulls(false);
+        body.writeTo(writer);
+        writer.flush();
+
+        assertEquals(new Gson().toJson(body), streamed.toString());
+    }
+
+    public void testStreamedResponseMatchesDeserialisedResponse() throws IOException {
+        String json = "{\n  \"status\": \"whitelisted\",\n  \"error\": null,\n"
+                + "  \"received\": \"notYet\",\n  \"extra\": {\"ignored\": [1, 2]}\n}";
+
+        GetReceivedStatusResponse streamed = GetReceivedStatusResponse.readFrom(new JsonReader(new StringReader(json)));
+        GetReceivedStatusResponse deserialised = new Gson().fromJson(json, GetReceivedStatusResponse.class);
+
+        assertEquals(deserialised.getStatus(), streamed.getStatus());
+        assertEquals(deserialised.getError(), streamed.getError());
+        assertEquals(deserialised.getReceived(), streamed.getReceived());
+    }
+
     private void checkInvalidPostLogsCall(String message, String ddi) {
         try {
             new LogEntry(message, ddi);
@@ -0,0 +1,64 @@
+package com.vasilitate.example.cases;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.vasilitate.vapp.sdk.Vapp;
+import com.vasilitate.vapp.sdk.VappProduct;
+import com.vasilitate.vapp.sdk.VappStateStorage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares read and write latency of each state storage at increasing catalog sizes. Writes are
+ * timed until they have been flushed to disk. Results are logged under the VAPP tag as the mean
+ * nanoseconds per call.
+ */
+public class StateStorageBenchmarkTest extends AndroidTestCase {
+
+    private static final int[] CATALOG_SIZES = {10, 100, 1000};
+
+    @Override protected void tearDown() throws Exception {
+        super.tearDown();
+        Vapp.clearStoredState(getContext());
+    }
+
+    public void testStorageLatency() {
+        for (VappStateStorage storage : VappStateStorage.values()) {
+            for (int size : CATALOG_SIZES) {
+                benchmark(storage, size);
+            }
+        }
+    }
+
+    private void benchmark(VappStateStorage storage, int size) {
+        List<VappProduct> productList = new ArrayList<>();
+
+        for (int i = 0; i < size; i++) {
+            productList.add(new VappProduct("product" + i, 5, 90));
+        }
+
+        Vapp.initialise(getContext(), productList, null, true, true, "BG8R4X2PCXYCHRCRJTK6", storage);
+
+        long start = System.nanoTime();
+
+        for (VappProduct product : productList) {
+            Vapp.setProductRedeemedCount(getContext(), product, 1);
+        }
+        Vapp.flushStoredState(getContext()); // waits for the writes to reach disk, off the main thread
+        long writeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+
+        for (VappProduct product : productList) {
+            assertEquals(1, Vapp.getProductRedeemedCount(getContext(), product));
+        }
+        long readNanos = System.nanoTime() - start;
+
+        Log.i(Vapp.TAG, String.format("%s, %d products: write %dns, read %dns",
+                storage, size, writeNanos / size, readNanos / size));
+
+        Vapp.clearStoredState(getContext());
+    }
+}
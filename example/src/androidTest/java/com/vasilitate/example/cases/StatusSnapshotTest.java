@@ -0,0 +1,65 @@
+package com.vasilitate.example.cases;
+
+import android.test.AndroidTestCase;
+
+import com.vasilitate.vapp.sdk.Vapp;
+import com.vasilitate.vapp.sdk.VappProduct;
+import com.vasilitate.vapp.sdk.VappProductStatus;
+import com.vasilitate.vapp.sdk.VappStatusSnapshot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class StatusSnapshotTest extends AndroidTestCase {
+
+    private static final VappProduct PRODUCT_LIVES = new VappProduct("productLives", 5, 90);
+    private static final VappProduct PRODUCT_LEVEL = new VappProduct("productLevel", 10, 1);
+
+    @Override public void setUp() throws Exception {
+        super.setUp();
+
+        List<VappProduct> productList = new ArrayList<>();
+        productList.add(PRODUCT_LIVES);
+        productList.add(PRODUCT_LEVEL);
+
+        Vapp.initialise(getContext(),
+                productList,
+                null,
+                true,
+                true,
+                "BG8R4X2PCXYCHRCRJTK6");
+    }
+
+    @Override protected void tearDown() throws Exception {
+        super.tearDown();
+        Vapp.clearStoredState(getContext());
+    }
+
+    public void testSnapshotMatchesProductStatus() {
+        Vapp.setProductRedeemedCount(getContext(), PRODUCT_LIVES, 3);
+        Vapp.setSMSPaymentProgress(getContext(), PRODUCT_LEVEL, 4);
+
+        VappStatusSnapshot snapshot = Vapp.getStatusSnapshot(getContext());
+        assertEquals(2, snapshot.size());
+        assertEquals(PRODUCT_LIVES, snapshot.get(0).getProduct());
+        assertEquals(PRODUCT_LEVEL, snapshot.get(1).getProduct());
+        assertNull(snapshot.get("unknown"));
+
+        for (VappProduct product : new VappProduct[]{PRODUCT_LIVES, PRODUCT_LEVEL}) {
+            VappProductStatus status = snapshot.get(product.getProductId());
+            assertEquals(Vapp.getProductRedeemedCount(getContext(), product), status.getRedeemedCount());
+            assertEquals(Vapp.isPaidFor(getContext(), product), status.isPaidFor());
+            assertEquals(Vapp.isSMSPaymentInProgress(getContext(), product), status.isPaymentInProgress());
+            assertEquals(Vapp.getSMSPaymentProgress(getContext(), product), status.getPaymentProgress());
+            assertEquals(Vapp.getSubscriptionEndDate(getContext(), product), status.getSubscriptionEndDate());
+        }
+    }
+
+    public void testSnapshotIsImmutable() {
+        VappStatusSnapshot before = Vapp.getStatusSnapshot(getContext());
+        Vapp.setProductRedeemedCount(getContext(), PRODUCT_LIVES, 2);
+
+        assertEquals(0, before.get(PRODUCT_LIVES.getProductId()).getRedeemedCount());
+        assertEquals(2, Vapp.getStatusSnapshot(getContext()).get(PRODUCT_LIVES.getProductId()).getRedeemedCount());
+    }
+}
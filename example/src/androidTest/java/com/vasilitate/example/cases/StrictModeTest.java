@@ -0,0 +1,187 @@
+package com.vasilitate.example.cases;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.StrictMode;
+import android.test.AndroidTestCase;
+
+import com.vasilitate.vapp.sdk.Vapp;
+import com.vasilitate.vapp.sdk.VappHniStatusTtl;
+import com.vasilitate.vapp.sdk.VappInitialisation;
+import com.vasilitate.vapp.sdk.VappLogRetention;
+import com.vasilitate.vapp.sdk.VappNetworkTimeouts;
+import com.vasilitate.vapp.sdk.VappProduct;
+import com.vasilitate.vapp.sdk.VappProgressWidget;
+import com.vasilitate.vapp.sdk.VappStateStorage;
+import com.vasilitate.vapp.sdk.VappStatusListener;
+import com.vasilitate.vapp.sdk.VappStatusSnapshot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls every public API on the main thread with StrictMode disk read and write detection enabled.
+ * Any disk access kills the test process, failing the run.
+ */
+public class StrictModeTest extends AndroidTestCase {
+
+    private static final VappProduct PRODUCT_LIVES = new VappProduct("productLives", 5, 90);
+    private static final VappProduct PRODUCT_LEVEL = new VappProduct("productLevel", 10, 1);
+    private static final String SDK_KEY = "BG8R4X2PCXYCHRCRJTK6";
+
+    private final List<VappProduct> productList = new ArrayList<>();
+
+    @Override public void setUp() throws Exception {
+        super.setUp();
+        productList.add(PRODUCT_LIVES);
+        productList.add(PRODUCT_LEVEL);
+    }
+
+    @Override protected void tearDown() throws Exception {
+        super.tearDown();
+        Vapp.clearStoredState(getContext());
+    }
+
+    public void testStateApisDoNoDiskIo() throws Throwable {
+        runOnMainThreadStrictly(new Runnable() {
+            @Override public void run() {
+                callStateApis(VappStateStorage.SHARED_PREFERENCES);
+            }
+        });
+    }
+
+    public void testSqliteStateApisDoNoDiskIo() throws Throwable {
+        runOnMainThreadStrictly(new Runnable() {
+            @Override public void run() {
+                callStateApis(VappStateStorage.SQLITE);
+            }
+        });
+    }
+
+    public void testAsyncInitialisationDoesNoDiskIo() throws Throwable {
+        final VappInitialisation[] initialisation = new VappInitialisation[1];
+
+        runOnMainThreadStrictly(new Runnable() {
+            @Override public void run() {
+                initialisation[0] = Vapp.initialiseAsync(getContext(), productList, null, true, true, SDK_KEY);
+            }
+        });
+        assertTrue(initialisation[0].await(30, TimeUnit.SECONDS));
+
+        runOnMainThreadStrictly(new Runnable() {
+            @Override public void run() {
+                assertFalse(Vapp.isPaidFor(getContext(), PRODUCT_LIVES));
+            }
+        });
+    }
+
+    public void testDeviceApisDoNoDiskIo() throws Throwable {
+        runOnMainThreadStrictly(new Runnable() {
+            @Override public void run() {
+                initialise(VappStateStorage.SHARED_PREFERENCES);
+                Vapp.isRoaming(getContext());
+                Vapp.isSIMPresent(getContext());
+                Vapp.getOriginatingNetworkName(getContext());
+                Vapp.getOriginatingNetworkCountry(getContext());
+                Vapp.getBillingRoute(getContext());
+                Vapp.isOriginatingNetworkSupported(getContext());
+                Vapp.isTestMode(getContext());
+            }
+        });
+    }
+
+    public void testProgressWidgetDoesNoDiskIo() throws Throwable {
+        runOnMainThreadStrictly(new Runnable() {
+            @Override public void run() {
+                initialise(VappStateStorage.SHARED_PREFERENCES);
+                new VappProgressWidget(getContext());
+            }
+        });
+    }
+
+    private void callStateApis(VappStateStorage storage) {
+        initialise(storage);
+
+        VappStatusListener listener = new VappStatusListener() {
+            @Override public void onStatusChanged(VappStatusSnapshot snapshot, Set<String> changedProductIds) {
+            }
+        };
+        Vapp.addStatusListener(getContext(), listener);
+
+        Vapp.setProductRedeemedCount(getContext(), PRODUCT_LIVES, 2);
+        assertEquals(2, Vapp.getProductRedeemedCount(getContext(), PRODUCT_LIVES));
+        assertTrue(Vapp.isPaidFor(getContext(), PRODUCT_LIVES));
+
+        Vapp.setSMSPaymentProgress(getContext(), PRODUCT_LEVEL, 3);
+        assertEquals(3, Vapp.getSMSPaymentProgress(getContext(), PRODUCT_LEVEL));
+        assertTrue(Vapp.isSMSPaymentInProgress(getContext(), PRODUCT_LEVEL));
+        Vapp.isBeingPaidFor(getContext(), PRODUCT_LEVEL);
+        Vapp.getProductBeingPurchased(getContext());
+        Vapp.getSubscriptionEndDate(getContext(), PRODUCT_LIVES);
+        Vapp.getStatusSnapshot(getContext());
+
+        String exported = Vapp.exportPurchaseState(getContext());
+        Vapp.clearStoredState(getContext());
+        initialise(storage);
+        Vapp.restorePurchaseState(getContext(), exported);
+        assertEquals(2, Vapp.getProductRedeemedCount(getContext(), PRODUCT_LIVES));
+
+        Vapp.setSmsLogRetention(getContext(), VappLogRetention.DEFAULT);
+        Vapp.setHniStatusTtl(getContext(), VappHniStatusTtl.DEFAULT);
+        Vapp.setNetworkTimeouts(getContext(), VappNetworkTimeouts.DEFAULT);
+        Vapp.setUserToken("strictModeUser");
+        Vapp.cancelVappPayment(getContext());
+        Vapp.removeStatusListener(listener);
+    }
+
+    private void initialise(VappStateStorage storage) {
+        Vapp.initialise(getContext(),
+                productList,
+                null,
+                true,
+                true,
+                SDK_KEY,
+                storage);
+    }
+
+    /**
+     * Runs the block on the main thread, where StrictMode kills the process on any disk access,
+     * and rethrows anything else it threw.
+     */
+    private static void runOnMainThreadStrictly(final Runnable block) throws Throwable {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override public void run() {
+                StrictMode.ThreadPolicy previous = StrictMode.getThreadPolicy();
+                StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                        .detectDiskReads()
+                        .detectDiskWrites()
+                        .penaltyLog()
+                        .penaltyDeath()
+                        .build());
+
+                try {
+                    block.run();
+                }
+                catch (Throwable t) {
+                    failure[0] = t;
+                }
+                finally {
+                    StrictMode.setThreadPolicy(previous);
+                    done.countDown();
+                }
+            }
+        });
+
+        assertTrue("Timed out waiting for the main thread", done.await(30, TimeUnit.SECONDS));
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+}
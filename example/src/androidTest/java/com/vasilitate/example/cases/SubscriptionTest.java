@@ -1,6 +1,5 @@
 package com.vasilitate.example.cases;
 
-import android.preference.PreferenceManager;
 import android.test.AndroidTestCase;
 
 import com.vasilitate.vapp.sdk.SubscriptionIntervalType;
@@ -43,7 +42,7 @@ public class SubscriptionTest extends AndroidTestCase {
 
     @Override protected void tearDown() throws Exception {
         super.tearDown();
-        PreferenceManager.getDefaultSharedPreferences(getContext()).edit().clear().apply();
+        Vapp.clearStoredState(getContext());
     }
 
     public void testPreconditions() {
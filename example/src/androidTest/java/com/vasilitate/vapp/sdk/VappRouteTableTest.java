@@ -0,0 +1,77 @@
+package com.vasilitate.vapp.sdk;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Feeds entries in the form of the SDK's billing route resources to {@link VappRouteTable}. In the
+ * SDK's package, as the table is internal.
+ */
+public class VappRouteTableTest extends AndroidTestCase {
+
+    private static final String[][] ROUTE_ITEMS = {
+            {"342/600", "724/01, 06, 10, 11, 19, 23", "645/1", "234/03, 15, 27, 91", "234/15"},
+            {"234/02, 10, 11", "234/15, 20"},
+            {"234/20", "310/060"}
+    };
+
+    public void testPacksTwoAndThreeDigitMncsDistinctly() {
+        assertTrue(VappRouteTable.pack("342", "600") > 0);
+        assertTrue(VappRouteTable.pack("310", "60") != VappRouteTable.pack("310", "060"));
+        assertTrue(VappRouteTable.pack("234", "01") != VappRouteTable.pack("234", "001"));
+        assertEquals(VappRouteTable.pack("645", "01"), VappRouteTable.pack("645", "1"));
+    }
+
+    public void testRejectsInvalidNetworks() {
+        assertEquals(-1, VappRouteTable.pack("34", "600"));
+        assertEquals(-1, VappRouteTable.pack("3420", "60"));
+        assertEquals(-1, VappRouteTable.pack("342", ""));
+        assertEquals(-1, VappRouteTable.pack("342", "6000"));
+        assertEquals(-1, VappRouteTable.pack("342", "6a"));
+    }
+
+    public void testGetRoute() {
+        VappRouteTable table = VappRouteTable.parse(ROUTE_ITEMS);
+
+        assertEquals(VappBillingRoute.A, table.getRoute("342600"));
+        assertEquals(VappBillingRoute.A, table.getRoute("72401"));
+        assertEquals(VappBillingRoute.A, table.getRoute("72423"));
+        assertEquals(VappBillingRoute.A, table.getRoute("64501")); // listed as a single digit
+        assertEquals(VappBillingRoute.B, table.getRoute("23410"));
+        assertEquals(VappBillingRoute.C, table.getRoute("310060"));
+    }
+
+    public void testDuplicateNetworkKeepsFirstRoute() {
+        VappRouteTable table = VappRouteTable.parse(ROUTE_ITEMS);
+
+        assertEquals(VappBillingRoute.A, table.getRoute("23415")); // listed twice in A, then in B
+        assertEquals(VappBillingRoute.B, table.getRoute("23420")); // listed in B, then in C
+    }
+
+    public void testMisses() {
+        VappRouteTable table = VappRouteTable.parse(ROUTE_ITEMS);
+
+        assertEquals(VappBillingRoute.UNKNOWN, table.getRoute("72407"));
+        assertEquals(VappBillingRoute.UNKNOWN, table.getRoute("34260")); // a two digit MNC, not 600
+        assertEquals(VappBillingRoute.UNKNOWN, table.getRoute("31060")); // only the three digit 060 is listed
+        assertEquals(VappBillingRoute.UNKNOWN, table.getRoute("645001"));
+        assertEquals(VappBillingRoute.UNKNOWN, table.getRoute("342"));
+        assertEquals(VappBillingRoute.UNKNOWN, table.getRoute(null));
+
+        assertFalse(table.isSupported("72407"));
+        assertTrue(table.isSupported("23491"));
+    }
+
+    public void testIgnoresInvalidItems() {
+        VappRouteTable table = VappRouteTable.parse(new String[][]{{"2340/15", "234", "234/x1, 30"}, {}, {}});
+
+        assertEquals(VappBillingRoute.A, table.getRoute("23430"));
+        assertEquals(VappBillingRoute.UNKNOWN, table.getRoute("23415"));
+    }
+
+    public void testEmptyRoutesSupportEveryNetwork() {
+        VappRouteTable table = VappRouteTable.parse(new String[][]{{}, {}, {}});
+
+        assertEquals(VappBillingRoute.UNKNOWN, table.getRoute("23415"));
+        assertTrue(table.isSupported("23415"));
+    }
+}